@@ -0,0 +1,177 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A most-recently-inserted queue which switches at runtime between a plain
+ * lock and flat combining depending on the contention it measures.
+ * <p>
+ * <p>While contention is low, {@link #offer} and {@link #poll} take the lock
+ * and apply the operation directly, which is the cheapest path when the lock
+ * is mostly free. Every failed <tt>tryLock</tt> is counted, and when more than
+ * the configured share of the operations in a sample window had to wait, the
+ * queue switches to the combining path of
+ * {@link FlatCombiningMostRecentlyInsertedQueue}. While combining, it tracks
+ * how many requests each combiner applies, and when batches shrink to about
+ * one request the contention is gone and it switches back.
+ * <p>
+ * <p>Both paths apply operations to the same ring while holding the same lock,
+ * so a switch moves no elements and keeps FIFO order and eviction exactly as
+ * they are. Threads which still run the previous path during a switch are
+ * served as usual.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class AdaptiveMostRecentlyInsertedQueue<E> extends FlatCombiningMostRecentlyInsertedQueue<E> {
+
+    static final int SAMPLE_WINDOW = 4096;
+    static final double CONTENDED_SHARE_TO_COMBINE = 0.25;
+    static final double BATCH_SIZE_TO_LOCK = 1.5;
+
+    private final int sampleWindow;
+    private final double contendedShareToCombine;
+    private final double batchSizeToLock;
+
+    private volatile boolean combining;
+    private final LongAdder contended = new LongAdder();
+    private int windowOperations;
+    private int windowBatches;
+    private int switches;
+
+    public AdaptiveMostRecentlyInsertedQueue(int capacity) {
+
+        this(capacity, SAMPLE_WINDOW, CONTENDED_SHARE_TO_COMBINE, BATCH_SIZE_TO_LOCK);
+    }
+
+    /**
+     * @param capacity                the capacity of the queue
+     * @param sampleWindow            the number of operations over which contention is measured
+     * @param contendedShareToCombine the share of operations which waited for the lock above which
+     *                                the queue switches to combining
+     * @param batchSizeToLock         the average number of requests per combiner below which the
+     *                                queue switches back to the plain lock
+     */
+    AdaptiveMostRecentlyInsertedQueue(int capacity, int sampleWindow, double contendedShareToCombine,
+                                      double batchSizeToLock) {
+
+        super(capacity);
+
+        this.sampleWindow = sampleWindow;
+        this.contendedShareToCombine = contendedShareToCombine;
+        this.batchSizeToLock = batchSizeToLock;
+    }
+
+    /**
+     * Inserts the specified element, evicting the oldest element if the queue
+     * is full.
+     *
+     * @param e the element to add
+     * @return <tt>true</tt>
+     * @throws NullPointerException if the specified element is null
+     */
+    @Override
+    public boolean offer(E e) {
+
+        if (e == null) throw new NullPointerException();
+
+        if (combining) {
+            return super.offer(e);
+        }
+
+        lock();
+        try {
+            offerRing(e);
+            sampleLocked();
+        } finally {
+            combinerLock.unlock();
+        }
+
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue,
+     * or returns <tt>null</tt> if this queue is empty.
+     *
+     * @return the head of this queue, or <tt>null</tt> if this queue is empty
+     */
+    @Override
+    public E poll() {
+
+        if (combining || size() == 0) {
+            return super.poll();
+        }
+
+        lock();
+        try {
+            E item = pollRing();
+            sampleLocked();
+            return item;
+        } finally {
+            combinerLock.unlock();
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the queue currently uses flat combining for
+     * offers and polls.
+     */
+    public boolean isCombining() {
+
+        return combining;
+    }
+
+    /**
+     * Returns how many times the queue has switched between the two paths.
+     */
+    public int switchCount() {
+
+        combinerLock.lock();
+        try {
+            return switches;
+        } finally {
+            combinerLock.unlock();
+        }
+    }
+
+    private void lock() {
+
+        if (!combinerLock.tryLock()) {
+            contended.increment();
+            combinerLock.lock();
+        }
+    }
+
+    private void sampleLocked() {
+
+        if (++windowOperations < sampleWindow) {
+            return;
+        }
+
+        if (!combining && contended.sumThenReset() >= windowOperations * contendedShareToCombine) {
+            combining = true;
+            switches++;
+        }
+
+        windowOperations = 0;
+        windowBatches = 0;
+    }
+
+    @Override
+    protected void combined(int requests) {
+
+        windowOperations += requests;
+        windowBatches++;
+
+        if (windowOperations < sampleWindow) {
+            return;
+        }
+
+        if (combining && windowOperations < windowBatches * batchSizeToLock) {
+            combining = false;
+            contended.reset();
+            switches++;
+        }
+
+        windowOperations = 0;
+        windowBatches = 0;
+    }
+}
@@ -0,0 +1,114 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveMostRecentlyInsertedQueueTest {
+
+    private AdaptiveMostRecentlyInsertedQueue<Integer> queue;
+    private final int capacity = 10;
+    private final int threadCounter = 10;
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void setUp() throws Exception {
+
+        queue = new AdaptiveMostRecentlyInsertedQueue<>(capacity);
+    }
+
+    @Test
+    public void offer() throws Exception {
+
+        for (int i = 0; i < capacity + 1; i++) {
+            assertEquals(true, queue.offer(i));
+        }
+        assertEquals(capacity, queue.size());
+        assertSame(1, queue.poll());
+        assertEquals(false, queue.isCombining());
+    }
+
+    @Test
+    public void poll() throws Exception {
+
+        queue.offer(1);
+        assertSame(1, queue.poll());
+        assertSame(null, queue.poll());
+    }
+
+    @Test
+    public void offerFailNullPointerException() throws Exception {
+
+        exception.expect(NullPointerException.class);
+        queue.offer(null);
+    }
+
+    @Test
+    public void switchKeepsOrder() throws Exception {
+
+        // switches to combining after every window of 4 and back after the next one
+        AdaptiveMostRecentlyInsertedQueue<Integer> flapping =
+                new AdaptiveMostRecentlyInsertedQueue<>(capacity, 4, 0, Double.MAX_VALUE);
+
+        for (int i = 0; i < 100; i++) {
+            flapping.offer(i);
+        }
+
+        assertEquals(true, flapping.switchCount() > 2);
+        assertEquals(capacity, flapping.size());
+
+        for (int i = 100 - capacity; i < 100; i++) {
+            assertSame(i, flapping.poll());
+        }
+        assertSame(null, flapping.poll());
+    }
+
+    @Test
+    public void noLostElementsWhileSwitching() throws Exception {
+
+        final int offers = 20000;
+        final AdaptiveMostRecentlyInsertedQueue<Integer> flapping =
+                new AdaptiveMostRecentlyInsertedQueue<>(threadCounter * offers, 64, 0, Double.MAX_VALUE);
+        final Set<Integer> polled = ConcurrentHashMap.newKeySet();
+        final CountDownLatch latch = new CountDownLatch(threadCounter);
+        ExecutorService service = Executors.newFixedThreadPool(threadCounter);
+
+        for (int t = 0; t < threadCounter; t++) {
+            final int base = t * offers;
+            service.execute(() -> {
+                for (int i = 0; i < offers; i++) {
+                    flapping.offer(base + i);
+                    if (i % 2 == 0) {
+                        Integer e = flapping.poll();
+                        if (e != null) {
+                            assertEquals(true, polled.add(e));
+                        }
+                    }
+                }
+                latch.countDown();
+            });
+        }
+
+        latch.await();
+        service.shutdown();
+
+        Set<Integer> all = new HashSet<>(polled);
+        Integer e;
+        while ((e = flapping.poll()) != null) {
+            assertEquals(true, all.add(e));
+        }
+
+        assertEquals(threadCounter * offers, all.size());
+        assertEquals(true, flapping.switchCount() > 0);
+    }
+}
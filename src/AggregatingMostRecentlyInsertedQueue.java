@@ -0,0 +1,156 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link MostRecentlyInsertedQueue} of longs which keeps statistics of its
+ * window up to date on every {@link #offer}, eviction and {@link #poll}, so
+ * reading them does not scan the window.
+ * <p>
+ * <p>Sum and count are invertible and kept as running values. Min and max are
+ * kept with monotonic deques of candidates: an element which is older and
+ * not smaller (resp. not larger) than a newer one can never become the
+ * minimum (resp. maximum) again and is dropped when the newer one arrives.
+ * Each element enters and leaves a deque once, so all updates are amortized
+ * O(1). Further statistics can be plugged in with {@link #aggregate}.
+ * <p>
+ * <p>The sum wraps around on overflow like <tt>long</tt> arithmetic. Like the
+ * queue it extends, this class is not thread-safe.
+ */
+public class AggregatingMostRecentlyInsertedQueue extends MostRecentlyInsertedQueue<Long> {
+
+    private long sum;
+    private final ArrayDeque<Long> minCandidates = new ArrayDeque<>();
+    private final ArrayDeque<Long> maxCandidates = new ArrayDeque<>();
+    private final List<SlidingWindowAggregate<Long, ?>> aggregates = new ArrayList<>();
+
+    public AggregatingMostRecentlyInsertedQueue(int capacity) {
+
+        super(capacity);
+    }
+
+    @Override
+    public boolean offer(Long e) {
+
+        if (!super.offer(e)) {
+            return false;
+        }
+
+        sum += e;
+
+        while (!minCandidates.isEmpty() && minCandidates.peekLast() > e) {
+            minCandidates.pollLast();
+        }
+        minCandidates.addLast(e);
+
+        while (!maxCandidates.isEmpty() && maxCandidates.peekLast() < e) {
+            maxCandidates.pollLast();
+        }
+        maxCandidates.addLast(e);
+
+        for (SlidingWindowAggregate<Long, ?> aggregate : aggregates) {
+            aggregate.push(e);
+        }
+
+        return true;
+    }
+
+    @Override
+    public Long poll() {
+
+        Long e = super.poll();
+
+        if (e != null) {
+            removed(e);
+        }
+
+        return e;
+    }
+
+    @Override
+    protected void evicted(Long e) {
+
+        removed(e);
+    }
+
+    private void removed(long e) {
+
+        sum -= e;
+
+        if (minCandidates.peekFirst() == e) {
+            minCandidates.pollFirst();
+        }
+
+        if (maxCandidates.peekFirst() == e) {
+            maxCandidates.pollFirst();
+        }
+
+        for (SlidingWindowAggregate<Long, ?> aggregate : aggregates) {
+            aggregate.pop();
+        }
+    }
+
+    /**
+     * Returns the sum of the elements in the window, 0 if it is empty.
+     */
+    public long getSum() {
+
+        return sum;
+    }
+
+    public int getCount() {
+
+        return size();
+    }
+
+    /**
+     * Returns the arithmetic mean of the elements in the window, or
+     * <tt>NaN</tt> if it is empty.
+     */
+    public double getMean() {
+
+        return size() == 0 ? Double.NaN : (double) sum / size();
+    }
+
+    /**
+     * Returns the smallest element in the window, or <tt>null</tt> if it is empty.
+     */
+    public Long getMin() {
+
+        return minCandidates.peekFirst();
+    }
+
+    /**
+     * Returns the largest element in the window, or <tt>null</tt> if it is empty.
+     */
+    public Long getMax() {
+
+        return maxCandidates.peekFirst();
+    }
+
+    /**
+     * Registers a custom aggregation over the window. The returned aggregate
+     * starts with the current content of the window and is maintained by
+     * every later change of the queue; read it with
+     * {@link SlidingWindowAggregate#get}.
+     *
+     * @param aggregator the associative aggregation to maintain
+     * @return the live aggregate of the window
+     */
+    public <A> SlidingWindowAggregate<Long, A> aggregate(WindowAggregator<? super Long, A> aggregator) {
+
+        SlidingWindowAggregate<Long, A> aggregate = new SlidingWindowAggregate<>(aggregator);
+
+        // rotate the window through the unaggregated operations instead of
+        // walking the shared iterator, whose position would leak to callers
+        for (int i = size(); i > 0; i--) {
+            Long e = super.poll();
+            super.offer(e);
+            aggregate.push(e);
+        }
+
+        aggregates.add(aggregate);
+
+        return aggregate;
+    }
+}
@@ -0,0 +1,127 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AggregatingMostRecentlyInsertedQueueTest {
+    private AggregatingMostRecentlyInsertedQueue queue;
+    private final int capacity = 10;
+
+    @Before
+    public void setUp() throws Exception {
+
+        queue = new AggregatingMostRecentlyInsertedQueue(capacity);
+    }
+
+    @Test
+    public void empty() throws Exception {
+
+        assertEquals(0, queue.getSum());
+        assertEquals(0, queue.getCount());
+        assertTrue(Double.isNaN(queue.getMean()));
+        assertNull(queue.getMin());
+        assertNull(queue.getMax());
+    }
+
+    @Test
+    public void evictionUpdatesAggregates() throws Exception {
+
+        for (long i = 1; i <= 15; i++) {
+            queue.offer(i);
+        }
+
+        assertEquals(10, queue.getCount());
+        assertEquals(6 + 7 + 8 + 9 + 10 + 11 + 12 + 13 + 14 + 15, queue.getSum());
+        assertEquals(10.5, queue.getMean(), 0.0);
+        assertEquals(Long.valueOf(6), queue.getMin());
+        assertEquals(Long.valueOf(15), queue.getMax());
+
+        assertEquals(Long.valueOf(6), queue.poll());
+        assertEquals(Long.valueOf(7), queue.getMin());
+
+        queue.clear();
+        assertEquals(0, queue.getSum());
+        assertNull(queue.getMax());
+    }
+
+    @Test
+    public void randomAgainstScan() throws Exception {
+
+        Random random = new Random(42);
+        ArrayDeque<Long> expected = new ArrayDeque<>();
+        SlidingWindowAggregate<Long, String> order = queue.aggregate(new Concatenation());
+
+        for (int i = 0; i < 20000; i++) {
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.poll(), queue.poll());
+            } else {
+                long value = random.nextInt(20) - 10;
+                queue.offer(value);
+                expected.add(value);
+                if (expected.size() > capacity) {
+                    expected.poll();
+                }
+            }
+
+            long sum = 0;
+            Long min = null;
+            Long max = null;
+            StringBuilder concatenation = new StringBuilder();
+
+            for (Long value : expected) {
+                sum += value;
+                min = min == null || value < min ? value : min;
+                max = max == null || value > max ? value : max;
+                concatenation.append(value).append(',');
+            }
+
+            assertEquals(expected.size(), queue.getCount());
+            assertEquals(sum, queue.getSum());
+            assertEquals(min, queue.getMin());
+            assertEquals(max, queue.getMax());
+            assertEquals(concatenation.toString(), order.get());
+        }
+    }
+
+    @Test
+    public void aggregateStartsWithContent() throws Exception {
+
+        queue.offer(3L);
+        queue.offer(4L);
+
+        SlidingWindowAggregate<Long, String> order = queue.aggregate(new Concatenation());
+        assertEquals("3,4,", order.get());
+        assertEquals(Long.valueOf(3), queue.peek());
+
+        queue.offer(5L);
+        queue.poll();
+        assertEquals("4,5,", order.get());
+    }
+
+    /**
+     * Not commutative, so it also checks the order of the combines.
+     */
+    private static class Concatenation implements WindowAggregator<Long, String> {
+
+        @Override
+        public String identity() {
+
+            return "";
+        }
+
+        @Override
+        public String lift(Long element) {
+
+            return element + ",";
+        }
+
+        @Override
+        public String combine(String older, String newer) {
+
+            return older + newer;
+        }
+    }
+}
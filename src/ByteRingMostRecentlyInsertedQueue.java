@@ -0,0 +1,418 @@
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * A most recently inserted queue which keeps its elements in serialized form,
+ * as length-prefixed records stored one after another in a single byte ring,
+ * either a heap array or a direct buffer.
+ * <p>
+ * <p>The capacity is a number of bytes. An offer encodes the element with the
+ * {@link Codec} and, if the record does not fit, evicts as many of the oldest
+ * records as needed to make room for it. Records are never split at the end
+ * of the ring: a record which does not fit before the end is written at the
+ * start and the bytes left over at the end are skipped. Elements are only
+ * decoded when they are read, by {@link #poll}, {@link #peek} or the
+ * iterator. {@link #offerRecord}, {@link #pollRecord}, {@link #drainRecords}
+ * and {@link #forEachRecord} move the raw record bytes without a codec and,
+ * on the read side, without copying them, for consumers which forward the
+ * records as they are.
+ * <p>
+ * <p>All operations are guarded by one lock. The iterator is weakly
+ * consistent: if records it has not reached yet are evicted, it goes on from
+ * the oldest record still in the queue. It does not support removal, records
+ * can only leave the ring from the head.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class ByteRingMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
+
+    /**
+     * Size of the length prefix of a record.
+     */
+    static final int HEADER = Integer.BYTES;
+
+    /**
+     * Length written at the end of the ring when the next record did not fit
+     * before the end. Less than {@link #HEADER} bytes left at the end are
+     * skipped without a marker.
+     */
+    private static final int PADDING = -1;
+
+    private final Object lock = new Object();
+
+    private final Codec<E> codec;
+    private final ByteBuffer ring;
+    private final int capacityBytes;
+
+    /**
+     * The view of the ring handed to the codec and to record consumers,
+     * positioned on one record at a time. Only used while holding the lock.
+     */
+    private final ByteBuffer view;
+
+    private int headOffset;
+    private int tailOffset;
+    private int usedBytes;
+    private volatile int count;
+
+    /**
+     * Sequence number of the oldest record and of the next record offered,
+     * used by the iterator to detect records evicted under it.
+     */
+    private long headSequence;
+    private long tailSequence;
+
+    private long evictedCount;
+
+    public ByteRingMostRecentlyInsertedQueue(int capacityBytes, Codec<E> codec) {
+
+        this(capacityBytes, codec, false);
+    }
+
+    /**
+     * @param capacityBytes the size of the ring, the max number of bytes
+     *                      taken by the records and their length prefixes
+     * @param codec         the codec used to encode offered and decode read elements
+     * @param direct        <tt>true</tt> to allocate the ring off-heap
+     */
+    public ByteRingMostRecentlyInsertedQueue(int capacityBytes, Codec<E> codec, boolean direct) {
+
+        if (capacityBytes <= HEADER) throw new IllegalArgumentException();
+        if (codec == null) throw new NullPointerException();
+
+        this.codec = codec;
+        this.capacityBytes = capacityBytes;
+        this.ring = direct ? ByteBuffer.allocateDirect(capacityBytes) : ByteBuffer.allocate(capacityBytes);
+        this.view = ring.asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes the element and inserts its record, evicting the oldest records
+     * as needed to make room.
+     *
+     * @return <tt>true</tt>
+     * @throws NullPointerException     if the specified element is null
+     * @throws IllegalArgumentException if the record is larger than the ring
+     */
+    @Override
+    public boolean offer(E e) {
+
+        if (e == null) throw new NullPointerException();
+
+        return offerRecord(ByteBuffer.wrap(codec.encode(e)));
+    }
+
+    /**
+     * Inserts the remaining bytes of the buffer as one record, as if they had
+     * been produced by the codec, evicting the oldest records as needed to
+     * make room. The position of the buffer is not changed.
+     *
+     * @return <tt>true</tt>
+     * @throws IllegalArgumentException if the record is larger than the ring
+     */
+    public boolean offerRecord(ByteBuffer record) {
+
+        int length = record.remaining();
+        int recordSize = HEADER + length;
+
+        if (recordSize > capacityBytes) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit in "
+                    + capacityBytes + " bytes");
+        }
+
+        synchronized (lock) {
+            int padding;
+
+            while (true) {
+                if (count == 0) {
+                    headOffset = 0;
+                    tailOffset = 0;
+                    usedBytes = 0;
+                }
+
+                padding = capacityBytes - tailOffset < recordSize ? capacityBytes - tailOffset : 0;
+
+                if (capacityBytes - usedBytes >= padding + recordSize) {
+                    break;
+                }
+
+                advanceHead();
+                evictedCount++;
+            }
+
+            if (padding > 0) {
+                if (padding >= HEADER) {
+                    ring.putInt(tailOffset, PADDING);
+                }
+                usedBytes += padding;
+                tailOffset = 0;
+            }
+
+            ring.putInt(tailOffset, length);
+            ring.put(tailOffset + HEADER, record, record.position(), length);
+
+            tailOffset += recordSize;
+            if (tailOffset == capacityBytes) {
+                tailOffset = 0;
+            }
+
+            usedBytes += recordSize;
+            tailSequence++;
+            count = count + 1;
+        }
+
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the oldest element, decoding it, or returns
+     * <tt>null</tt> if this queue is empty.
+     */
+    @Override
+    public E poll() {
+
+        synchronized (lock) {
+            if (count == 0) {
+                return null;
+            }
+
+            E item = codec.decode(viewOfHead());
+            advanceHead();
+
+            return item;
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the oldest element, decoding it, or
+     * returns <tt>null</tt> if this queue is empty.
+     */
+    @Override
+    public E peek() {
+
+        synchronized (lock) {
+            if (count == 0) {
+                return null;
+            }
+
+            return codec.decode(viewOfHead());
+        }
+    }
+
+    /**
+     * Hands the bytes of the oldest record to the action and removes the
+     * record.
+     * <p>
+     * <p>The action gets a read-only view of the ring positioned on the
+     * record, not a copy. It is called while holding the lock and the view
+     * is only valid during the call, it must not be kept.
+     *
+     * @return <tt>false</tt> if this queue is empty
+     */
+    public boolean pollRecord(Consumer<? super ByteBuffer> action) {
+
+        synchronized (lock) {
+            if (count == 0) {
+                return false;
+            }
+
+            action.accept(viewOfHead());
+            advanceHead();
+
+            return true;
+        }
+    }
+
+    /**
+     * Hands up to {@code max} of the oldest records to the action, oldest
+     * first, and removes them, under one lock acquisition. The view passed to
+     * the action follows the rules of {@link #pollRecord}.
+     *
+     * @return the number of records removed
+     */
+    public int drainRecords(Consumer<? super ByteBuffer> action, int max) {
+
+        int drained = 0;
+
+        synchronized (lock) {
+            while (drained < max && count > 0) {
+                action.accept(viewOfHead());
+                advanceHead();
+                drained++;
+            }
+        }
+
+        return drained;
+    }
+
+    /**
+     * Hands the bytes of every record to the action, oldest first, without
+     * removing them. The view passed to the action follows the rules of
+     * {@link #pollRecord}, and the action must not modify the queue.
+     */
+    public void forEachRecord(Consumer<? super ByteBuffer> action) {
+
+        synchronized (lock) {
+            int offset = headOffset;
+
+            for (int i = 0; i < count; i++) {
+                offset = skipPadding(offset);
+                action.accept(viewOf(offset));
+                offset = nextOffset(offset);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+
+        return count;
+    }
+
+    @Override
+    public void clear() {
+
+        synchronized (lock) {
+            headSequence = tailSequence;
+            headOffset = 0;
+            tailOffset = 0;
+            usedBytes = 0;
+            count = 0;
+        }
+    }
+
+    public int getCapacityBytes() {
+
+        return capacityBytes;
+    }
+
+    /**
+     * Returns the number of bytes taken by the records, their length prefixes
+     * and the bytes skipped at the end of the ring.
+     */
+    public int usedBytes() {
+
+        synchronized (lock) {
+            return usedBytes;
+        }
+    }
+
+    /**
+     * Returns the number of records evicted to make room for newer ones.
+     */
+    public long evictedCount() {
+
+        synchronized (lock) {
+            return evictedCount;
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+
+        return new RingIterator();
+    }
+
+    private class RingIterator implements Iterator<E> {
+
+        private long sequence;
+        private int offset;
+
+        RingIterator() {
+
+            synchronized (lock) {
+                sequence = headSequence;
+                offset = headOffset;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            synchronized (lock) {
+                return Math.max(sequence, headSequence) < tailSequence;
+            }
+        }
+
+        @Override
+        public E next() {
+
+            synchronized (lock) {
+                if (sequence <= headSequence) {
+                    // the records up to here have been evicted or polled
+                    sequence = headSequence;
+                    offset = headOffset;
+                }
+
+                if (sequence >= tailSequence) {
+                    throw new NoSuchElementException();
+                }
+
+                offset = skipPadding(offset);
+                E item = codec.decode(viewOf(offset));
+                offset = nextOffset(offset);
+                sequence++;
+
+                return item;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest record. Must be called while holding the lock with a
+     * non-empty queue.
+     */
+    private void advanceHead() {
+
+        int start = skipPadding(headOffset);
+        usedBytes -= start == headOffset ? 0 : capacityBytes - headOffset;
+
+        int next = nextOffset(start);
+        usedBytes -= HEADER + ring.getInt(start);
+
+        headOffset = next;
+        headSequence++;
+        count = count - 1;
+    }
+
+    private ByteBuffer viewOfHead() {
+
+        return viewOf(skipPadding(headOffset));
+    }
+
+    /**
+     * Positions the view on the bytes of the record at the offset.
+     */
+    private ByteBuffer viewOf(int offset) {
+
+        int length = ring.getInt(offset);
+
+        view.limit(offset + HEADER + length);
+        view.position(offset + HEADER);
+
+        return view;
+    }
+
+    /**
+     * Returns the offset of the record starting at or wrapped around from
+     * the offset.
+     */
+    private int skipPadding(int offset) {
+
+        if (capacityBytes - offset < HEADER || ring.getInt(offset) == PADDING) {
+            return 0;
+        }
+
+        return offset;
+    }
+
+    private int nextOffset(int offset) {
+
+        int next = offset + HEADER + ring.getInt(offset);
+
+        return next == capacityBytes ? 0 : next;
+    }
+}
@@ -0,0 +1,142 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ByteRingMostRecentlyInsertedQueueTest {
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void evictsWholeRecordsToFit() throws Exception {
+
+        ByteRingMostRecentlyInsertedQueue<String> queue = new ByteRingMostRecentlyInsertedQueue<>(64, new StringCodec());
+
+        for (String s : Arrays.asList("aaaaaaaaaa", "bbbbbbbbbb", "cccccccccc", "dddddddddd")) {
+            queue.offer(s);
+        }
+        assertEquals(4, queue.size());
+        assertEquals(56, queue.usedBytes());
+
+        queue.offer("eeeeeeeeeeeeeeeeeeee");
+        assertEquals(Arrays.asList("cccccccccc", "dddddddddd", "eeeeeeeeeeeeeeeeeeee"), new ArrayList<>(queue));
+        assertEquals(2, queue.evictedCount());
+        assertEquals(60, queue.usedBytes());
+
+        assertEquals("cccccccccc", queue.peek());
+        assertEquals("cccccccccc", queue.poll());
+        assertEquals(2, queue.size());
+
+        queue.clear();
+        assertNull(queue.poll());
+        assertEquals(0, queue.usedBytes());
+    }
+
+    @Test
+    public void keepsNewestSuffix() throws Exception {
+
+        for (boolean direct : new boolean[]{false, true}) {
+            ByteRingMostRecentlyInsertedQueue<String> queue =
+                    new ByteRingMostRecentlyInsertedQueue<>(200, new StringCodec(), direct);
+            ArrayDeque<String> offered = new ArrayDeque<>();
+            Random random = new Random(11);
+
+            for (int i = 0; i < 20000; i++) {
+                if (random.nextInt(4) == 0) {
+                    while (offered.size() > queue.size()) {
+                        offered.poll();
+                    }
+                    assertEquals(offered.poll(), queue.poll());
+                } else {
+                    char[] chars = new char[random.nextInt(60)];
+                    Arrays.fill(chars, (char) ('a' + i % 26));
+                    String s = i + ":" + new String(chars);
+                    queue.offer(s);
+                    offered.add(s);
+                }
+
+                while (offered.size() > queue.size()) {
+                    offered.poll();
+                }
+                assertEquals(new ArrayList<>(offered), new ArrayList<>(queue));
+                assertTrue(queue.usedBytes() <= queue.getCapacityBytes());
+            }
+        }
+    }
+
+    @Test
+    public void rawRecords() throws Exception {
+
+        ByteRingMostRecentlyInsertedQueue<String> queue = new ByteRingMostRecentlyInsertedQueue<>(64, new StringCodec(), true);
+        ByteBuffer source = ByteBuffer.wrap("xyz-record".getBytes(StandardCharsets.UTF_8));
+        source.position(4);
+
+        queue.offerRecord(source);
+        assertEquals(4, source.position());
+        queue.offer("second");
+        queue.offer("third");
+
+        List<String> seen = new ArrayList<>();
+        queue.forEachRecord(record -> {
+            assertTrue(record.isReadOnly());
+            seen.add(StandardCharsets.UTF_8.decode(record).toString());
+        });
+        assertEquals(Arrays.asList("record", "second", "third"), seen);
+
+        assertTrue(queue.pollRecord(record -> assertEquals(6, record.remaining())));
+        assertEquals(2, queue.drainRecords(record -> { }, 5));
+        assertFalse(queue.pollRecord(record -> fail()));
+    }
+
+    @Test
+    public void iteratorOverEvictedRecords() throws Exception {
+
+        ByteRingMostRecentlyInsertedQueue<String> queue = new ByteRingMostRecentlyInsertedQueue<>(20, new StringCodec());
+        queue.offer("one");
+        queue.offer("two");
+
+        Iterator<String> it = queue.iterator();
+        assertEquals("one", it.next());
+
+        queue.offer("three");
+        queue.offer("four");
+
+        assertTrue(it.hasNext());
+        assertEquals("three", it.next());
+        assertEquals("four", it.next());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void offerFailRecordTooLarge() throws Exception {
+
+        ByteRingMostRecentlyInsertedQueue<String> queue = new ByteRingMostRecentlyInsertedQueue<>(16, new StringCodec());
+        queue.offer("twelve bytes");
+
+        exception.expect(IllegalArgumentException.class);
+        queue.offer("thirteen byte");
+    }
+
+    static class StringCodec implements Codec<String> {
+        @Override
+        public byte[] encode(String element) {
+            return element.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(ByteBuffer buffer) {
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+        }
+    }
+}
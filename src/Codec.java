@@ -0,0 +1,26 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Converts queue elements to and from their binary form.
+ *
+ * @param <E> the type of elements handled by this codec
+ */
+public interface Codec<E> {
+
+    /**
+     * Encodes the element into a new byte array.
+     *
+     * @param element the element to encode, never <tt>null</tt>
+     * @return the encoded bytes
+     */
+    byte[] encode(E element);
+
+    /**
+     * Decodes one element. The buffer is positioned at the first byte of the
+     * record and its limit is set to the end of the record.
+     *
+     * @param buffer the record bytes
+     * @return the decoded element
+     */
+    E decode(ByteBuffer buffer);
+}
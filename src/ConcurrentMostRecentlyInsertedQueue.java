@@ -1,23 +1,198 @@
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Instant;
 import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
 
 public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
-    private final Object lock = new Object();
+    /**
+     * Max number of nodes a bulk removal visits before it releases the lock
+     * and lets producers in.
+     */
+    static final int BULK_REMOVE_CHUNK_SIZE = 1024;
+
+    /**
+     * Max number of elements {@link #forEach} visits, and a {@link Cursor}
+     * copies by default, per lock acquisition.
+     */
+    static final int ITERATION_CHUNK_SIZE = 256;
+
+
+    /**
+     * How many times a lock-free read of the newest elements is retried
+     * before it falls back to the lock.
+     */
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 4;
+
+    /**
+     * Returned by {@link #tryReadAt} when a concurrent change got in the way.
+     */
+    private static final Object RETRY = new Object();
+
+    /**
+     * Length the position index starts with, it grows with the queue up to
+     * the capacity.
+     */
+    static final int INITIAL_INDEX_LENGTH = 16;
+
+    /**
+     * Max size up to which {@link #contains} and {@link #toArray} scan the
+     * list optimistically instead of taking the lock.
+     */
+    static final int OPTIMISTIC_SCAN_LIMIT = 64;
+
+    static final int DEFAULT_PRODUCER_BUFFER_SIZE = 64;
+    static final long DEFAULT_PRODUCER_MAX_DELAY_MICROS = 1000;
+
+    protected final Object lock = new Object();
 
-    private final int maxQueueCapacity;
+    private volatile int maxQueueCapacity;
     private AtomicInteger currentQueueSize = new AtomicInteger(0);
 
     private volatile QueueItem<E> head;
     private volatile QueueItem<E> tail;
 
+    /**
+     * Incremented whenever a node in the middle of the list is unlinked, the only
+     * operation that rewrites links of nodes which stay in the queue.
+     */
+    private int relinkCounter;
+
+    /**
+     * Nodes by position, the node at position <tt>p</tt> is in slot
+     * <tt>p % length</tt>. Positions are consecutive from {@code headPosition}
+     * to {@code tailPosition}, so the window is at most one lap of the array.
+     * The array grows with the queue, doubling up to the capacity, and is
+     * replaced while the version is odd. A node's slot is cleared when it is
+     * unlinked, so the index does not keep removed elements reachable.
+     */
+    private volatile AtomicReferenceArray<QueueItem<E>> positionIndex;
+    private volatile long headPosition;
+    private volatile long tailPosition = -1;
+
+    /**
+     * Odd while the positions are stale because a node other than the head
+     * was unlinked, incremented again when they are renumbered. Lock-free
+     * readers only trust positions read under one even version.
+     */
+    private volatile long indexVersion;
+
+    /**
+     * Seqlock over the list: odd while a writer holding the lock changes
+     * links, even otherwise. Optimistic readers read it before and after
+     * their reads and retry if it moved, so writers never wait for them.
+     */
+    private volatile long writeSequence;
+
+    /**
+     * Nodes unlinked from the head kept for reuse by {@link #offer}, at most
+     * {@code nodePoolSize} of them. Only touched while holding the lock.
+     */
+    private final int nodePoolSize;
+    private final ArrayDeque<QueueItem<E>> freeNodes;
+
+    /**
+     * Insertion times by position, or <tt>null</tt> if they are not recorded.
+     */
+    private final InsertionTimeIndex insertionTimes;
+
+    /**
+     * <tt>null</tt> for the default drop-oldest behavior, so the default
+     * costs nothing but this check on a full queue. Guarded by the lock.
+     */
+    private OverflowPolicy<? super E> overflowPolicy;
+
+    /**
+     * Depth of the nested critical sections entered with {@link #beginBatch},
+     * which must not release the lock before they are done. Offers made
+     * inside them do not wait for room. Guarded by the lock.
+     */
+    private int batchDepth;
+
+    /**
+     * Source of the global insertion stamps, <tt>null</tt> if elements are
+     * not stamped. Guarded by the lock.
+     */
+    private InsertionSequence insertionSequence;
+
+    /**
+     * Consumers waiting with a {@link WaitStrategy#signalled} strategy,
+     * unparked by every offer.
+     */
+    private final ConcurrentLinkedQueue<Thread> signalledConsumers = new ConcurrentLinkedQueue<>();
+    private int roomWaiters;
+
+    private final QueueLatencyRecorder latencies = new QueueLatencyRecorder();
+
 
     public ConcurrentMostRecentlyInsertedQueue(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * Creates a queue which recycles its list nodes: nodes of polled and
+     * evicted elements are kept in a free list and reused by later offers,
+     * so a queue in steady state does not allocate per offer.
+     * <p>
+     * <p>Every node carries a generation which is incremented when it is
+     * recycled. Iterators and bulk removals remember the generation of the
+     * nodes they hold on to and treat a node whose generation moved as
+     * unlinked, so they never follow a reused node into the wrong place in
+     * the list. {@link #writeSnapshot} takes the lock for the whole copy in
+     * this mode.
+     *
+     * @param capacity     the capacity of the queue
+     * @param nodePoolSize the max number of free nodes kept for reuse,
+     *                     <tt>0</tt> turns recycling off
+     */
+    public ConcurrentMostRecentlyInsertedQueue(int capacity, int nodePoolSize) {
+        this(capacity, nodePoolSize, false);
+    }
+
+    /**
+     * Creates a queue which optionally records the insertion time of every
+     * element, for {@link #since} and {@link #between}. The time is taken
+     * from the monotonic clock once per offer, or once per {@link #addAll}
+     * batch, while holding the lock.
+     *
+     * @param capacity       the capacity of the queue
+     * @param nodePoolSize   the max number of free nodes kept for reuse,
+     *                       <tt>0</tt> turns recycling off
+     * @param insertionTimes whether to record insertion times
+     */
+    public ConcurrentMostRecentlyInsertedQueue(int capacity, int nodePoolSize, boolean insertionTimes) {
+
+        if (nodePoolSize < 0) throw new IllegalArgumentException();
+
         this.maxQueueCapacity = capacity;
+        this.positionIndex = new AtomicReferenceArray<>(indexLength(capacity, 0));
+        this.nodePoolSize = nodePoolSize;
+        this.freeNodes = nodePoolSize == 0 ? null : new ArrayDeque<>(Math.min(nodePoolSize, 1024));
+        this.insertionTimes = insertionTimes ? new InsertionTimeIndex(positionIndex.length()) : null;
     }
 
     public boolean isEmpty() {
@@ -27,8 +202,11 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
     public class QueueIterator implements Iterator<E> {
 
+        private final QueueItem<E> start;
         private QueueItem<E> previous;
         private QueueItem<E> current;
+        private int currentGeneration;
+        private boolean removable;
 
 //        for block free algorithm
 //        AtomicReference<QueueItem<E>> previous;
@@ -36,8 +214,9 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
         public QueueIterator(QueueItem<E> headQueue) {
 
-            this.current = new QueueItem<>();
-            this.current.setNext(headQueue);
+            this.start = new QueueItem<>();
+            this.start.setNext(headQueue);
+            this.current = start;
             this.previous = new QueueItem<>();
             this.previous.setNext(current);
 
@@ -48,47 +227,359 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
             assert current != null;
 
-            return current.getNext() != null;
+            return successor() != null;
+        }
+
+        /**
+         * Returns the node after the current one. If the current node has
+         * been recycled, everything up to it has been polled, so iteration
+         * goes on from the head.
+         */
+        private QueueItem<E> successor() {
+
+            if (current != start && current.getGeneration() != currentGeneration) {
+                return head;
+            }
+
+            return current.getNext();
         }
 
         @Override
         public  E next() { //synchronized faster, but have race condition?
 
+            long start = latencies.start();
+            E item;
+
             synchronized (lock) {
-                if (hasNext()) {
-                        previous = current;
-                        current = current.getNext();
-                        return current.getObject();
+                QueueItem<E> next = successor();
+
+                if (next != null) {
+                        previous = current.getGeneration() == currentGeneration ? current : this.start;
+                        current = next;
+                        currentGeneration = next.getGeneration();
+                        removable = true;
+                        item = next.getObject();
 
                 } else throw new NoSuchElementException();
             }
+
+            latencies.record(QueueLatencyRecorder.Operation.ITERATION, start);
+
+            return item;
         }
 
         @Override
         public  void remove() {
 
             synchronized (lock) {
-                if (hasNext()) {
-                    previous.setNext(current.getNext());
+                if (!removable) {
+                    throw new IllegalStateException();
+                }
 
-                    if (current == head) {
-                        head = head.getNext();
-                    }
+                if (current.getGeneration() != currentGeneration) {
+                    // polled and recycled since next(), nothing left to remove
+                    current = start;
+                    start.setNext(head);
+                    removable = false;
+                    return;
+                }
+
+                unlink(previous == start ? null : previous, current);
+
+                if (previous == start) {
+                    start.setNext(current.getNext());
+                }
+
+                current = previous;
+                removable = false;
+            }
+
+        }
+    }
+
+    /**
+     * Reusable cursor over the elements of the queue, from oldest to newest.
+     * <p>
+     * <p>The cursor copies the elements into its own buffer, a chunk of up to
+     * the buffer length per lock acquisition, and {@link #next()} hands them
+     * out without locking. {@link #reset} starts it over from the current
+     * head, so a thread which scans the queue periodically can keep one
+     * cursor and scan without allocating. Like the iterator the cursor is
+     * weakly consistent: a chunk is a consistent cut of the list, but
+     * elements offered or removed between two chunks may or may not be
+     * returned. If the last returned node has been polled and recycled the
+     * cursor goes on from the head.
+     * <p>
+     * <p>A cursor is meant to be used by a single thread and does not support
+     * {@link #remove}.
+     */
+    public class Cursor implements Iterator<E> {
+
+        private final Object[] buffer;
+        private int count;
+        private int index;
+        private QueueItem<E> last;
+        private int lastGeneration;
+        private boolean exhausted;
+
+        Cursor(int chunkSize) {
+
+            if (chunkSize <= 0) throw new IllegalArgumentException();
+
+            this.buffer = new Object[chunkSize];
+        }
 
+        /**
+         * Starts the cursor over from the current head of the queue.
+         */
+        public void reset() {
+
+            Arrays.fill(buffer, index, count, null);
+            count = 0;
+            index = 0;
+            last = null;
+            exhausted = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            if (index == count && !exhausted) {
+                index = 0;
+                count = copyNext(buffer, 0);
+            }
+
+            return index < count;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            E item = (E) buffer[index];
+            buffer[index++] = null;
+
+            return item;
+        }
+
+        /**
+         * Copies the next elements into the given array, as many as fit, and
+         * returns their number, <tt>0</tt> once the cursor is exhausted. The
+         * rest of the array is left as it is.
+         */
+        public int next(E[] batch) {
+
+            int n = 0;
+
+            while (n < batch.length && index < count) {
+                batch[n++] = next();
+            }
+
+            if (n < batch.length && !exhausted) {
+                n += copyNext(batch, n);
+            }
+
+            return n;
+        }
+
+        /**
+         * Copies the elements after the last returned one into the array from
+         * the offset on, under one lock acquisition.
+         */
+        private int copyNext(Object[] into, int offset) {
+
+            int n = offset;
+
+            synchronized (lock) {
+                QueueItem<E> current = last == null || last.getGeneration() != lastGeneration
+                        ? head : last.getNext();
+
+                while (n < into.length && current != null) {
+                    into[n++] = current.getObject();
+                    last = current;
+                    lastGeneration = current.getGeneration();
                     current = current.getNext();
-                } else {
-                    previous.setNext(null);
-                    if (current == tail) {
-                        tail = previous;
-                    }
-                    current.setNext(null);
                 }
-                queueSizeDecrease();
+
+                exhausted = current == null;
+            }
+
+            return n - offset;
+        }
+    }
+
+    /**
+     * Buffers the offers of one producer thread and publishes them to the
+     * queue in batches, so the shared lock is taken once per batch instead of
+     * once per element.
+     * <p>
+     * <p>A batch is published with {@link #addAll} when the buffer is full,
+     * on {@link #flush}, on {@link #close} and, if a max delay is set, by a
+     * shared timer thread once the oldest buffered element has waited for
+     * that long. The timer is armed when an element goes into an empty buffer
+     * and disarmed by every publish, so idle producers cost it nothing. Elements of one producer reach the queue in the order
+     * they were offered, and evictions caused by a batch happen oldest first
+     * as if the elements had been offered one by one. Batches of different
+     * producers are not interleaved.
+     * <p>
+     * <p>A producer is meant to be used by a single thread. Its buffer is
+     * still guarded by its own monitor, which is only ever contended by the
+     * timer.
+     */
+    public class Producer implements AutoCloseable {
+
+        private final Object[] buffer;
+        private final List<E> batch;
+        private int count;
+        private final long maxDelayNanos;
+        private ScheduledFuture<?> deadline;
+        private boolean closed;
+
+        @SuppressWarnings("unchecked")
+        Producer(int bufferSize, long maxDelay, TimeUnit unit) {
+
+            if (bufferSize <= 0 || maxDelay < 0) throw new IllegalArgumentException();
+
+            this.buffer = new Object[bufferSize];
+            this.batch = (List<E>) Arrays.asList(buffer);
+            this.maxDelayNanos = unit.toNanos(maxDelay);
+        }
+
+        /**
+         * Buffers the element, publishing the buffer if it is full.
+         *
+         * @throws NullPointerException  if the specified element is null
+         * @throws IllegalStateException if the producer is closed
+         */
+        public synchronized void offer(E e) {
+
+            if (e == null) throw new NullPointerException();
+            if (closed) throw new IllegalStateException("Producer is closed");
+
+            if (count == 0 && maxDelayNanos > 0) {
+                deadline = ProducerTimer.EXECUTOR.schedule(this::flushOnDeadline, maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+
+            buffer[count++] = e;
+
+            if (count == buffer.length) {
+                flush();
+            }
+        }
+
+        /**
+         * Publishes the buffered elements to the queue.
+         */
+        public synchronized void flush() {
+
+            if (count == 0) {
+                return;
+            }
+
+            if (deadline != null) {
+                deadline.cancel(false);
+                deadline = null;
+            }
+
+            try {
+                addAll(batch.subList(0, count));
+            } finally {
+                Arrays.fill(buffer, 0, count, null);
+                count = 0;
+            }
+        }
+
+        /**
+         * Returns the number of elements offered but not yet published.
+         */
+        public synchronized int buffered() {
+
+            return count;
+        }
+
+        /**
+         * Publishes the buffered elements from the timer. A deadline which
+         * fires while the producer is publishing its batch may find the next
+         * batch instead, which is then published early.
+         */
+        private synchronized void flushOnDeadline() {
+
+            try {
+                flush();
+            } catch (RuntimeException error) {
+                error.printStackTrace();
+            }
+        }
+
+        /**
+         * Publishes the buffered elements. Later offers are rejected.
+         */
+        @Override
+        public synchronized void close() {
+
+            if (closed) {
+                return;
             }
 
+            closed = true;
+
+            flush();
+        }
+    }
+
+    /**
+     * Holds the timer thread shared by all producers, started on first use.
+     */
+    private static final class ProducerTimer {
+
+        static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "queue-producer-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            EXECUTOR.setRemoveOnCancelPolicy(true);
         }
     }
 
+    /**
+     * Returns the number of producer deadlines waiting on the shared timer,
+     * for tests.
+     */
+    static int pendingProducerDeadlines() {
+
+        return ProducerTimer.EXECUTOR.getQueue().size();
+    }
+
+    /**
+     * Returns a new producer handle buffering up to
+     * {@value #DEFAULT_PRODUCER_BUFFER_SIZE} elements for at most
+     * {@value #DEFAULT_PRODUCER_MAX_DELAY_MICROS} microseconds.
+     */
+    public Producer producer() {
+
+        return producer(DEFAULT_PRODUCER_BUFFER_SIZE, DEFAULT_PRODUCER_MAX_DELAY_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Returns a new producer handle, see {@link Producer}. Close it when the
+     * producer thread is done, or its timer keeps a reference to it.
+     *
+     * @param bufferSize the number of elements published per batch at most
+     * @param maxDelay   how long an element may stay buffered,
+     *                   <tt>0</tt> publishes only when the buffer is full or flushed
+     * @param unit       the unit of <tt>maxDelay</tt>
+     */
+    public Producer producer(int bufferSize, long maxDelay, TimeUnit unit) {
+
+        return new Producer(bufferSize, maxDelay, unit);
+    }
+
     /**
      * Returns an iterator over the elements contained in this collection.
      *
@@ -100,6 +591,34 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
         return new QueueIterator(head);
     }
 
+    /**
+     * Returns a new reusable cursor copying {@value #ITERATION_CHUNK_SIZE}
+     * elements per lock acquisition, see {@link Cursor}.
+     */
+    public Cursor cursor() {
+
+        return new Cursor(ITERATION_CHUNK_SIZE);
+    }
+
+    /**
+     * Returns a new reusable cursor copying up to {@code chunkSize} elements
+     * per lock acquisition, see {@link Cursor}.
+     */
+    public Cursor cursor(int chunkSize) {
+
+        return new Cursor(chunkSize);
+    }
+
+    /**
+     * Returns the recorder of sampled operation latencies of this queue.
+     * Sampling is off until {@link QueueLatencyRecorder#setSampleEvery} is
+     * called.
+     */
+    public QueueLatencyRecorder latencies() {
+
+        return latencies;
+    }
+
     @Override
     public int size() {
 
@@ -138,105 +657,909 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
         if (e == null) throw new NullPointerException();
 
+        long start = latencies.start();
+
         try {
-            synchronized (lock) {
-                if (size() < maxQueueCapacity) {
+            boolean eviction = false;
 
-                    QueueItem<E> item = new QueueItem<>();
+            synchronized (lock) {
+                if (currentQueueSize.get() >= maxQueueCapacity && head != null) {
 
-                    item.setObject(e);
+                    if (overflowPolicy != null && !admitOverflow(e)) {
+                        latencies.record(QueueLatencyRecorder.Operation.OFFER, start);
+                        return false;
+                    }
 
-                    if (head == null) {
-                        head = item;
-                    } else {
-                        tail.setNext(item);
+                    if (currentQueueSize.get() >= maxQueueCapacity && head != null) {
+                        evicted(unlinkHead());
+                        eviction = true;
                     }
+                }
 
-                    tail = item;
+                if (currentQueueSize.get() >= positionIndex.length() && positionIndex.length() < maxQueueCapacity) {
+                    resizeIndex(indexLength(maxQueueCapacity, 2 * positionIndex.length()));
+                }
 
-                    queueSizeIncrease();
+                beginWrite();
 
-                    return true;
+                QueueItem<E> item = newItem();
 
-                } else {
+                item.setObject(e);
 
-                    poll();
-                    offer(e);
+                long position = tailPosition + 1;
+
+                if (insertionTimes != null) {
+                    long nanos = insertionTimes.next();
+                    item.setInsertionTime(nanos);
+                    insertionTimes.set(position, nanos);
                 }
 
-                return true;
+                item.setStamp(insertionSequence == null ? 0 : insertionSequence.next());
+                item.setPosition(position);
+                positionIndex.set(slot(position), item);
+
+                if (head == null) {
+                    head = item;
+                } else {
+                    tail.setNext(item);
+                }
+
+                tail = item;
+                tailPosition = position;
+
+                queueSizeIncrease();
+
+                endWrite();
             }
+
+            signalConsumers();
+
+            latencies.record(eviction ? QueueLatencyRecorder.Operation.OFFER_WITH_EVICTION
+                    : QueueLatencyRecorder.Operation.OFFER, start);
+
+            return true;
+
         } catch (ClassCastException error) {
             error.printStackTrace();
         }
 
-        return false;
+        return false;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting with the given
+     * strategy until an element is available.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public E take(WaitStrategy strategy) throws InterruptedException {
+
+        return await(strategy, Long.MAX_VALUE);
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting with the given
+     * strategy up to the timeout for an element to become available.
+     *
+     * @return the head of this queue, or <tt>null</tt> if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public E poll(long timeout, TimeUnit unit, WaitStrategy strategy) throws InterruptedException {
+
+        return await(strategy, unit.toNanos(timeout));
+    }
+
+    private E await(WaitStrategy strategy, long timeoutNanos) throws InterruptedException {
+
+        Objects.requireNonNull(strategy);
+
+        E item = poll();
+
+        if (item != null || timeoutNanos <= 0) {
+            return item;
+        }
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        boolean signalled = strategy.signalled();
+        Thread consumer = Thread.currentThread();
+
+        if (signalled) {
+            // registered before the next poll, so an offer after that poll unparks us
+            signalledConsumers.add(consumer);
+        }
+
+        try {
+            for (int attempt = 0; ; attempt = attempt < Integer.MAX_VALUE ? attempt + 1 : attempt) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                item = poll();
+
+                if (item != null) {
+                    return item;
+                }
+
+                long left = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+
+                if (left <= 0) {
+                    return null;
+                }
+
+                strategy.idle(attempt, left);
+            }
+        } finally {
+            if (signalled) {
+                signalledConsumers.remove(consumer);
+            }
+        }
+    }
+
+    private void signalConsumers() {
+
+        if (!signalledConsumers.isEmpty()) {
+            for (Thread consumer : signalledConsumers) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    /**
+     * Sets what {@link #offer} does when this queue is full. Offers made
+     * inside {@link #addAll}, and so by {@link Producer}s, do not wait for
+     * room even if the policy asks for it, the policy decides right away:
+     * waiting would release the lock in the middle of the batch.
+     *
+     * @param policy the policy, or <tt>null</tt> for the default, which evicts
+     *               the oldest element
+     */
+    public void setOverflowPolicy(OverflowPolicy<? super E> policy) {
+
+        synchronized (lock) {
+            overflowPolicy = policy;
+        }
+    }
+
+    /**
+     * Stamps every element offered from now on with the next value of the
+     * sequence, see {@link MergedMostRecentlyInsertedView}. Queues whose
+     * elements are to be merged share one sequence. Elements offered before
+     * are left unstamped. Stamps must keep increasing, so a sequence may only
+     * be replaced by one continuing above it.
+     *
+     * @param sequence the sequence
+     * @throws NullPointerException if the sequence is null
+     */
+    public void setInsertionSequence(InsertionSequence sequence) {
+
+        Objects.requireNonNull(sequence);
+
+        synchronized (lock) {
+            insertionSequence = sequence;
+        }
+    }
+
+    /**
+     * Copies the newest stamped elements whose stamp is below {@code before}
+     * into {@code elements}, newest first, and their stamps into
+     * {@code stamps}, at most as many as fit into both arrays. The first
+     * element is found by binary search over the stamps, so paging backwards
+     * through the queue costs O(log n) plus the elements copied per call,
+     * under one lock acquisition.
+     *
+     * @param before   the exclusive upper bound of the stamps, <tt>Long.MAX_VALUE</tt> to start from the newest element
+     * @param elements receives the elements
+     * @param stamps   receives their stamps
+     * @return the number of elements copied, <tt>0</tt> if there are no more
+     */
+    public int readStampedBefore(long before, Object[] elements, long[] stamps) {
+
+        int max = Math.min(elements.length, stamps.length);
+
+        synchronized (lock) {
+            if (head == null) {
+                return 0;
+            }
+
+            if ((indexVersion & 1) != 0) {
+                renumberPositions();
+            }
+
+            long first = firstStampedAtOrAbove(headPosition, tailPosition + 1, 1);
+            long upper = firstStampedAtOrAbove(first, tailPosition + 1, before);
+            int count = (int) Math.min(max, upper - first);
+
+            for (int i = 0; i < count; i++) {
+                QueueItem<E> item = positionIndex.get(slot(upper - 1 - i));
+
+                elements[i] = item.getObject();
+                stamps[i] = item.getStamp();
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * Returns the first position in [from, to) whose stamp is at least
+     * {@code stamp}, or {@code to} if there is none. Must be called while
+     * holding the lock with consecutive positions.
+     */
+    private long firstStampedAtOrAbove(long from, long to, long stamp) {
+
+        while (from < to) {
+            long middle = (from + to) >>> 1;
+
+            if (positionIndex.get(slot(middle)).getStamp() < stamp) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+
+        return from;
+    }
+
+    /**
+     * Applies the overflow policy to an offer to a full queue, waiting for
+     * room first if the policy asks for it. Must be called while holding the
+     * lock.
+     *
+     * @return <tt>false</tt> if the offered element is to be dropped
+     */
+    private boolean admitOverflow(E e) {
+
+        OverflowPolicy<? super E> policy = overflowPolicy;
+        long wait = batchDepth > 0 ? 0 : policy.waitNanos();
+
+        if (wait > 0) {
+            long deadline = System.nanoTime() + wait;
+
+            roomWaiters++;
+            try {
+                while (currentQueueSize.get() >= maxQueueCapacity && head != null) {
+                    long left = deadline - System.nanoTime();
+
+                    if (left <= 0) {
+                        break;
+                    }
+
+                    TimeUnit.NANOSECONDS.timedWait(lock, left);
+                }
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            } finally {
+                roomWaiters--;
+            }
+
+            if (currentQueueSize.get() < maxQueueCapacity || head == null) {
+                return true;
+            }
+        }
+
+        return policy.onOverflow(e);
+    }
+
+    /**
+     * Enters a critical section which must not be split: until the matching
+     * {@link #endBatch}, offers do not wait for room, as waiting would release
+     * the lock even though the caller holds it. Must be called while holding
+     * the lock.
+     */
+    protected final void beginBatch() {
+
+        batchDepth++;
+    }
+
+    /**
+     * Leaves the critical section entered by {@link #beginBatch}. Must be
+     * called while holding the lock.
+     */
+    protected final void endBatch() {
+
+        batchDepth--;
+    }
+
+    /**
+     * Wakes up offers waiting for room. Must be called while holding the lock.
+     */
+    private void signalRoom() {
+
+        if (roomWaiters > 0) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this queue,
+     * or returns <tt>null</tt> if this queue is empty.
+     *
+     * @return the head of this queue, or <tt>null</tt> if this queue is empty
+     */
+    @Override
+    public E poll() {
+
+        long start = latencies.start();
+        E item = null;
+
+        if (currentQueueSize.get() != 0) {
+            synchronized (lock) {
+
+                item = unlinkHead();
+            }
+        }
+
+        latencies.record(item != null ? QueueLatencyRecorder.Operation.POLL_HIT
+                : QueueLatencyRecorder.Operation.POLL_MISS, start);
+
+        return item;
+    }
+
+    /**
+     * Called while holding the lock when {@link #offer} pushes the oldest
+     * element out of a full queue. Does nothing by default.
+     *
+     * @param e the evicted element
+     */
+    protected void evicted(E e) {
+
+    }
+
+    /**
+     * Removes the head of the list. Must be called while holding the lock.
+     *
+     * @return the removed element, or <tt>null</tt> if the list is empty
+     */
+    private E unlinkHead() {
+
+        QueueItem<E> first = head;
+
+        if (first == null) {
+            return null;
+        }
+
+        beginWrite();
+
+        head = first.getNext();
+        headPosition = headPosition + 1;
+        first.setUnlinked();
+        clearSlot(first);
+
+        if (head == null) {
+            tail = null;
+        }
+
+        queueSizeDecrease();
+
+        E item = first.getObject();
+        recycle(first);
+
+        endWrite();
+        signalRoom();
+
+        return item;
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue,
+     * or returns <tt>null</tt> if this queue is empty.
+     *
+     * @return the head of this queue, or <tt>null</tt> if this queue is empty
+     */
+    @Override
+    public E peek() {
+
+        if (freeNodes == null) {
+            QueueItem<E> first = head;
+
+            return first == null ? null : first.getObject();
+        }
+
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            long sequence = writeSequence;
+
+            if ((sequence & 1) == 0) {
+                QueueItem<E> first = head;
+                E item = first == null ? null : first.getObject();
+
+                VarHandle.acquireFence();
+
+                if (writeSequence == sequence) {
+                    return item;
+                }
+            }
+
+            Thread.onSpinWait();
+        }
+
+        synchronized (lock) {
+            return head == null ? null : head.getObject();
+        }
+    }
+
+    /**
+     * Returns the current capacity of this queue.
+     */
+    public int getCapacity() {
+
+        return maxQueueCapacity;
+    }
+
+    /**
+     * Changes the capacity of this queue. If the queue holds more elements
+     * than the new capacity, the oldest ones are evicted right away, in order,
+     * through {@link #evicted}.
+     *
+     * @param capacity the new capacity
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public void setCapacity(int capacity) {
+
+        if (capacity <= 0) throw new IllegalArgumentException();
+
+        synchronized (lock) {
+            maxQueueCapacity = capacity;
+
+            while (currentQueueSize.get() > capacity) {
+                evicted(unlinkHead());
+            }
+
+            int length = indexLength(capacity, currentQueueSize.get());
+
+            if (positionIndex.length() != length) {
+                resizeIndex(length);
+            }
+
+            signalRoom();
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the newest element of this queue,
+     * or returns <tt>null</tt> if this queue is empty. Does not block.
+     *
+     * @return the tail of this queue, or <tt>null</tt> if this queue is empty
+     */
+    public E peekLast() {
+
+        return get(0);
+    }
+
+    /**
+     * Returns the element at the given distance from the newest one, without
+     * walking the list and, as long as no element other than the oldest was
+     * removed recently, without taking the lock.
+     *
+     * @param indexFromNewest <tt>0</tt> for the newest element, <tt>1</tt> for
+     *                        the one offered before it, and so on
+     * @return the element, or <tt>null</tt> if this queue holds no more than
+     * <tt>indexFromNewest</tt> elements
+     * @throws IndexOutOfBoundsException if the index is negative
+     */
+    public E get(int indexFromNewest) {
+
+        if (indexFromNewest < 0) throw new IndexOutOfBoundsException("Index: " + indexFromNewest);
+
+        Object item = RETRY;
+
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS && item == RETRY; attempt++) {
+            item = tryReadAt(indexFromNewest);
+        }
+
+        if (item == RETRY) {
+            synchronized (lock) {
+                if ((indexVersion & 1) != 0) {
+                    renumberPositions();
+                }
+
+                item = tryReadAt(indexFromNewest);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        E element = (E) item;
+
+        return element;
+    }
+
+    /**
+     * Returns the <tt>k</tt> newest elements of this queue, oldest first, or
+     * all of them if the queue holds fewer. Only the requested elements are
+     * read, directly by position, and the result is a consistent cut: it is
+     * the tail of the queue as it was at one point in time.
+     *
+     * @param k the maximum number of elements to return
+     * @return an unmodifiable list of the newest elements
+     * @throws IllegalArgumentException if <tt>k</tt> is negative
+     */
+    public List<E> latest(int k) {
+
+        if (k < 0) throw new IllegalArgumentException();
+
+        @SuppressWarnings("unchecked")
+        List<E> elements = (List<E>) Arrays.asList(readNewest(0, k));
+
+        return Collections.unmodifiableList(elements);
+    }
+
+    /**
+     * Reads up to {@code count} elements ending {@code skip} positions
+     * before the tail, optimistically first and under the lock if the
+     * optimistic reads keep failing or the positions are stale.
+     */
+    private Object[] readNewest(int skip, int count) {
+
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            Object[] elements = tryReadNewest(skip, count);
+
+            if (elements != null) {
+                return elements;
+            }
+        }
+
+        synchronized (lock) {
+            if ((indexVersion & 1) != 0) {
+                renumberPositions();
+            }
+
+            return tryReadNewest(skip, count);
+        }
+    }
+
+    /**
+     * Reads the single element {@code skip} positions before the tail like
+     * {@link #tryReadNewest}, without allocating a result array.
+     *
+     * @return the element, <tt>null</tt> if there is none at that position,
+     * or {@link #RETRY} if a concurrent change got in the way
+     */
+    private Object tryReadAt(int skip) {
+
+        long version = indexVersion;
+
+        if ((version & 1) != 0) {
+            return RETRY;
+        }
+
+        long first = headPosition;
+        long position = tailPosition - skip;
+
+        if (headPosition != first) {
+            return RETRY;
+        }
+
+        Object element = null;
+
+        if (position >= first) {
+            AtomicReferenceArray<QueueItem<E>> index = positionIndex;
+            QueueItem<E> item = index.get((int) (position % index.length()));
+
+            if (item == null || item.getPosition() != position) {
+                return RETRY;
+            }
+
+            element = item.getObject();
+
+            VarHandle.acquireFence();
+
+            if (item.getPosition() != position) {
+                return RETRY;
+            }
+        }
+
+        return indexVersion == version ? element : RETRY;
+    }
+
+    /**
+     * Reads the elements by position and validates them. The head position
+     * is read on both sides of the tail position, so the window bounds are
+     * those of one point in time, and a node found in its slot with the
+     * expected position was in the window at that time.
+     *
+     * @return the elements, oldest first, or <tt>null</tt> if a concurrent
+     * change got in the way
+     */
+    private Object[] tryReadNewest(int skip, int count) {
+
+        long version = indexVersion;
+
+        if ((version & 1) != 0) {
+            return null;
+        }
+
+        long first = headPosition;
+        long last = tailPosition - skip;
+
+        if (headPosition != first) {
+            return null;
+        }
+
+        int length = (int) Math.max(0, Math.min(count, last - first + 1));
+        Object[] elements = readPositions(positionIndex, last - length + 1, length);
+
+        return elements != null && indexVersion == version ? elements : null;
+    }
+
+    /**
+     * Reads the elements at consecutive positions, checking that every node
+     * is in its slot with the expected position before and after its element
+     * is read.
+     *
+     * @return the elements, or <tt>null</tt> if a node moved
+     */
+    private Object[] readPositions(AtomicReferenceArray<QueueItem<E>> index, long from, int length) {
+
+        Object[] elements = new Object[length];
+
+        for (int i = 0; i < length; i++) {
+            long position = from + i;
+            QueueItem<E> item = index.get((int) (position % index.length()));
+
+            if (item == null || item.getPosition() != position) {
+                return null;
+            }
+
+            elements[i] = item.getObject();
+
+            VarHandle.acquireFence();
+
+            if (item.getPosition() != position) {
+                return null;
+            }
+        }
+
+        return elements;
+    }
+
+    /**
+     * Returns the elements inserted at or after the given instant, oldest
+     * first, see {@link #between}.
+     */
+    public List<E> since(Instant from) {
+
+        return between(from, Instant.MAX);
+    }
+
+    /**
+     * Returns the elements inserted at or after <tt>from</tt> and before
+     * <tt>to</tt>, oldest first, as a consistent cut of the queue. The bounds
+     * are found by binary search over the insertion times, so the cost is
+     * O(log n + k) for k elements returned, without walking the list and,
+     * as long as no element other than the oldest was removed recently,
+     * without taking the lock.
+     * <p>
+     * <p>Insertion times come from the monotonic clock and are mapped to
+     * instants through the wall-clock time at which the queue was created,
+     * so a later adjustment of the wall clock is not followed.
+     *
+     * @throws IllegalStateException if this queue does not record insertion times
+     */
+    public List<E> between(Instant from, Instant to) {
+
+        if (insertionTimes == null) throw new IllegalStateException("Insertion times are not recorded");
+
+        long fromNanos = insertionTimes.toNanoTime(from);
+        long toNanos = insertionTimes.toNanoTime(to);
+
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            Object[] elements = tryReadBetween(fromNanos, toNanos);
+
+            if (elements != null) {
+                return asList(elements);
+            }
+        }
+
+        synchronized (lock) {
+            if ((indexVersion & 1) != 0) {
+                renumberPositions();
+            }
+
+            return asList(tryReadBetween(fromNanos, toNanos));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<E> asList(Object[] elements) {
+
+        return Collections.unmodifiableList((List<E>) Arrays.asList(elements));
+    }
+
+    /**
+     * Finds the positions in range through the insertion times and reads
+     * the elements, validated like {@link #tryReadNewest}.
+     *
+     * @return the elements, oldest first, or <tt>null</tt> if a concurrent
+     * change got in the way
+     */
+    private Object[] tryReadBetween(long fromNanos, long toNanos) {
+
+        long version = indexVersion;
+
+        if ((version & 1) != 0) {
+            return null;
+        }
+
+        long first = headPosition;
+        long last = tailPosition;
+
+        if (headPosition != first) {
+            return null;
+        }
+
+        AtomicReferenceArray<QueueItem<E>> index = positionIndex;
+        long[] range = insertionTimes.search(index.length(), first, last, fromNanos, toNanos);
+
+        if (range == null) {
+            return null;
+        }
+
+        Object[] elements = readPositions(index, range[0], (int) (range[1] - range[0]));
+
+        if (elements == null || headPosition > range[2]) {
+            return null;
+        }
+
+        return indexVersion == version ? elements : null;
+    }
+
+    /**
+     * Gives the nodes consecutive positions again after unlinks in the middle
+     * of the list. Must be called while holding the lock.
+     */
+    private void renumberPositions() {
+
+        long position = headPosition;
+
+        for (QueueItem<E> current = head; current != null; current = current.getNext()) {
+            if (insertionTimes != null) {
+                insertionTimes.set(position, current.getInsertionTime());
+            }
+            current.setPosition(position);
+            positionIndex.set(slot(position), current);
+            position++;
+        }
+
+        tailPosition = position - 1;
+        indexVersion++;
+    }
+
+    private int slot(long position) {
+
+        return (int) (position % positionIndex.length());
+    }
+
+    /**
+     * Removes the unlinked node from the position index unless its slot was
+     * already reused. Must be called while holding the lock.
+     */
+    private void clearSlot(QueueItem<E> item) {
+
+        positionIndex.compareAndSet(slot(item.getPosition()), item, null);
+    }
+
+    /**
+     * Replaces the position index by one of the given length and renumbers
+     * the nodes into it. Must be called while holding the lock.
+     */
+    private void resizeIndex(int length) {
+
+        if ((indexVersion & 1) == 0) {
+            indexVersion++;
+        }
+
+        positionIndex = new AtomicReferenceArray<>(length);
+        if (insertionTimes != null) {
+            insertionTimes.resize(length);
+        }
+        renumberPositions();
+    }
+
+    /**
+     * Returns the length of a position index holding the given number of
+     * nodes, at least {@value #INITIAL_INDEX_LENGTH} and at most the capacity.
+     */
+    private static int indexLength(int capacity, int size) {
+
+        return Math.max(1, Math.min(capacity, Math.max(INITIAL_INDEX_LENGTH, size)));
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuffer outputSting = new StringBuffer();
+
+        for (Object e : toArray()) {
+
+            outputSting.append(e.toString());
+        }
+        return "MostRecentlyInsertedQueue{" +
+                "currentQueueSize=" + currentQueueSize.get() + " content: " + outputSting +
+                '}';
     }
 
+
     /**
-     * Retrieves and removes the head of this queue,
-     * or returns <tt>null</tt> if this queue is empty.
+     * Writes the current content of this queue, oldest element first, in a
+     * compact length-prefixed binary format readable by {@link #readSnapshot},
+     * see {@link QueueSnapshot}.
+     * <p>
+     * <p>The lock is held only to capture the current head, tail and size.
+     * Since offers only append after the tail and polls only move the head,
+     * the captured nodes are collected without blocking producers. If a node
+     * in the middle of the list is unlinked concurrently the cut is taken
+     * again under the lock. Encoding and writing are done outside the lock.
      *
-     * @return the head of this queue, or <tt>null</tt> if this queue is empty
+     * @param out   the channel to write to, it is not closed
+     * @param codec the codec used to encode the elements
+     * @return the number of elements written
+     * @throws IOException if writing to the channel fails
      */
-    @Override
-    public E poll() {
-
-        if (size() == 0) {
-            return null;
-        }
-        synchronized (lock) {
-            E item = head.getObject();
+    public int writeSnapshot(WritableByteChannel out, Codec<E> codec) throws IOException {
 
-            head = head.getNext();
-
-            if (head == null) {
-                tail = null;
-            }
+        Object[] elements = captureSnapshot();
 
-            queueSizeDecrease();
+        QueueSnapshot.write(out, elements, codec);
 
-            return item;
-        }
+        return elements.length;
     }
 
     /**
-     * Retrieves, but does not remove, the head of this queue,
-     * or returns <tt>null</tt> if this queue is empty.
+     * Reads a snapshot written by {@link #writeSnapshot} and offers its
+     * elements to this queue in their original order. Records which would be
+     * evicted anyway because the snapshot is larger than the capacity of this
+     * queue are skipped without being decoded.
      *
-     * @return the head of this queue, or <tt>null</tt> if this queue is empty
+     * @param in    the channel to read from, it is not closed
+     * @param codec the codec used to decode the elements
+     * @return the number of elements added to this queue
+     * @throws IOException if reading fails or the data is not a snapshot
      */
-    @Override
-    public E peek() {
+    public int readSnapshot(ReadableByteChannel in, Codec<E> codec) throws IOException {
 
-        if (size() == 0) {
-            return null;
-        }
+        List<E> elements = QueueSnapshot.read(in, codec, maxQueueCapacity);
 
-        E item = head.getObject();
+        addAll(elements);
 
-        return item;
+        return elements.size();
     }
 
-    @Override
-    public String toString() {
+    /**
+     * Returns the elements for {@link #writeSnapshot}, oldest first.
+     */
+    private Object[] captureSnapshot() {
 
-        StringBuffer outputSting = new StringBuffer();
+        if (freeNodes != null) {
+            return toArray();
+        }
 
-        Iterator<E> it = iterator();
+        QueueItem<E> first;
+        QueueItem<E> last;
+        int count;
+        int relinks;
 
         synchronized (lock) {
-            while (it.hasNext()) {
+            first = head;
+            last = tail;
+            count = currentQueueSize.get();
+            relinks = relinkCounter;
+        }
+
+        Object[] elements = new Object[count];
+        QueueItem<E> current = first;
+
+        for (int i = 0; i < count && current != null; i++) {
+            elements[i] = current.getObject();
+            current = current == last ? null : current.getNext();
+        }
 
-                outputSting.append(it.next().toString());
+        synchronized (lock) {
+            if (relinks == relinkCounter) {
+                return elements;
             }
+            return toArray();
         }
-        return "MostRecentlyInsertedQueue{" +
-                "currentQueueSize=" + currentQueueSize.get() + " content: " + outputSting +
-                '}';
     }
 
-
     /**
      * Constructor for use by subclasses.
      */
@@ -244,6 +1567,10 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
         super();
         maxQueueCapacity = 0;
+        positionIndex = new AtomicReferenceArray<>(1);
+        nodePoolSize = 0;
+        freeNodes = null;
+        insertionTimes = null;
     }
 
     /**
@@ -337,6 +1664,10 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
      * having been successfully added when the associated exception is
      * thrown.
      *
+     * <p>
+     * <p>The lock is held for the whole operation, so the elements are added
+     * without other offers in between.
+     *
      * @param c collection containing elements to be added to this queue
      * @return <tt>true</tt> if this queue changed as a result of the call
      * @throws ClassCastException       if the class of an element of the specified
@@ -355,8 +1686,23 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
     public boolean addAll(Collection<? extends E> c) {
 
         synchronized (lock) {
+            beginBatch();
 
-            return super.addAll(c);
+            try {
+                if (insertionTimes == null) {
+                    return super.addAll(c);
+                }
+
+                insertionTimes.beginBatch();
+
+                try {
+                    return super.addAll(c);
+                } finally {
+                    insertionTimes.endBatch();
+                }
+            } finally {
+                endBatch();
+            }
         }
     }
 
@@ -365,6 +1711,8 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
      * <p>
      * <p>This implementation iterates over the elements in the collection,
      * checking each element in turn for equality with the specified element.
+     * Queues of at most {@value #OPTIMISTIC_SCAN_LIMIT} elements are scanned
+     * without the lock and the scan is retried if a writer got in the way.
      *
      * @param o
      * @throws ClassCastException   {@inheritDoc}
@@ -373,6 +1721,17 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
     @Override
     public boolean contains(Object o) {
 
+        Object[] elements = tryScan();
+
+        if (elements != null) {
+            for (Object e : elements) {
+                if (e.equals(o)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         synchronized (lock) {
 
             return super.contains(o);
@@ -391,6 +1750,8 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
      * concurrent modification during iteration.  The {@code size} method is
      * called only as an optimization hint; the correct result is returned
      * even if the iterator returns a different number of elements.
+     * Queues of at most {@value #OPTIMISTIC_SCAN_LIMIT} elements are copied
+     * without the lock and the copy is retried if a writer got in the way.
      * <p>
      * <p>This method is equivalent to:
      * <p>
@@ -404,6 +1765,12 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
     @Override
     public Object[] toArray() {
 
+        Object[] elements = tryScan();
+
+        if (elements != null) {
+            return elements;
+        }
+
         synchronized (lock) {
 
             return super.toArray();
@@ -450,24 +1817,31 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
     /**
      * {@inheritDoc}
      * <p>
-     * <p>This implementation iterates over the collection looking for the
-     * specified element.  If it finds the element, it removes the element
-     * from the collection using the iterator's remove method.
-     * <p>
-     * <p>Note that this implementation throws an
-     * <tt>UnsupportedOperationException</tt> if the iterator returned by this
-     * collection's iterator method does not implement the <tt>remove</tt>
-     * method and this collection contains the specified object.
+     * <p>This implementation walks the list once under the lock looking for
+     * the specified element and unlinks the first match in place.
      *
      * @param o
-     * @throws UnsupportedOperationException {@inheritDoc}
-     * @throws ClassCastException            {@inheritDoc}
-     * @throws NullPointerException          {@inheritDoc}
+     * @throws ClassCastException   {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
      */
     @Override
     public boolean remove(Object o) {
 
-        return super.remove(o);
+        if (o == null) return false;
+
+        synchronized (lock) {
+            QueueItem<E> previous = null;
+
+            for (QueueItem<E> current = head; current != null; current = current.getNext()) {
+                if (o.equals(current.getObject())) {
+                    unlink(previous, current);
+                    return true;
+                }
+                previous = current;
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -493,68 +1867,369 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
     }
 
     /**
-     * {@inheritDoc}
+     * Removes all of the elements of this queue that satisfy the given
+     * predicate, unlinking them in a single pass over the list.
+     * <p>
+     * <p>The list is scanned in chunks of at most
+     * {@value #BULK_REMOVE_CHUNK_SIZE} nodes and the lock is released between
+     * chunks, so producers are not stalled for the whole scan of a large queue.
+     * The result is weakly consistent: elements offered or polled by other
+     * threads while the scan is in progress may or may not be tested. If the
+     * last kept node is removed by another thread between two chunks the scan
+     * restarts from the current head, so the predicate may be evaluated more
+     * than once for a kept element.
+     *
+     * @param filter a predicate which returns <tt>true</tt> for elements to be
+     *               removed
+     * @return <tt>true</tt> if any elements were removed
+     * @throws NullPointerException if the specified filter is null
+     */
+    @Override
+    public boolean removeIf(Predicate<? super E> filter) {
+
+        Objects.requireNonNull(filter);
+
+        boolean removed = false;
+        QueueItem<E> previous = null;
+        int previousGeneration = 0;
+
+        while (true) {
+            synchronized (lock) {
+                if (previous != null && (previous.isUnlinked() || previous.getGeneration() != previousGeneration)) {
+                    previous = null;
+                }
+
+                QueueItem<E> current = previous == null ? head : previous.getNext();
+
+                for (int i = 0; i < BULK_REMOVE_CHUNK_SIZE && current != null; i++) {
+                    QueueItem<E> next = current.getNext();
+
+                    if (filter.test(current.getObject())) {
+                        unlink(previous, current);
+                        removed = true;
+                    } else {
+                        previous = current;
+                        previousGeneration = current.getGeneration();
+                    }
+
+                    current = next;
+                }
+
+                if (current == null) {
+                    return removed;
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs the action for every element of the queue, from oldest to
+     * newest, without allocating.
+     * <p>
+     * <p>The action is called while holding the lock, which is taken once per
+     * {@value #ITERATION_CHUNK_SIZE} elements and released in between, so it
+     * must be quick and must not modify the queue. Use {@link #forEachBatch}
+     * or a {@link Cursor} for slower actions. The traversal is weakly
+     * consistent in the same way as the {@link Cursor}.
+     *
+     * @throws NullPointerException if the specified action is null
+     */
+    @Override
+    public void forEach(Consumer<? super E> action) {
+
+        Objects.requireNonNull(action);
+
+        QueueItem<E> last = null;
+        int lastGeneration = 0;
+
+        while (true) {
+            synchronized (lock) {
+                QueueItem<E> current = last == null || last.getGeneration() != lastGeneration
+                        ? head : last.getNext();
+
+                for (int i = 0; i < ITERATION_CHUNK_SIZE && current != null; i++) {
+                    QueueItem<E> next = current.getNext();
+
+                    action.accept(current.getObject());
+                    last = current;
+                    lastGeneration = current.getGeneration();
+                    current = next;
+                }
+
+                if (current == null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the elements of the queue to the action in batches, from oldest
+     * to newest, without allocating.
      * <p>
-     * <p>This implementation iterates over this collection, checking each
-     * element returned by the iterator in turn to see if it's contained
-     * in the specified collection.  If it's so contained, it's removed from
-     * this collection with the iterator's <tt>remove</tt> method.
+     * <p>Every batch is copied into the given array under one lock
+     * acquisition and the action is called after the lock has been released,
+     * so it may take its time and may use the queue. The action gets the
+     * array and the number of elements copied into it, only the last batch
+     * may be shorter than the array. The same array is passed for every batch
+     * and is only valid during the call; the slots after the copied elements
+     * are cleared, so it never exposes elements of an earlier batch. The
+     * traversal is weakly consistent in the same way as the
+     * {@link Cursor}.
+     *
+     * @param batch  the array the batches are copied into, its length is the batch size
+     * @param action the action called once per batch with the array and the element count
+     * @throws IllegalArgumentException if the array is empty
+     * @throws NullPointerException     if the array or the action is null
+     */
+    public void forEachBatch(E[] batch, ObjIntConsumer<? super E[]> action) {
+
+        Objects.requireNonNull(action);
+
+        if (batch.length == 0) throw new IllegalArgumentException();
+
+        QueueItem<E> last = null;
+        int lastGeneration = 0;
+
+        while (true) {
+            int count = 0;
+            boolean exhausted;
+
+            synchronized (lock) {
+                QueueItem<E> current = last == null || last.getGeneration() != lastGeneration
+                        ? head : last.getNext();
+
+                while (count < batch.length && current != null) {
+                    batch[count++] = current.getObject();
+                    last = current;
+                    lastGeneration = current.getGeneration();
+                    current = current.getNext();
+                }
+
+                exhausted = current == null;
+            }
+
+            if (count == 0) {
+                return;
+            }
+
+            if (count < batch.length) {
+                Arrays.fill(batch, count, batch.length, null);
+            }
+
+            action.accept(batch, count);
+
+            if (exhausted) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
      * <p>
-     * <p>Note that this implementation will throw an
-     * <tt>UnsupportedOperationException</tt> if the iterator returned by the
-     * <tt>iterator</tt> method does not implement the <tt>remove</tt> method
-     * and this collection contains one or more elements in common with the
-     * specified collection.
+     * <p>This implementation delegates to {@link #removeIf}. A specified
+     * collection that is not a {@link Set} is copied into a {@link HashSet}
+     * first, so the whole operation is linear instead of O(n*m).
      *
      * @param c
-     * @throws UnsupportedOperationException {@inheritDoc}
-     * @throws ClassCastException            {@inheritDoc}
-     * @throws NullPointerException          {@inheritDoc}
+     * @throws ClassCastException   {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
      * @see #remove(Object)
      * @see #contains(Object)
      */
     @Override
     public boolean removeAll(Collection<?> c) {
 
-        synchronized (lock) {
+        Collection<?> lookup = asLookup(c);
 
-            return super.removeAll(c);
-        }
+        return !lookup.isEmpty() && removeIf(lookup::contains);
     }
 
     /**
      * {@inheritDoc}
      * <p>
-     * <p>This implementation iterates over this collection, checking each
-     * element returned by the iterator in turn to see if it's contained
-     * in the specified collection.  If it's not so contained, it's removed
-     * from this collection with the iterator's <tt>remove</tt> method.
-     * <p>
-     * <p>Note that this implementation will throw an
-     * <tt>UnsupportedOperationException</tt> if the iterator returned by the
-     * <tt>iterator</tt> method does not implement the <tt>remove</tt> method
-     * and this collection contains one or more elements not present in the
-     * specified collection.
+     * <p>This implementation delegates to {@link #removeIf}. A specified
+     * collection that is not a {@link Set} is copied into a {@link HashSet}
+     * first, so the whole operation is linear instead of O(n*m).
      *
      * @param c
-     * @throws UnsupportedOperationException {@inheritDoc}
-     * @throws ClassCastException            {@inheritDoc}
-     * @throws NullPointerException          {@inheritDoc}
+     * @throws ClassCastException   {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
      * @see #remove(Object)
      * @see #contains(Object)
      */
     @Override
     public boolean retainAll(Collection<?> c) {
 
-        synchronized (lock) {
+        Collection<?> lookup = asLookup(c);
+
+        return removeIf(e -> !lookup.contains(e));
+    }
+
+    private static Collection<?> asLookup(Collection<?> c) {
+
+        Objects.requireNonNull(c);
+
+        return c instanceof Set ? c : new HashSet<>(c);
+    }
+
+    /**
+     * Unlinks {@code item} from the list. Must be called while holding the lock.
+     *
+     * @param previous the node preceding {@code item}, or <tt>null</tt> if
+     *                 {@code item} is the head or its predecessor is not known
+     */
+    private void unlink(QueueItem<E> previous, QueueItem<E> item) {
+
+        if (item.isUnlinked()) {
+            return;
+        }
+
+        if (previous == null || previous.isUnlinked() || previous.getNext() != item) {
+            previous = null;
+
+            if (item != head) {
+                previous = head;
+
+                while (previous != null && previous.getNext() != item) {
+                    previous = previous.getNext();
+                }
+
+                if (previous == null) {
+                    return;
+                }
+            }
+        }
+
+        beginWrite();
+
+        if (previous == null) {
+            head = item.getNext();
+            headPosition = headPosition + 1;
+        } else {
+            previous.setNext(item.getNext());
+            relinkCounter++;
+
+            if ((indexVersion & 1) == 0) {
+                indexVersion++;
+            }
+        }
+
+        if (item == tail) {
+            tail = previous;
+        }
+
+        item.setUnlinked();
+        clearSlot(item);
+        queueSizeDecrease();
+
+        endWrite();
+        signalRoom();
+    }
+
+    /**
+     * Takes a node from the free list or allocates one. Must be called while
+     * holding the lock.
+     */
+    private QueueItem<E> newItem() {
+
+        QueueItem<E> item = freeNodes == null ? null : freeNodes.pollLast();
+
+        if (item == null) {
+            return new QueueItem<>();
+        }
+
+        item.setLinked();
+
+        return item;
+    }
+
+    /**
+     * Puts an unlinked node on the free list if there is room. The position
+     * is cleared first, so a lock-free reader which finds the node in the
+     * position index cannot mistake its next element for the old one. Must
+     * be called while holding the lock, in a write section.
+     */
+    private void recycle(QueueItem<E> item) {
+
+        if (freeNodes == null || freeNodes.size() >= nodePoolSize) {
+            return;
+        }
+
+        item.setPosition(-1);
+        VarHandle.storeStoreFence();
+
+        item.setObject(null);
+        item.setNext(null);
+        item.nextGeneration();
+
+        freeNodes.addLast(item);
+    }
+
+    /**
+     * Opens a write section of the seqlock. Must be called while holding the lock.
+     */
+    private void beginWrite() {
+
+        writeSequence = writeSequence + 1;
+        VarHandle.storeStoreFence();
+    }
+
+    private void endWrite() {
+
+        writeSequence = writeSequence + 1;
+    }
+
+    /**
+     * Copies the list if it holds at most {@value #OPTIMISTIC_SCAN_LIMIT}
+     * elements and no writer changed it during the copy.
+     *
+     * @return the elements, oldest first, or <tt>null</tt> if the queue is
+     * too large or a concurrent change got in the way
+     */
+    private Object[] tryScan() {
+
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            long sequence = writeSequence;
+
+            if ((sequence & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            int count = currentQueueSize.get();
+
+            if (count > OPTIMISTIC_SCAN_LIMIT) {
+                return null;
+            }
+
+            Object[] elements = new Object[count];
+            QueueItem<E> current = head;
+
+            for (int i = 0; i < count && current != null; i++) {
+                elements[i] = current.getObject();
+                current = current.getNext();
+            }
 
-            return super.retainAll(c);
+            VarHandle.acquireFence();
+
+            if (writeSequence == sequence) {
+                return elements;
+            }
         }
+
+        return null;
     }
 
     private class QueueItem<T> {
         private T item;
         private QueueItem<T> next;
+        private boolean unlinked;
+        private volatile long position;
+        private volatile int generation;
+        private long insertionTime;
+        private long stamp;
 
         public T getObject() {
 
@@ -575,6 +2250,61 @@ public class ConcurrentMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
             this.next = next;
         }
+
+        public boolean isUnlinked() {
+
+            return unlinked;
+        }
+
+        public void setUnlinked() {
+
+            this.unlinked = true;
+        }
+
+        public void setLinked() {
+
+            this.unlinked = false;
+        }
+
+        public long getInsertionTime() {
+
+            return insertionTime;
+        }
+
+        public void setInsertionTime(long insertionTime) {
+
+            this.insertionTime = insertionTime;
+        }
+
+        public long getStamp() {
+
+            return stamp;
+        }
+
+        public void setStamp(long stamp) {
+
+            this.stamp = stamp;
+        }
+
+        public int getGeneration() {
+
+            return generation;
+        }
+
+        public void nextGeneration() {
+
+            generation = generation + 1;
+        }
+
+        public long getPosition() {
+
+            return position;
+        }
+
+        public void setPosition(long position) {
+
+            this.position = position;
+        }
     }
 }
 
@@ -1,6 +1,12 @@
 import org.junit.*;
 import org.junit.rules.ExpectedException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -64,9 +70,862 @@ public class ConcurrentMostRecentlyInsertedQueueTest {
         runThreads(new TestExpressionRemove(), "remove");
     }
 
+    @Test
+    public void removeLast() throws Exception {
+
+        queue.offer(1);
+        queue.offer(2);
+        queue.remove(2);
+        queue.offer(3);
+
+        assertEquals(2, queue.size());
+        assertSame(1, queue.poll());
+        assertSame(3, queue.poll());
+        assertSame(null, queue.poll());
+    }
+
     @Test
     public void removeAll() throws Exception {
-        //todo
+
+        for (int i = 0; i < 10; i++) {
+            queue.offer(i);
+        }
+
+        assertEquals(true, queue.removeAll(Arrays.asList(0, 3, 9, 42)));
+        assertEquals(false, queue.removeAll(Arrays.asList(0, 42)));
+        assertEquals(7, queue.size());
+        assertArrayEquals(new Object[]{1, 2, 4, 5, 6, 7, 8}, queue.toArray());
+
+        queue.offer(10);
+        assertEquals(8, queue.size());
+        assertSame(10, queue.toArray()[7]);
+    }
+
+    @Test
+    public void retainAll() throws Exception {
+
+        for (int i = 0; i < 10; i++) {
+            queue.offer(i);
+        }
+
+        assertEquals(true, queue.retainAll(new HashSet<>(Arrays.asList(2, 5))));
+        assertArrayEquals(new Object[]{2, 5}, queue.toArray());
+
+        assertEquals(true, queue.retainAll(Collections.emptyList()));
+        assertEquals(true, queue.isEmpty());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void removeIf() throws Exception {
+
+        int capacity = ConcurrentMostRecentlyInsertedQueue.BULK_REMOVE_CHUNK_SIZE * 3 + 7;
+        Queue<Integer> bigQueue = new ConcurrentMostRecentlyInsertedQueue<>(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            bigQueue.offer(i);
+        }
+
+        assertEquals(true, bigQueue.removeIf(e -> e % 2 == 0));
+        assertEquals(false, bigQueue.removeIf(e -> e % 2 == 0));
+        assertEquals(capacity / 2, bigQueue.size());
+
+        int expected = 1;
+        for (Integer e : bigQueue) {
+            assertEquals(expected, e.intValue());
+            expected += 2;
+        }
+
+        bigQueue.offer(-1);
+        assertEquals(true, bigQueue.removeIf(e -> e < 0));
+        assertEquals(capacity / 2, bigQueue.size());
+        assertSame(1, bigQueue.peek());
+    }
+
+    @Test
+    public void iteratorRemove() throws Exception {
+
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+
+        Iterator<Integer> it = queue.iterator();
+        assertSame(1, it.next());
+        it.remove();
+        assertSame(2, it.next());
+        assertSame(3, it.next());
+        it.remove();
+        assertEquals(false, it.hasNext());
+
+        assertEquals(1, queue.size());
+        assertSame(2, queue.peek());
+
+        exception.expect(IllegalStateException.class);
+        it.remove();
+    }
+
+    @Test
+    public void removeIfThreads() throws Exception {
+        runThreads(new TestExpressionRemoveIf(), "removeIf");
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+
+        for (int i = 0; i < capacityQueue + 5; i++) {
+            queue.offer(i);
+        }
+        queue.remove(500);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int written = ((ConcurrentMostRecentlyInsertedQueue<Integer>) queue)
+                .writeSnapshot(Channels.newChannel(bytes), new IntegerCodec());
+
+        assertEquals(capacityQueue - 1, written);
+        assertEquals(3 * 4 + written * 8, bytes.size());
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> restored = new ConcurrentMostRecentlyInsertedQueue<>(capacityQueue);
+        int read = restored.readSnapshot(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())),
+                new IntegerCodec());
+
+        assertEquals(written, read);
+        assertArrayEquals(queue.toArray(), restored.toArray());
+    }
+
+    @Test
+    public void snapshotIntoSmallerQueue() throws Exception {
+
+        for (int i = 0; i < 10; i++) {
+            queue.offer(i);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ((ConcurrentMostRecentlyInsertedQueue<Integer>) queue).writeSnapshot(Channels.newChannel(bytes), new IntegerCodec());
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> restored = new ConcurrentMostRecentlyInsertedQueue<>(3);
+        restored.offer(100);
+
+        assertEquals(3, restored.readSnapshot(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())),
+                new IntegerCodec()));
+        assertArrayEquals(new Object[]{7, 8, 9}, restored.toArray());
+    }
+
+    @Test
+    public void snapshotFailOnGarbage() throws Exception {
+
+        exception.expect(IOException.class);
+        ((ConcurrentMostRecentlyInsertedQueue<Integer>) queue)
+                .readSnapshot(Channels.newChannel(new ByteArrayInputStream(new byte[16])), new IntegerCodec());
+    }
+
+    @Test
+    public void snapshotFailOnNegativeCountOrLength() throws Exception {
+
+        queue.offer(1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ((ConcurrentMostRecentlyInsertedQueue<Integer>) queue).writeSnapshot(Channels.newChannel(bytes), new IntegerCodec());
+
+        for (int offset : new int[]{8, 12}) {
+            byte[] corrupt = bytes.toByteArray();
+            ByteBuffer.wrap(corrupt).putInt(offset, -5);
+
+            try {
+                new ConcurrentMostRecentlyInsertedQueue<Integer>(10)
+                        .readSnapshot(Channels.newChannel(new ByteArrayInputStream(corrupt)), new IntegerCodec());
+                fail("offset " + offset);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void latencySampling() throws Exception {
+
+        QueueLatencyRecorder latencies = ((ConcurrentMostRecentlyInsertedQueue<Integer>) queue).latencies();
+
+        queue.offer(0);
+        assertEquals(0, latencies.snapshot().get(QueueLatencyRecorder.Operation.OFFER).getTotalCount());
+
+        latencies.setSampleEvery(1);
+
+        for (int i = 0; i < capacityQueue + 5; i++) {
+            queue.offer(i);
+        }
+        queue.poll();
+        queue.clear();
+        queue.poll();
+        for (Integer ignored : queue) {
+            fail();
+        }
+
+        Map<QueueLatencyRecorder.Operation, LatencyHistogram> snapshot = latencies.snapshot();
+
+        assertEquals(capacityQueue - 1, snapshot.get(QueueLatencyRecorder.Operation.OFFER).getTotalCount());
+        assertEquals(6, snapshot.get(QueueLatencyRecorder.Operation.OFFER_WITH_EVICTION).getTotalCount());
+        assertEquals(capacityQueue, snapshot.get(QueueLatencyRecorder.Operation.POLL_HIT).getTotalCount());
+        assertEquals(2, snapshot.get(QueueLatencyRecorder.Operation.POLL_MISS).getTotalCount());
+
+        latencies.setSampleEvery(0);
+        latencies.reset();
+        queue.offer(1);
+        assertEquals(0, latencies.snapshot().get(QueueLatencyRecorder.Operation.OFFER).getTotalCount());
+    }
+
+    @Test
+    public void newestByPosition() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(5);
+
+        assertNull(queue.peekLast());
+        assertNull(queue.get(0));
+        assertEquals(Collections.emptyList(), queue.latest(3));
+
+        for (int i = 1; i <= 8; i++) {
+            queue.offer(i);
+        }
+
+        assertEquals(Integer.valueOf(8), queue.peekLast());
+        assertEquals(Integer.valueOf(6), queue.get(2));
+        assertEquals(Integer.valueOf(4), queue.get(4));
+        assertNull(queue.get(5));
+        assertEquals(Arrays.asList(6, 7, 8), queue.latest(3));
+        assertEquals(Arrays.asList(4, 5, 6, 7, 8), queue.latest(10));
+
+        queue.poll();
+        assertNull(queue.get(4));
+        assertEquals(Arrays.asList(5, 6, 7, 8), queue.latest(10));
+
+        queue.remove(7);
+        queue.remove(8);
+        assertEquals(Integer.valueOf(6), queue.peekLast());
+        assertEquals(Arrays.asList(5, 6), queue.latest(10));
+
+        queue.offer(9);
+        queue.offer(10);
+        queue.offer(11);
+        queue.offer(12);
+        assertEquals(Arrays.asList(6, 9, 10, 11, 12), queue.latest(10));
+        assertEquals(Integer.valueOf(9), queue.get(3));
+
+        queue.clear();
+        assertNull(queue.peekLast());
+    }
+
+    @Test
+    public void positionIndexGrowsWithQueue() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> huge = new ConcurrentMostRecentlyInsertedQueue<>(Integer.MAX_VALUE,
+                0, true);
+        huge.offer(1);
+        assertEquals(Integer.valueOf(1), huge.peekLast());
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(1000, 0, true);
+        Instant start = Instant.now();
+
+        for (int i = 0; i < 1500; i++) {
+            queue.offer(i);
+        }
+
+        assertEquals(1000, queue.size());
+        assertEquals(Integer.valueOf(1499), queue.get(0));
+        assertEquals(Integer.valueOf(500), queue.get(999));
+        assertEquals(1000, queue.since(start).size());
+
+        queue.setCapacity(10);
+        assertEquals(Arrays.asList(1497, 1498, 1499), queue.latest(3));
+        queue.setCapacity(100);
+        for (int i = 0; i < 100; i++) {
+            queue.offer(i);
+        }
+        assertEquals(Integer.valueOf(0), queue.get(99));
+    }
+
+    @Test
+    public void removedElementsAreNotRetained() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Object> queue = new ConcurrentMostRecentlyInsertedQueue<>(10);
+        List<java.lang.ref.WeakReference<Object>> references = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            Object element = new Object();
+            references.add(new java.lang.ref.WeakReference<>(element));
+            queue.offer(element);
+        }
+
+        queue.poll();
+        queue.remove(references.get(5).get());
+        for (int i = 0; i < 3; i++) {
+            queue.offer(i);
+        }
+
+        for (int attempt = 0; attempt < 100 && references.get(5).get() != null; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        for (int i : new int[]{0, 1, 5}) {
+            assertNull("element " + i, references.get(i).get());
+        }
+        assertEquals(10, queue.size());
+    }
+
+    @Test
+    public void latestConsistentWithWriter() throws Exception {
+
+        final ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(100);
+        final int offers = 500000;
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < offers; i++) {
+                queue.offer(i);
+            }
+        });
+        writer.start();
+
+        int newest = -1;
+
+        while (writer.isAlive()) {
+            List<Integer> latest = queue.latest(20);
+
+            for (int i = 1; i < latest.size(); i++) {
+                assertEquals(latest.get(i - 1) + 1, (int) latest.get(i));
+            }
+
+            Integer last = queue.peekLast();
+            if (last != null) {
+                assertTrue(last >= newest);
+                newest = last;
+            }
+        }
+
+        writer.join();
+        assertEquals(Integer.valueOf(offers - 1), queue.peekLast());
+        assertEquals(Integer.valueOf(offers - 20), queue.latest(20).get(0));
+    }
+
+    @Test
+    public void optimisticReadsWithWriter() throws Exception {
+
+        final ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(8);
+        final int offers = 300000;
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < offers; i++) {
+                queue.offer(i);
+                if (i % 3 == 0) {
+                    queue.poll();
+                }
+            }
+        });
+        writer.start();
+
+        while (writer.isAlive()) {
+            Integer first = queue.peek();
+            Object[] elements = queue.toArray();
+
+            for (int i = 1; i < elements.length; i++) {
+                assertEquals((Integer) elements[i - 1] + 1, (int) (Integer) elements[i]);
+            }
+
+            if (first != null && elements.length > 0) {
+                assertTrue(first <= (Integer) elements[0]);
+                assertFalse(queue.contains(first - ConcurrentMostRecentlyInsertedQueue.OPTIMISTIC_SCAN_LIMIT));
+            }
+        }
+
+        writer.join();
+        assertEquals(Integer.valueOf(offers - 1), queue.peekLast());
+    }
+
+    @Test
+    public void nodeRecycling() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(10, 10);
+        ArrayDeque<Integer> expected = new ArrayDeque<>();
+        Random random = new Random(7);
+
+        queue.offer(-1);
+        Iterator<Integer> it = queue.iterator();
+        assertEquals(Integer.valueOf(-1), it.next());
+        queue.poll();
+
+        for (int i = 0; i < 10000; i++) {
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.poll(), queue.poll());
+            } else {
+                queue.offer(i);
+                expected.add(i);
+                if (expected.size() > 10) {
+                    expected.poll();
+                }
+            }
+        }
+
+        expected.clear();
+        for (Integer e : queue) {
+            expected.add(e);
+        }
+
+        assertEquals(new ArrayList<>(expected), queue.latest(10));
+        assertEquals(expected.peek(), queue.peek());
+
+        // the iterator stood on a node which has long been recycled, it goes on from the head
+        List<Integer> rest = new ArrayList<>();
+        while (it.hasNext()) {
+            rest.add(it.next());
+        }
+        assertEquals(new ArrayList<>(expected), rest);
+    }
+
+    @Test
+    public void nodeRecyclingThreads() throws Exception {
+
+        final ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(64, 64);
+        final int producers = 3;
+        final int offers = 100000;
+        final AtomicInteger failures = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < offers; i++) {
+                    queue.offer(producer * offers + i);
+                    if (i % 4 == 0) {
+                        queue.poll();
+                    }
+                    if (i % 1000 == 0) {
+                        queue.removeIf(e -> e % 7 == 0);
+                    }
+                }
+            }));
+        }
+
+        threads.add(new Thread(() -> {
+            while (threads.get(0).isAlive()) {
+                int[] last = new int[producers];
+                Arrays.fill(last, -1);
+
+                for (Iterator<Integer> it = queue.iterator(); it.hasNext(); ) {
+                    Integer e;
+                    try {
+                        e = it.next();
+                    } catch (NoSuchElementException end) {
+                        break;
+                    }
+                    if (e == null || e <= last[e / offers]) {
+                        failures.incrementAndGet();
+                        break;
+                    }
+                    last[e / offers] = e;
+                }
+
+                for (Integer e : queue.latest(16)) {
+                    if (e == null) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        }));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(queue.size(), queue.toArray().length);
+    }
+
+    @Test
+    public void nodeRecyclingDoesNotAllocate() throws Exception {
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> pooled = new ConcurrentMostRecentlyInsertedQueue<>(1000, 1000);
+        ConcurrentMostRecentlyInsertedQueue<Integer> plain = new ConcurrentMostRecentlyInsertedQueue<>(1000);
+        Integer[] values = new Integer[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+
+        long pooledBytes = 0;
+        long plainBytes = 0;
+
+        for (int round = 0; round < 3; round++) {
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < 200000; i++) {
+                pooled.offer(values[i % values.length]);
+            }
+            long middle = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < 200000; i++) {
+                plain.offer(values[i % values.length]);
+            }
+            pooledBytes = middle - before;
+            plainBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - middle;
+        }
+
+        assertTrue("pooled " + pooledBytes + " plain " + plainBytes, pooledBytes < plainBytes / 10);
+    }
+
+    @Test
+    public void internalIteration() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(1000);
+        for (int i = 0; i < 1500; i++) {
+            queue.offer(i);
+        }
+
+        List<Integer> visited = new ArrayList<>();
+        queue.forEach(visited::add);
+        assertEquals(new ArrayList<>(queue), visited);
+
+        List<Integer> batched = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        queue.forEachBatch(new Integer[300], (batch, count) -> {
+            batched.addAll(Arrays.asList(batch).subList(0, count));
+            sizes.add(count);
+        });
+        assertEquals(visited, batched);
+        assertEquals(Arrays.asList(300, 300, 300, 100), sizes);
+
+        ConcurrentMostRecentlyInsertedQueue<Integer>.Cursor cursor = queue.cursor(64);
+        for (int round = 0; round < 2; round++) {
+            cursor.reset();
+            List<Integer> read = new ArrayList<>();
+            while (cursor.hasNext()) {
+                read.add(cursor.next());
+            }
+            assertEquals(visited, read);
+        }
+
+        cursor.reset();
+        Integer[] batch = new Integer[700];
+        assertEquals(Integer.valueOf(500), cursor.next());
+        assertEquals(700, cursor.next(batch));
+        assertEquals(Integer.valueOf(501), batch[0]);
+        assertEquals(299, cursor.next(batch));
+        assertEquals(Integer.valueOf(1499), batch[298]);
+        assertEquals(0, cursor.next(batch));
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void cursorWithWriter() throws Exception {
+
+        final ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(100, 100);
+        final int offers = 300000;
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < offers; i++) {
+                queue.offer(i);
+                if (i % 3 == 0) {
+                    queue.poll();
+                }
+            }
+        });
+        writer.start();
+
+        ConcurrentMostRecentlyInsertedQueue<Integer>.Cursor cursor = queue.cursor(16);
+        Integer[] batch = new Integer[16];
+
+        while (writer.isAlive()) {
+            cursor.reset();
+            int previous = -1;
+            while (cursor.hasNext()) {
+                int next = cursor.next();
+                assertTrue(previous + " " + next, next > previous);
+                previous = next;
+            }
+
+            final int[] last = {-1};
+            queue.forEachBatch(batch, (elements, count) -> {
+                for (int i = 0; i < count; i++) {
+                    assertTrue(elements[i] > last[0]);
+                    last[0] = elements[i];
+                }
+            });
+        }
+
+        writer.join();
+    }
+
+    @Test
+    public void producerBatches() throws Exception {
+
+        final List<Integer> evicted = new ArrayList<>();
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<Integer>(5) {
+            @Override
+            protected void evicted(Integer e) {
+                evicted.add(e);
+            }
+        };
+
+        try (ConcurrentMostRecentlyInsertedQueue<Integer>.Producer producer = queue.producer(4, 0, TimeUnit.SECONDS)) {
+            for (int i = 0; i < 3; i++) {
+                producer.offer(i);
+            }
+            assertEquals(0, queue.size());
+            assertEquals(3, producer.buffered());
+
+            producer.offer(3);
+            assertEquals(Arrays.asList(0, 1, 2, 3), queue.latest(10));
+
+            for (int i = 4; i < 11; i++) {
+                producer.offer(i);
+            }
+            assertEquals(Arrays.asList(3, 4, 5, 6, 7), queue.latest(10));
+            assertEquals(Arrays.asList(0, 1, 2), evicted);
+
+            producer.flush();
+            assertEquals(Arrays.asList(6, 7, 8, 9, 10), queue.latest(10));
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), evicted);
+
+            producer.offer(11);
+        }
+
+        assertEquals(Integer.valueOf(11), queue.peekLast());
+    }
+
+    @Test
+    public void producerMaxDelay() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(10);
+        ConcurrentMostRecentlyInsertedQueue<Integer>.Producer producer = queue.producer(100, 20, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        producer.offer(1);
+
+        while (queue.isEmpty()) {
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            Thread.sleep(1);
+        }
+
+        assertEquals(0, producer.buffered());
+        producer.close();
+
+        exception.expect(IllegalStateException.class);
+        producer.offer(2);
+    }
+
+    @Test
+    public void idleProducersDoNotTick() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(10);
+        int before = ConcurrentMostRecentlyInsertedQueue.pendingProducerDeadlines();
+        List<ConcurrentMostRecentlyInsertedQueue<Integer>.Producer> producers = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            producers.add(queue.producer(10, 1, TimeUnit.MINUTES));
+        }
+        assertEquals(before, ConcurrentMostRecentlyInsertedQueue.pendingProducerDeadlines());
+
+        producers.get(0).offer(1);
+        producers.get(0).offer(2);
+        assertEquals(before + 1, ConcurrentMostRecentlyInsertedQueue.pendingProducerDeadlines());
+
+        producers.get(0).flush();
+        assertEquals(before, ConcurrentMostRecentlyInsertedQueue.pendingProducerDeadlines());
+        assertEquals(2, queue.size());
+
+        for (ConcurrentMostRecentlyInsertedQueue<Integer>.Producer producer : producers) {
+            producer.close();
+        }
+    }
+
+    @Test
+    public void producerThreads() throws Exception {
+
+        final int producers = 4;
+        final int offers = 100000;
+        final ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(producers * offers);
+
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(() -> {
+                try (ConcurrentMostRecentlyInsertedQueue<Integer>.Producer handle = queue.producer()) {
+                    for (int i = 0; i < offers; i++) {
+                        handle.offer(producer * offers + i);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(producers * offers, queue.size());
+
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+
+        for (Integer e : queue) {
+            assertTrue(e > last[e / offers]);
+            last[e / offers] = e;
+        }
+    }
+
+    @Test
+    public void insertionTimeRanges() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(6, 0, true);
+
+        Instant start = Instant.now();
+        queue.offer(1);
+        queue.offer(2);
+        Thread.sleep(30);
+        Instant middle = Instant.now();
+        Thread.sleep(30);
+        queue.addAll(Arrays.asList(3, 4, 5));
+        Thread.sleep(30);
+        Instant end = Instant.now();
+
+        assertEquals(Arrays.asList(3, 4, 5), queue.since(middle));
+        assertEquals(Arrays.asList(1, 2), queue.between(start.minusSeconds(1), middle));
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), queue.since(Instant.MIN));
+        assertEquals(Collections.emptyList(), queue.since(end));
+        assertEquals(Collections.emptyList(), queue.between(middle, middle));
+
+        queue.offer(6);
+        queue.offer(7);
+        assertEquals(Arrays.asList(2), queue.between(Instant.MIN, middle));
+
+        queue.remove(4);
+        assertEquals(Arrays.asList(3, 5), queue.between(middle, end));
+        assertEquals(Arrays.asList(6, 7), queue.since(end));
+
+        queue.setCapacity(2);
+        assertEquals(Arrays.asList(6, 7), queue.since(Instant.MIN));
+        assertEquals(Collections.emptyList(), queue.between(middle, end));
+    }
+
+    @Test
+    public void insertionTimesNotRecorded() throws Exception {
+
+        exception.expect(IllegalStateException.class);
+        new ConcurrentMostRecentlyInsertedQueue<Integer>(10).since(Instant.now());
+    }
+
+    @Test
+    public void insertionTimesWithWriter() throws Exception {
+
+        final ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(1000, 0, true);
+        final int offers = 300000;
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < offers; i++) {
+                queue.offer(i);
+            }
+        });
+        writer.start();
+
+        while (writer.isAlive()) {
+            List<Integer> recent = queue.since(Instant.now().minusMillis(1));
+
+            for (int i = 1; i < recent.size(); i++) {
+                assertEquals(recent.get(i - 1) + 1, (int) recent.get(i));
+            }
+        }
+
+        writer.join();
+        assertEquals(1000, queue.since(Instant.MIN).size());
+    }
+
+    @Test
+    public void overflowPolicies() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(3);
+        queue.addAll(Arrays.asList(1, 2, 3));
+
+        queue.setOverflowPolicy(OverflowPolicy.dropNewest());
+        assertFalse(queue.offer(4));
+        assertEquals(Arrays.asList(1, 2, 3), queue.latest(3));
+
+        List<Integer> handed = new ArrayList<>();
+        queue.setOverflowPolicy(OverflowPolicy.handTo(handed::add));
+        assertFalse(queue.offer(5));
+        assertEquals(Arrays.asList(5), handed);
+
+        queue.setOverflowPolicy(OverflowPolicy.sampling(3));
+        for (int i = 6; i < 13; i++) {
+            queue.offer(i);
+        }
+        assertEquals(Arrays.asList(6, 9, 12), queue.latest(3));
+
+        queue.setOverflowPolicy(OverflowPolicy.dropOldest());
+        assertTrue(queue.offer(13));
+        assertEquals(Arrays.asList(9, 12, 13), queue.latest(3));
+
+        queue.setOverflowPolicy(null);
+        assertTrue(queue.offer(14));
+        assertEquals(Arrays.asList(12, 13, 14), queue.latest(3));
+
+        queue.poll();
+        queue.setOverflowPolicy(OverflowPolicy.dropNewest());
+        assertTrue(queue.offer(15));
+        assertEquals(Arrays.asList(13, 14, 15), queue.latest(3));
+    }
+
+    @Test
+    public void overflowPolicyBlocks() throws Exception {
+
+        final ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(2);
+        queue.addAll(Arrays.asList(1, 2));
+        queue.setOverflowPolicy(OverflowPolicy.blockThenDropNewest(20, TimeUnit.MILLISECONDS));
+
+        long start = System.nanoTime();
+        assertFalse(queue.offer(3));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(Arrays.asList(1, 2), queue.latest(2));
+
+        queue.setOverflowPolicy(OverflowPolicy.blockThenDropNewest(10, TimeUnit.SECONDS));
+
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.poll();
+        });
+        consumer.start();
+
+        start = System.nanoTime();
+        assertTrue(queue.offer(4));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(Arrays.asList(2, 4), queue.latest(2));
+
+        consumer.join();
+    }
+
+    @Test
+    public void overflowPolicyDoesNotBlockInsideBatch() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(2);
+        queue.addAll(Arrays.asList(1, 2));
+        queue.setOverflowPolicy(OverflowPolicy.blockThenDropNewest(1, TimeUnit.MINUTES));
+
+        long start = System.nanoTime();
+        try {
+            queue.addAll(Arrays.asList(3, 4));
+            fail();
+        } catch (IllegalStateException full) {
+            // AbstractQueue#add on a dropped element
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertEquals(Arrays.asList(1, 2), queue.latest(2));
     }
 
     @Test
@@ -248,6 +1107,18 @@ public class ConcurrentMostRecentlyInsertedQueueTest {
     }
 
 
+    static class IntegerCodec implements Codec<Integer> {
+        @Override
+        public byte[] encode(Integer element) {
+            return ByteBuffer.allocate(4).putInt(element).array();
+        }
+
+        @Override
+        public Integer decode(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    }
+
     interface TestExecution {
         boolean test();
     }
@@ -360,6 +1231,20 @@ public class ConcurrentMostRecentlyInsertedQueueTest {
         }
     }
 
+    private class TestExpressionRemoveIf implements TestExecution {
+        private int innerCounter;
+
+        @Override
+        public boolean test() {
+
+            innerCounter++;
+            if (innerCounter % 100 == 0) {
+                return queue.removeIf(e -> e % 7 == 0);
+            }
+            return false;
+        }
+    }
+
     private class TestExpressionOffer implements TestExecution {
         @Override
         public boolean test() {
@@ -0,0 +1,139 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ConcurrentMostRecentlyInsertedQueue} which writes every accepted
+ * element to an {@link OfferJournal} and only returns from {@link #offer} once
+ * the element is durable. Concurrent offers share one group commit.
+ * <p>
+ * <p>On construction the last <tt>capacity</tt> records found in the journal
+ * directory are replayed into the queue. Polls are not journaled, so an
+ * element that was polled but is still among the last <tt>capacity</tt>
+ * offered ones comes back after a restart.
+ * <p>
+ * <p>An element dropped by the {@link OverflowPolicy} is not journaled and
+ * <tt>offer</tt> returns <tt>false</tt> for it. Offers never wait for room,
+ * even with a blocking policy, because the lock is held across the queue
+ * insert and the journal append to keep both in the same order; the policy
+ * decides right away instead.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class DurableMostRecentlyInsertedQueue<E> extends ConcurrentMostRecentlyInsertedQueue<E> implements Closeable {
+
+    private final OfferJournal<E> journal;
+
+    /**
+     * @param capacity       the capacity of the queue and of the recoverable window
+     * @param directory      the journal directory
+     * @param codec          the codec used to write and replay the elements
+     * @param maxCommitDelay how long an offer may wait for other offers to share its commit
+     * @param unit           the unit of <tt>maxCommitDelay</tt>
+     * @throws IOException if the journal cannot be read or opened
+     */
+    public DurableMostRecentlyInsertedQueue(int capacity, Path directory, Codec<E> codec,
+                                            long maxCommitDelay, TimeUnit unit) throws IOException {
+
+        super(capacity);
+
+        for (E e : OfferJournal.recover(directory, codec, capacity)) {
+            super.offer(e);
+        }
+
+        this.journal = new OfferJournal<>(directory, codec, capacity, Math.max(1024, capacity / 4),
+                maxCommitDelay, unit);
+    }
+
+    /**
+     * Inserts the element and blocks until it has been committed to the
+     * journal.
+     *
+     * @return <tt>false</tt> if the overflow policy dropped the element, which
+     * is then not journaled
+     * @throws java.io.UncheckedIOException if the journal could not be written
+     * @throws IllegalStateException        if the queue is closed
+     */
+    @Override
+    public boolean offer(E e) {
+
+        if (e == null) throw new NullPointerException();
+
+        long sequence;
+
+        synchronized (lock) {
+            sequence = admitAndAppend(e);
+        }
+
+        if (sequence < 0) {
+            return false;
+        }
+
+        journal.awaitDurable(sequence);
+
+        return true;
+    }
+
+    /**
+     * Inserts all elements under one lock acquisition and blocks until the
+     * last of them has been committed to the journal. Elements dropped by the
+     * overflow policy are skipped.
+     *
+     * @return <tt>true</tt> if at least one element was inserted
+     */
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+
+        if (c == this) throw new IllegalArgumentException();
+
+        long sequence = -1;
+
+        synchronized (lock) {
+            for (E e : c) {
+                if (e == null) throw new NullPointerException();
+
+                sequence = Math.max(sequence, admitAndAppend(e));
+            }
+        }
+
+        if (sequence < 0) {
+            return false;
+        }
+
+        journal.awaitDurable(sequence);
+
+        return true;
+    }
+
+    /**
+     * Offers the element to the queue and journals it if it was inserted,
+     * without releasing the lock in between. Must be called while holding
+     * the lock.
+     *
+     * @return the journal sequence, or <tt>-1</tt> if the element was dropped
+     */
+    private long admitAndAppend(E e) {
+
+        if (journal.isClosed()) throw new IllegalStateException("Journal is closed");
+
+        beginBatch();
+
+        try {
+            return super.offer(e) ? journal.append(e) : -1;
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Commits the pending records and closes the journal. Offers made after
+     * this call fail with an <tt>IllegalStateException</tt>.
+     */
+    @Override
+    public void close() throws IOException {
+
+        journal.close();
+    }
+}
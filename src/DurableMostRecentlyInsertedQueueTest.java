@@ -0,0 +1,181 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class DurableMostRecentlyInsertedQueueTest {
+
+    private final int capacity = 10;
+    private Path directory;
+    private DurableMostRecentlyInsertedQueue<Integer> queue;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void setUp() throws Exception {
+
+        directory = folder.getRoot().toPath().resolve("journal");
+        queue = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        queue.close();
+    }
+
+    private DurableMostRecentlyInsertedQueue<Integer> open() throws Exception {
+
+        return new DurableMostRecentlyInsertedQueue<>(capacity, directory,
+                new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec(), 1, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void recover() throws Exception {
+
+        for (int i = 0; i < capacity + 3; i++) {
+            assertEquals(true, queue.offer(i));
+        }
+        queue.close();
+
+        queue = open();
+
+        assertEquals(capacity, queue.size());
+        assertSame(3, queue.peek());
+
+        queue.offer(100);
+        queue.close();
+
+        queue = open();
+
+        assertEquals(capacity, queue.size());
+        assertSame(4, queue.peek());
+    }
+
+    @Test
+    public void recoverIgnoresTornRecord() throws Exception {
+
+        queue.offer(1);
+        queue.offer(2);
+        queue.close();
+
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().get();
+        }
+        Files.write(segment, new byte[]{0, 0, 0, 4, 1, 2}, StandardOpenOption.APPEND);
+
+        queue = open();
+        queue.offer(3);
+        queue.close();
+
+        queue = open();
+
+        // the last capacity journaled offers, without 100, 101, 102 and 104
+        assertArrayEquals(new Object[]{1, 2, 3}, queue.toArray());
+    }
+
+    @Test
+    public void journalStaysBounded() throws Exception {
+
+        for (int i = 0; i < 10000; i++) {
+            queue.offer(i);
+        }
+
+        long records;
+        try (Stream<Path> files = Files.list(directory)) {
+            records = files.mapToLong(file -> file.toFile().length()).sum() / 12;
+        }
+
+        assertEquals(true, records <= 1024 + capacity);
+    }
+
+    @Test
+    public void concurrentOffers() throws Exception {
+
+        final int threads = 8;
+        final int offers = 200;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        ExecutorService service = Executors.newFixedThreadPool(threads);
+
+        for (int t = 0; t < threads; t++) {
+            service.execute(() -> {
+                for (int i = 0; i < offers; i++) {
+                    queue.offer(i);
+                }
+                latch.countDown();
+            });
+        }
+
+        latch.await();
+        service.shutdown();
+
+        Object[] before = queue.toArray();
+        queue.close();
+        queue = open();
+
+        assertArrayEquals(before, queue.toArray());
+    }
+
+    @Test
+    public void droppedElementsAreNotJournaled() throws Exception {
+
+        queue.setOverflowPolicy(OverflowPolicy.dropNewest());
+
+        for (int i = 0; i < capacity; i++) {
+            assertEquals(true, queue.offer(i));
+        }
+        assertEquals(false, queue.offer(100));
+        assertEquals(false, queue.addAll(java.util.Arrays.asList(101, 102)));
+
+        queue.poll();
+        assertEquals(true, queue.addAll(java.util.Arrays.asList(103, 104)));
+        assertEquals(Integer.valueOf(103), queue.peekLast());
+        queue.close();
+
+        queue = open();
+
+        // the last capacity journaled offers, without 100, 101, 102 and 104
+        assertArrayEquals(new Object[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 103}, new java.util.ArrayList<>(queue).toArray());
+    }
+
+    @Test
+    public void blockingPolicyDoesNotWait() throws Exception {
+
+        queue.setOverflowPolicy(OverflowPolicy.blockThenDropNewest(1, TimeUnit.MINUTES));
+
+        for (int i = 0; i < capacity; i++) {
+            queue.offer(i);
+        }
+
+        long start = System.nanoTime();
+        assertEquals(false, queue.offer(100));
+        assertEquals(true, System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    public void offerFailAfterClose() throws Exception {
+
+        queue.close();
+
+        exception.expect(IllegalStateException.class);
+        queue.offer(1);
+    }
+}
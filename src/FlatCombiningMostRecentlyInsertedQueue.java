@@ -0,0 +1,422 @@
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A most-recently-inserted queue built on flat combining for heavily
+ * contended offers and polls.
+ * <p>
+ * <p>Instead of every thread fighting for one lock, a thread publishes its
+ * {@link #offer} or {@link #poll} in its own request record and spins on it.
+ * Whichever thread gets the combiner lock scans all records and applies the
+ * pending requests in one pass over a ring buffer: polls are answered first,
+ * then all offers of the pass are appended with a single eviction computation
+ * for the whole batch. The ring stays hot in the cache of the combining core
+ * and the lock is taken once per batch instead of once per operation.
+ * <p>
+ * <p>Other operations run under the combiner lock directly. The iterator works
+ * on a copy of the content taken at creation and does not support
+ * <tt>remove</tt>, like the one of {@link MostRecentlyInsertedQueue}.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class FlatCombiningMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
+
+    private static final int NONE = 0;
+    private static final int OFFER = 1;
+    private static final int POLL = 2;
+
+    /**
+     * How many times the combiner scans the records before giving up the lock.
+     */
+    private static final int COMBINING_PASSES = 2;
+
+    /**
+     * How long a waiting thread spins on its request before it tries the
+     * combiner lock again or, if the lock is busy, yields its time slice.
+     */
+    private static final int MAX_SPINS = 64;
+
+    /**
+     * Records of threads which have not published anything for this many
+     * combining passes are dropped from the list.
+     */
+    private static final int RECORD_EXPIRY_PASSES = 10000;
+
+    private final int maxQueueCapacity;
+    private final Object[] ring;
+    private int head;
+    private volatile int currentQueueSize;
+
+    protected final ReentrantLock combinerLock = new ReentrantLock();
+    private final AtomicReference<Request<E>> requests = new AtomicReference<>();
+    private final ThreadLocal<Request<E>> threadRequest = ThreadLocal.withInitial(Request::new);
+
+    private Request<?>[] pendingOffers = new Request<?>[16];
+    private int combiningPass;
+
+    public FlatCombiningMostRecentlyInsertedQueue(int capacity) {
+
+        if (capacity <= 0) throw new IllegalArgumentException();
+
+        this.maxQueueCapacity = capacity;
+        this.ring = new Object[capacity];
+    }
+
+    /**
+     * Inserts the specified element, evicting the oldest element if the queue
+     * is full.
+     *
+     * @param e the element to add
+     * @return <tt>true</tt>
+     * @throws NullPointerException if the specified element is null
+     */
+    @Override
+    public boolean offer(E e) {
+
+        if (e == null) throw new NullPointerException();
+
+        Request<E> request = threadRequest.get();
+        request.item = e;
+        publish(request, OFFER);
+
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue,
+     * or returns <tt>null</tt> if this queue is empty.
+     *
+     * @return the head of this queue, or <tt>null</tt> if this queue is empty
+     */
+    @Override
+    public E poll() {
+
+        if (currentQueueSize == 0) {
+            return null;
+        }
+
+        Request<E> request = threadRequest.get();
+        publish(request, POLL);
+
+        E item = request.result;
+        request.result = null;
+
+        return item;
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue,
+     * or returns <tt>null</tt> if this queue is empty.
+     *
+     * @return the head of this queue, or <tt>null</tt> if this queue is empty
+     */
+    @Override
+    public E peek() {
+
+        combinerLock.lock();
+        try {
+            combine();
+            return currentQueueSize == 0 ? null : elementAt(0);
+        } finally {
+            combinerLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+
+        return currentQueueSize;
+    }
+
+    @Override
+    public boolean isEmpty() {
+
+        return currentQueueSize == 0;
+    }
+
+    /**
+     * Returns an iterator over a copy of the elements in this queue taken
+     * when the iterator is created.
+     *
+     * @return an iterator over the elements contained in this collection
+     */
+    @Override
+    public Iterator<E> iterator() {
+
+        @SuppressWarnings("unchecked")
+        final E[] snapshot = (E[]) toArray();
+
+        return new Iterator<E>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+
+                return index < snapshot.length;
+            }
+
+            @Override
+            public E next() {
+
+                if (index >= snapshot.length) throw new NoSuchElementException();
+
+                return snapshot[index++];
+            }
+        };
+    }
+
+    @Override
+    public Object[] toArray() {
+
+        combinerLock.lock();
+        try {
+            combine();
+
+            Object[] result = new Object[currentQueueSize];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = ring[(head + i) % maxQueueCapacity];
+            }
+            return result;
+        } finally {
+            combinerLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+
+        combinerLock.lock();
+        try {
+            combine();
+
+            Arrays.fill(ring, null);
+            head = 0;
+            currentQueueSize = 0;
+        } finally {
+            combinerLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder outputSting = new StringBuilder();
+
+        for (Object e : toArray()) {
+            outputSting.append(e);
+        }
+
+        return "FlatCombiningMostRecentlyInsertedQueue{" +
+                "currentQueueSize=" + currentQueueSize + " content: " + outputSting +
+                '}';
+    }
+
+    /**
+     * Publishes the request and waits until it has been applied, either by
+     * this thread as the combiner or by another one.
+     */
+    private void publish(Request<E> request, int operation) {
+
+        request.operation = operation;
+
+        if (!request.linked) {
+            link(request);
+        }
+
+        while (true) {
+            if (combinerLock.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    combinerLock.unlock();
+                }
+            }
+
+            for (int spins = 0; spins < MAX_SPINS; spins++) {
+                if (request.operation == NONE) {
+                    return;
+                }
+                Thread.onSpinWait();
+            }
+
+            if (!request.linked) {
+                link(request);
+            }
+
+            if (combinerLock.isLocked()) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void link(Request<E> request) {
+
+        request.linked = true;
+
+        Request<E> first;
+        do {
+            first = requests.get();
+            request.next = first;
+        } while (!requests.compareAndSet(first, request));
+    }
+
+    /**
+     * Applies all published requests. Must be called while holding the combiner lock.
+     */
+    protected void combine() {
+
+        int applied = 0;
+
+        for (int pass = 0; pass < COMBINING_PASSES; pass++) {
+            combiningPass++;
+
+            int offers = 0;
+            Request<E> previous = null;
+            Request<E> request = requests.get();
+
+            while (request != null) {
+                Request<E> next = request.next;
+                int operation = request.operation;
+
+                if (operation == OFFER) {
+                    if (offers == pendingOffers.length) {
+                        pendingOffers = Arrays.copyOf(pendingOffers, offers * 2);
+                    }
+                    pendingOffers[offers++] = request;
+                    request.lastUsedPass = combiningPass;
+
+                } else if (operation == POLL) {
+                    request.result = pollRing();
+                    request.lastUsedPass = combiningPass;
+                    request.operation = NONE;
+                    applied++;
+
+                } else if (previous != null && combiningPass - request.lastUsedPass > RECORD_EXPIRY_PASSES) {
+                    previous.next = next;
+                    request.linked = false;
+                    request = next;
+                    continue;
+                }
+
+                previous = request;
+                request = next;
+            }
+
+            if (offers == 0) {
+                break;
+            }
+
+            offerRing(offers);
+            applied += offers;
+        }
+
+        if (applied > 0) {
+            combined(applied);
+        }
+    }
+
+    /**
+     * Called while holding the combiner lock after a {@link #combine} which
+     * applied at least one request. Does nothing by default.
+     *
+     * @param requests the number of requests applied
+     */
+    protected void combined(int requests) {
+
+    }
+
+    /**
+     * Appends one element, evicting the oldest one if the queue is full. Must
+     * be called while holding the combiner lock.
+     */
+    protected void offerRing(E e) {
+
+        int size = currentQueueSize;
+
+        if (size == maxQueueCapacity) {
+            ring[head] = null;
+            head = (head + 1) % maxQueueCapacity;
+            size--;
+        }
+
+        ring[(head + size) % maxQueueCapacity] = e;
+        currentQueueSize = size + 1;
+    }
+
+    /**
+     * Appends the items of the first {@code offers} pending offer requests,
+     * evicting as many of the oldest elements as needed in one step.
+     */
+    @SuppressWarnings("unchecked")
+    private void offerRing(int offers) {
+
+        int size = currentQueueSize;
+        int overflow = Math.min(size, size + offers - maxQueueCapacity);
+
+        for (int i = 0; i < overflow; i++) {
+            ring[(head + i) % maxQueueCapacity] = null;
+        }
+
+        if (overflow > 0) {
+            head = (head + overflow) % maxQueueCapacity;
+            size -= overflow;
+        }
+
+        int first = Math.max(0, offers - maxQueueCapacity);
+
+        for (int i = 0; i < offers; i++) {
+            Request<E> request = (Request<E>) pendingOffers[i];
+
+            if (i >= first) {
+                ring[(head + size) % maxQueueCapacity] = request.item;
+                size++;
+            }
+
+            request.item = null;
+            request.operation = NONE;
+            pendingOffers[i] = null;
+        }
+
+        currentQueueSize = size;
+    }
+
+    /**
+     * Removes the oldest element. Must be called while holding the combiner lock.
+     *
+     * @return the removed element, or <tt>null</tt> if the queue is empty
+     */
+    protected E pollRing() {
+
+        int size = currentQueueSize;
+
+        if (size == 0) {
+            return null;
+        }
+
+        E item = elementAt(0);
+        ring[head] = null;
+        head = (head + 1) % maxQueueCapacity;
+        currentQueueSize = size - 1;
+
+        return item;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E elementAt(int index) {
+
+        return (E) ring[(head + index) % maxQueueCapacity];
+    }
+
+    private static final class Request<E> {
+        private volatile int operation;
+        private volatile boolean linked;
+        private E item;
+        private E result;
+        private Request<E> next;
+        private int lastUsedPass;
+    }
+}
@@ -0,0 +1,134 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class FlatCombiningMostRecentlyInsertedQueueTest {
+
+    private Queue<Integer> queue;
+    private final int capacity = 10;
+    private final int threadCounter = 10;
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void setUp() throws Exception {
+
+        queue = new FlatCombiningMostRecentlyInsertedQueue<>(capacity);
+    }
+
+    @Test
+    public void offer() throws Exception {
+
+        for (int i = 0; i < capacity + 1; i++) {
+            assertEquals(true, queue.offer(i));
+        }
+        assertEquals(capacity, queue.size());
+        assertSame(1, queue.poll());
+    }
+
+    @Test
+    public void poll() throws Exception {
+
+        queue.offer(1);
+        assertSame(1, queue.poll());
+        assertSame(null, queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void peek() throws Exception {
+
+        assertSame(null, queue.peek());
+        queue.offer(1);
+        queue.offer(2);
+        assertSame(1, queue.peek());
+    }
+
+    @Test
+    public void iterator() throws Exception {
+
+        for (int i = 0; i < capacity * 2 + 3; i++) {
+            queue.offer(i);
+        }
+
+        Iterator<Integer> it = queue.iterator();
+        for (int i = capacity + 3; i < capacity * 2 + 3; i++) {
+            assertSame(i, it.next());
+        }
+        assertEquals(false, it.hasNext());
+
+        exception.expect(NoSuchElementException.class);
+        it.next();
+    }
+
+    @Test
+    public void clear() throws Exception {
+
+        queue.offer(1);
+        queue.offer(2);
+        queue.clear();
+
+        assertSame(null, queue.poll());
+        queue.offer(3);
+        assertSame(3, queue.peek());
+    }
+
+    @Test
+    public void offerFailNullPointerException() throws Exception {
+
+        exception.expect(NullPointerException.class);
+        queue.offer(null);
+    }
+
+    @Test
+    public void noLostElements() throws Exception {
+
+        final int offers = 20000;
+        final FlatCombiningMostRecentlyInsertedQueue<Integer> bigQueue =
+                new FlatCombiningMostRecentlyInsertedQueue<>(threadCounter * offers);
+        final Set<Integer> polled = ConcurrentHashMap.newKeySet();
+        final CountDownLatch latch = new CountDownLatch(threadCounter);
+        ExecutorService service = Executors.newFixedThreadPool(threadCounter);
+
+        for (int t = 0; t < threadCounter; t++) {
+            final int base = t * offers;
+            service.execute(() -> {
+                for (int i = 0; i < offers; i++) {
+                    bigQueue.offer(base + i);
+                    if (i % 2 == 0) {
+                        Integer e = bigQueue.poll();
+                        if (e != null) {
+                            assertEquals(true, polled.add(e));
+                        }
+                    }
+                }
+                latch.countDown();
+            });
+        }
+
+        latch.await();
+        service.shutdown();
+
+        Set<Integer> all = new HashSet<>(polled);
+        Integer e;
+        while ((e = bigQueue.poll()) != null) {
+            assertEquals(true, all.add(e));
+        }
+
+        assertEquals(threadCounter * offers, all.size());
+    }
+}
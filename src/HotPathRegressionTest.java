@@ -0,0 +1,242 @@
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Guards the allocation characteristics of the hot paths of the queues, so a
+ * change which silently adds boxing or a node allocation fails the build.
+ * <p>
+ * <p>Allocations are measured with
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes} around a
+ * loop of operations on pre-boxed values, after a warm-up, and the lowest of
+ * a few rounds is compared to the budget in bytes per operation. The durable
+ * queue is measured through batched offers, since every single offer waits
+ * for the disk. Throughput is compared by {@link QueueThroughputBenchmark},
+ * wall-clock ratios are too noisy for the unit tests.
+ */
+public class HotPathRegressionTest {
+
+    private static final int OPERATIONS = 100_000;
+    private static final int ROUNDS = 5;
+    private static final int CAPACITY = 1000;
+
+    private static final int RECORD_SIZE = 100;
+
+    private static final Integer[] VALUES = new Integer[CAPACITY * 2];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = i + 1000;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void linkedQueueAllocation() throws Exception {
+
+        MostRecentlyInsertedQueue<Integer> pooled = fill(new MostRecentlyInsertedQueue<>(CAPACITY, CAPACITY));
+        MostRecentlyInsertedQueue<Integer> plain = fill(new MostRecentlyInsertedQueue<>(CAPACITY));
+        MostRecentlyInsertedQueue<Integer>.Cursor cursor = pooled.cursor();
+
+        assertBudget("linked offer", 40, i -> plain.offer(VALUES[i % VALUES.length]));
+        assertBudget("linked pooled offer", 0, i -> pooled.offer(VALUES[i % VALUES.length]));
+        assertBudget("linked pooled poll+offer", 0, i -> pooled.offer(pooled.poll()));
+        assertBudget("linked peek", 0, i -> pooled.peek());
+        assertBudget("linked forEach element", 0, CAPACITY, i -> pooled.forEach(e -> { }));
+        assertBudget("linked cursor element", 0, CAPACITY, i -> {
+            cursor.reset();
+            while (cursor.hasNext()) {
+                cursor.next();
+            }
+        });
+    }
+
+    @Test
+    public void concurrentQueueAllocation() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> pooled = fill(new ConcurrentMostRecentlyInsertedQueue<>(CAPACITY, CAPACITY));
+        ConcurrentMostRecentlyInsertedQueue<Integer> plain = fill(new ConcurrentMostRecentlyInsertedQueue<>(CAPACITY));
+        ConcurrentMostRecentlyInsertedQueue<Integer>.Cursor cursor = pooled.cursor();
+        Integer[] batch = new Integer[64];
+
+        assertBudget("concurrent offer", 64, i -> plain.offer(VALUES[i % VALUES.length]));
+        assertBudget("concurrent pooled offer", 0, i -> pooled.offer(VALUES[i % VALUES.length]));
+        assertBudget("concurrent pooled poll+offer", 0, i -> pooled.offer(pooled.poll()));
+        assertBudget("concurrent peek", 0, i -> plain.peek());
+        assertBudget("concurrent pooled peek", 0, i -> pooled.peek());
+        assertBudget("concurrent peekLast", 0, i -> pooled.peekLast());
+        assertBudget("concurrent get", 0, i -> pooled.get(i % CAPACITY));
+        assertBudget("concurrent forEach element", 0, CAPACITY, i -> pooled.forEach(e -> { }));
+        assertBudget("concurrent forEachBatch element", 0, CAPACITY, i -> pooled.forEachBatch(batch, (b, n) -> { }));
+        assertBudget("concurrent cursor element", 0, CAPACITY, i -> {
+            cursor.reset();
+            while (cursor.hasNext()) {
+                cursor.next();
+            }
+        });
+    }
+
+    @Test
+    public void segmentedQueueAllocation() throws Exception {
+
+        SegmentedMostRecentlyInsertedQueue<Integer> queue = fill(new SegmentedMostRecentlyInsertedQueue<>(CAPACITY, 64));
+
+        assertBudget("segmented offer", 0, i -> queue.offer(VALUES[i % VALUES.length]));
+        assertBudget("segmented poll+offer", 0, i -> queue.offer(queue.poll()));
+        assertBudget("segmented peek", 0, i -> queue.peek());
+        assertBudget("segmented get", 0, i -> queue.get(i % CAPACITY));
+    }
+
+    @Test
+    public void combiningQueueAllocation() throws Exception {
+
+        FlatCombiningMostRecentlyInsertedQueue<Integer> combining = fill(new FlatCombiningMostRecentlyInsertedQueue<>(CAPACITY));
+        AdaptiveMostRecentlyInsertedQueue<Integer> adaptive = fill(new AdaptiveMostRecentlyInsertedQueue<>(CAPACITY));
+
+        assertBudget("combining offer", 0, i -> combining.offer(VALUES[i % VALUES.length]));
+        assertBudget("combining poll+offer", 0, i -> combining.offer(combining.poll()));
+        assertBudget("combining peek", 0, i -> combining.peek());
+        assertBudget("adaptive offer", 0, i -> adaptive.offer(VALUES[i % VALUES.length]));
+        assertBudget("adaptive poll+offer", 0, i -> adaptive.offer(adaptive.poll()));
+    }
+
+    @Test
+    public void spillingQueueAllocation() throws Exception {
+
+        try (SpillingMostRecentlyInsertedQueue<Integer> queue = fill(new SpillingMostRecentlyInsertedQueue<>(CAPACITY,
+                folder.getRoot().toPath().resolve("spill"), new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec(),
+                CAPACITY, 1 << 20))) {
+            // a node per offer, the queue does not pool them
+            assertBudget("spilling poll+offer", 56, i -> queue.offer(queue.poll()));
+        }
+    }
+
+    @Test
+    public void durableQueueAllocation() throws Exception {
+
+        List<Integer> batch = Arrays.asList(VALUES).subList(0, CAPACITY);
+
+        try (DurableMostRecentlyInsertedQueue<Integer> queue = new DurableMostRecentlyInsertedQueue<>(CAPACITY,
+                folder.getRoot().toPath().resolve("journal"), new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec(),
+                1, TimeUnit.MILLISECONDS)) {
+            // the test codec allocates a buffer and its array per record
+            assertBudget("durable addAll element", 72, CAPACITY, i -> queue.addAll(batch));
+        }
+    }
+
+    @Test
+    public void referenceQueueAllocation() throws Exception {
+
+        ReferenceMostRecentlyInsertedQueue<Integer> queue = fill(new ReferenceMostRecentlyInsertedQueue<>(CAPACITY,
+                ReferenceMostRecentlyInsertedQueue.Strength.SOFT));
+
+        // one reference object per offered element
+        assertBudget("reference offer", 48, i -> queue.offer(VALUES[i % VALUES.length]));
+        assertBudget("reference peek", 0, i -> queue.peek());
+    }
+
+    @Test
+    public void byteRingAllocation() throws Exception {
+
+        ByteRingMostRecentlyInsertedQueue<Integer> queue = new ByteRingMostRecentlyInsertedQueue<>(64 * 1024,
+                new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec(), true);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+        assertBudget("byte ring offerRecord", 0, i -> queue.offerRecord(record));
+        assertBudget("byte ring pollRecord+offerRecord", 0, i -> {
+            queue.pollRecord(r -> { });
+            queue.offerRecord(record);
+        });
+        assertBudget("byte ring forEachRecord element", 0, queue.size(), i -> queue.forEachRecord(r -> { }));
+    }
+
+    @Test
+    public void sharedMemoryAllocation() throws Exception {
+
+        SharedMemoryMostRecentlyInsertedQueue<Integer> queue = new SharedMemoryMostRecentlyInsertedQueue<>(
+                folder.getRoot().toPath().resolve("hot-path.shm"), 1024, 128,
+                new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec());
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        ByteBuffer destination = ByteBuffer.allocate(128);
+
+        assertBudget("shared memory offerRecord", 0, i -> queue.offerRecord(record));
+        assertBudget("shared memory pollRecord+offerRecord", 0, i -> {
+            destination.clear();
+            queue.pollRecord(destination);
+            queue.offerRecord(record);
+        });
+    }
+
+    private static <Q extends Queue<Integer>> Q fill(Q queue) {
+
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(VALUES[i]);
+        }
+
+        return queue;
+    }
+
+    private static void assertBudget(String name, double bytesPerOperation, IntConsumer operation) {
+
+        assertBudget(name, bytesPerOperation, 1, operation);
+    }
+
+    /**
+     * Runs the operation a number of times after a warm-up and checks the
+     * lowest allocation per unit seen in a round, where one call of the
+     * operation does {@code unitsPerCall} units of work, like visiting that
+     * many elements. A small slack covers the measurement itself.
+     */
+    private static void assertBudget(String name, double bytesPerUnit, int unitsPerCall, IntConsumer operation) {
+
+        long thread = Thread.currentThread().getId();
+        int calls = Math.max(1, OPERATIONS / unitsPerCall);
+
+        for (int i = 0; i < calls * 2; i++) {
+            operation.accept(i);
+        }
+
+        double lowest = Double.MAX_VALUE;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+
+            for (int i = 0; i < calls; i++) {
+                operation.accept(i);
+            }
+
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+            lowest = Math.min(lowest, (double) allocated / calls / unitsPerCall);
+        }
+
+        assertTrue(String.format(Locale.ROOT, "%s allocates %.2f bytes per operation, budget %.0f", name, lowest, bytesPerUnit),
+                lowest <= bytesPerUnit + 0.05);
+    }
+}
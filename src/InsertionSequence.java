@@ -0,0 +1,67 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of global insertion stamps shared by several
+ * {@link ConcurrentMostRecentlyInsertedQueue}s, see
+ * {@link ConcurrentMostRecentlyInsertedQueue#setInsertionSequence}. The
+ * stamps order the elements of all queues sharing the source by insertion,
+ * which is what {@link MergedMostRecentlyInsertedView} merges on.
+ * <p>
+ * <p>{@link #next} is called while holding the lock of the inserting queue,
+ * so it must be quick. Stamps must be positive and strictly increasing.
+ */
+public interface InsertionSequence {
+
+    /**
+     * Returns the stamp of the next insertion.
+     */
+    long next();
+
+    /**
+     * A shared counter, the stamps are 1, 2, 3 and so on.
+     */
+    static InsertionSequence counter() {
+
+        AtomicLong counter = new AtomicLong();
+
+        return counter::incrementAndGet;
+    }
+
+    /**
+     * A hybrid logical clock: the wall-clock time in milliseconds in the high
+     * bits and a counter in the low {@value HybridClock#LOGICAL_BITS} bits,
+     * which runs on if the clock stands still or goes back. Stamps of queues
+     * using different hybrid clocks, for example in different processes, are
+     * ordered by wall-clock time up to the clock skew.
+     */
+    static InsertionSequence hybridClock() {
+
+        return new HybridClock();
+    }
+
+    final class HybridClock implements InsertionSequence {
+
+        static final int LOGICAL_BITS = 20;
+
+        private final AtomicLong last = new AtomicLong();
+
+        HybridClock() {
+
+        }
+
+        @Override
+        public long next() {
+
+            long physical = System.currentTimeMillis() << LOGICAL_BITS;
+
+            while (true) {
+                long previous = last.get();
+                long stamp = Math.max(previous + 1, physical);
+
+                if (last.compareAndSet(previous, stamp)) {
+                    return stamp;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The insertion times of the elements of a
+ * {@link ConcurrentMostRecentlyInsertedQueue}, by position, in the same slots
+ * as its position index, for {@link ConcurrentMostRecentlyInsertedQueue#between}.
+ * Times are in {@link System#nanoTime} units and never decrease from head to
+ * tail, so a time range maps to a range of positions found by binary search.
+ * <p>
+ * <p>Instants are mapped to times through the wall-clock time at which the
+ * index was created, so a later adjustment of the wall clock is not followed.
+ * <p>
+ * <p>Writes happen while holding the lock of the queue. The array is replaced
+ * together with the position index, and lock-free readers check that both
+ * have the same length.
+ */
+final class InsertionTimeIndex {
+
+    private volatile AtomicLongArray times;
+    private long last;
+    private boolean batch;
+    private final long originNanos = System.nanoTime();
+    private final Instant originInstant = Instant.now();
+
+    InsertionTimeIndex(int length) {
+
+        this.times = new AtomicLongArray(length);
+    }
+
+    /**
+     * Returns the time of an insertion made now, the same one for every
+     * insertion of a batch. Must be called while holding the lock.
+     */
+    long next() {
+
+        if (!batch) {
+            last = Math.max(last, System.nanoTime());
+        }
+
+        return last;
+    }
+
+    /**
+     * Gives the insertions up to {@link #endBatch} one time, taken now. Must
+     * be called while holding the lock.
+     */
+    void beginBatch() {
+
+        last = Math.max(last, System.nanoTime());
+        batch = true;
+    }
+
+    void endBatch() {
+
+        batch = false;
+    }
+
+    /**
+     * Stores the time of the element at the position. Must be called while
+     * holding the lock.
+     */
+    void set(long position, long nanos) {
+
+        AtomicLongArray current = times;
+
+        current.set((int) (position % current.length()), nanos);
+    }
+
+    /**
+     * Replaces the array by an empty one of the given length, to be filled
+     * again by renumbering the positions. Must be called while holding the lock.
+     */
+    void resize(int length) {
+
+        times = new AtomicLongArray(length);
+    }
+
+    /**
+     * Maps an instant to the {@link System#nanoTime} scale, saturating
+     * instead of overflowing for instants far away.
+     */
+    long toNanoTime(Instant instant) {
+
+        Duration offset = Duration.between(originInstant, instant);
+
+        try {
+            return Math.addExact(originNanos, offset.toNanos());
+        } catch (ArithmeticException overflow) {
+            return offset.isNegative() ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Binary searches the positions of the window [first, last] for the
+     * elements inserted at or after <tt>fromNanos</tt> and before
+     * <tt>toNanos</tt>. A slot is only overwritten once its position has left
+     * the window, so the times read were valid if the head has not passed
+     * the lowest position read by then.
+     *
+     * @param indexLength the length of the position index the window was read from
+     * @return the first position in range, the first one after it and the
+     * lowest position read, or <tt>null</tt> if the array was replaced
+     */
+    long[] search(int indexLength, long first, long last, long fromNanos, long toNanos) {
+
+        AtomicLongArray current = times;
+
+        if (current.length() != indexLength) {
+            return null;
+        }
+
+        long[] range = {0, 0, Long.MAX_VALUE};
+
+        range[0] = firstAtOrAfter(current, first, last + 1, fromNanos, range);
+        range[1] = toNanos <= fromNanos ? range[0] : firstAtOrAfter(current, range[0], last + 1, toNanos, range);
+
+        return range;
+    }
+
+    /**
+     * Returns the first position in [from, to) whose insertion time is at
+     * least {@code nanos}, or {@code to} if there is none, and lowers
+     * <tt>range[2]</tt> to the lowest position read.
+     */
+    private static long firstAtOrAfter(AtomicLongArray times, long from, long to, long nanos, long[] range) {
+
+        while (from < to) {
+            long middle = (from + to) >>> 1;
+
+            range[2] = Math.min(range[2], middle);
+
+            if (times.get((int) (middle % times.length())) < nanos) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+
+        return from;
+    }
+}
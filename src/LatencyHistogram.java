@@ -0,0 +1,174 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of non-negative long values, usually
+ * latencies in nanoseconds, with the bucket layout of HdrHistogram.
+ * <p>
+ * <p>Values below {@value #SUB_BUCKET_COUNT} are counted exactly. Above that
+ * every power-of-two range is split into {@value #HALF_SUB_BUCKET_COUNT}
+ * linear buckets, so a recorded value is reported with a relative error below
+ * 1/{@value #HALF_SUB_BUCKET_COUNT}. Percentiles report the highest value of
+ * the bucket, so they never understate a latency.
+ * <p>
+ * <p>{@link #record} is a single atomic increment and may be called from any
+ * number of threads. Readers should work on a {@link #snapshot}.
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 7;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Counts one occurrence of the value. Negative values are counted as 0.
+     */
+    public void record(long value) {
+
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(indexOf(value));
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Returns a copy of the current counts. Values recorded while the copy is
+     * taken may or may not be included.
+     */
+    public LatencyHistogram snapshot() {
+
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+
+        return copy;
+    }
+
+    /**
+     * Adds all counts of the other histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+
+        long otherMax = other.max.get();
+        long currentMax = max.get();
+        while (otherMax > currentMax && !max.compareAndSet(currentMax, otherMax)) {
+            currentMax = max.get();
+        }
+    }
+
+    public void reset() {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+    }
+
+    public long getTotalCount() {
+
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long getMax() {
+
+        return max.get();
+    }
+
+    public double getMean() {
+
+        long total = 0;
+        double sum = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                total += count;
+                sum += (double) count * (lowestValueAt(i) + highestValueAt(i)) / 2;
+            }
+        }
+
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * Returns the value below or at which the given percentage of the
+     * recorded values fall.
+     *
+     * @param percentile the percentile, between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        long total = getTotalCount();
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    static int indexOf(long value) {
+
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+
+        return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT
+                + (int) ((value >>> shift) - HALF_SUB_BUCKET_COUNT);
+    }
+
+    static long lowestValueAt(int index) {
+
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int bucket = index - SUB_BUCKET_COUNT;
+        int shift = bucket / HALF_SUB_BUCKET_COUNT + 1;
+
+        return (long) (bucket % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT) << shift;
+    }
+
+    static long highestValueAt(int index) {
+
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+
+        return lowestValueAt(index) + (1L << shift) - 1;
+    }
+}
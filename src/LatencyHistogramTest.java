@@ -0,0 +1,81 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    private LatencyHistogram histogram;
+
+    @Before
+    public void setUp() throws Exception {
+
+        histogram = new LatencyHistogram();
+    }
+
+    @Test
+    public void empty() throws Exception {
+
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void smallValuesAreExact() throws Exception {
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(100, histogram.getTotalCount());
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(100, histogram.getMax());
+    }
+
+    @Test
+    public void largeValuesWithinPrecision() throws Exception {
+
+        long[] values = {1000, 123456, 987654321, 5_000_000_000L, Long.MAX_VALUE / 3};
+
+        for (long value : values) {
+            LatencyHistogram single = new LatencyHistogram();
+            single.record(value);
+            single.record(1);
+
+            long reported = single.getValueAtPercentile(100);
+            assertEquals(value, reported);
+
+            long bucketHigh = LatencyHistogram.highestValueAt(LatencyHistogram.indexOf(value));
+            assertEquals(true, bucketHigh >= value);
+            assertEquals(true, bucketHigh - value <= value / LatencyHistogram.HALF_SUB_BUCKET_COUNT);
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() throws Exception {
+
+        for (int index = 0; index < LatencyHistogram.indexOf(Long.MAX_VALUE); index++) {
+            assertEquals(LatencyHistogram.highestValueAt(index) + 1, LatencyHistogram.lowestValueAt(index + 1));
+            assertEquals(index, LatencyHistogram.indexOf(LatencyHistogram.lowestValueAt(index)));
+        }
+    }
+
+    @Test
+    public void snapshotAndReset() throws Exception {
+
+        histogram.record(10);
+        histogram.record(20);
+
+        LatencyHistogram snapshot = histogram.snapshot();
+        histogram.reset();
+        histogram.record(5);
+
+        assertEquals(2, snapshot.getTotalCount());
+        assertEquals(20, snapshot.getMax());
+        assertEquals(15.0, snapshot.getMean(), 0.001);
+        assertEquals(1, histogram.getTotalCount());
+    }
+}
@@ -0,0 +1,406 @@
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.io.Closeable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Shrinks the capacity of registered {@link ConcurrentMostRecentlyInsertedQueue}s
+ * while the heap is nearly full, and gives it back gradually once the
+ * pressure subsides, so a JVM close to its limit degrades by keeping shorter
+ * windows instead of dying of an <tt>OutOfMemoryError</tt> or of back to
+ * back collections.
+ * <p>
+ * <p>The pressure is the highest ratio of used to max memory over the heap
+ * pools, taken after the last collection where the pool reports it, so
+ * garbage does not count. The governor sets the collection usage threshold,
+ * or the usage threshold, of those pools to the high watermark and listens to
+ * their notifications, so a collection which leaves the heap too full
+ * triggers a check right away; the check also runs periodically from a
+ * background thread.
+ * <p>
+ * <p>A check while the pressure is at or above the high watermark halves the
+ * capacity of the registered queues, never below their minimum, which evicts
+ * their oldest elements through
+ * {@link ConcurrentMostRecentlyInsertedQueue#evicted}. The usage after a
+ * collection only changes with the next collection, so once the queues were
+ * shrunk they are shrunk again only if the pressure is still high after
+ * another collection, not on every check reading the same value. Every check while it is
+ * below the low watermark gives back an eighth of their registered capacity,
+ * up to that capacity. In between, capacities are left as they are.
+ * <p>
+ * <p>Queues are opt-in: only registered ones are shrunk. The governor owns
+ * the capacity of a queue while it is registered; to change it, unregister the
+ * queue first.
+ */
+public class MemoryPressureGovernor implements Closeable {
+
+    /**
+     * Capacity is given back in this many steps.
+     */
+    static final int RESTORE_STEPS = 8;
+
+    private final DoubleSupplier pressure;
+    private final LongSupplier collections;
+    private final double highWatermark;
+    private final double lowWatermark;
+    private final List<Participant> participants = new ArrayList<>();
+    private final ScheduledExecutorService executor;
+    private final NotificationListener listener;
+    private final List<Threshold> thresholds = new ArrayList<>();
+
+    /**
+     * The collection count when the queues were last shrunk, guarded by the participants.
+     */
+    private long shrunkAt = -1;
+
+    /**
+     * @param highWatermark the heap usage ratio from which queues are shrunk, in <tt>(0, 1]</tt>
+     * @param lowWatermark  the heap usage ratio below which capacity is given back, at most the high watermark
+     * @param period        the time between two periodic checks
+     */
+    public MemoryPressureGovernor(double highWatermark, double lowWatermark, long period, TimeUnit unit) {
+
+        this(MemoryPressureGovernor::heapPressure, MemoryPressureGovernor::collectionCount,
+                highWatermark, lowWatermark, period, unit);
+    }
+
+    /**
+     * Uses the given pressure and collection count instead of the heap pools
+     * and the collectors and only checks them on {@link #check}, for tests.
+     */
+    MemoryPressureGovernor(DoubleSupplier pressure, LongSupplier collections, double highWatermark, double lowWatermark) {
+
+        this(pressure, collections, highWatermark, lowWatermark, 0, null);
+    }
+
+    private MemoryPressureGovernor(DoubleSupplier pressure, LongSupplier collections, double highWatermark,
+                                   double lowWatermark, long period, TimeUnit unit) {
+
+        if (!(highWatermark > 0 && highWatermark <= 1) || !(lowWatermark >= 0 && lowWatermark <= highWatermark)) {
+            throw new IllegalArgumentException();
+        }
+
+        this.pressure = pressure;
+        this.collections = collections;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+
+        if (unit == null) {
+            this.executor = null;
+            this.listener = null;
+            return;
+        }
+
+        if (period <= 0) throw new IllegalArgumentException();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "queue-memory-governor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.listener = this::handleNotification;
+
+        try {
+            subscribe();
+            this.executor.scheduleWithFixedDelay(this::checkQuietly, period, period, unit);
+        } catch (RuntimeException error) {
+            close();
+            throw error;
+        }
+    }
+
+    /**
+     * Puts the queue under the governor. Its current capacity is the one it
+     * is restored to.
+     *
+     * @param minCapacity the capacity the queue is never shrunk below
+     * @throws IllegalArgumentException if the min capacity is not positive or
+     *                                  the queue is already registered
+     */
+    public void register(ConcurrentMostRecentlyInsertedQueue<?> queue, int minCapacity) {
+
+        if (minCapacity <= 0) throw new IllegalArgumentException();
+
+        synchronized (participants) {
+            if (find(queue) != null) throw new IllegalArgumentException("Already registered");
+
+            participants.add(new Participant(queue, queue.getCapacity(), minCapacity));
+        }
+    }
+
+    /**
+     * Releases the queue from the governor and gives it back its registered
+     * capacity.
+     *
+     * @return <tt>false</tt> if the queue was not registered
+     */
+    public boolean unregister(ConcurrentMostRecentlyInsertedQueue<?> queue) {
+
+        synchronized (participants) {
+            Participant participant = find(queue);
+
+            if (participant == null) {
+                return false;
+            }
+
+            participants.remove(participant);
+            queue.setCapacity(participant.capacity);
+
+            return true;
+        }
+    }
+
+    /**
+     * Returns the current pressure, the ratio of used to max memory of the
+     * fullest heap pool.
+     */
+    public double getPressure() {
+
+        return pressure.getAsDouble();
+    }
+
+    /**
+     * Reads the pressure and shrinks or restores the registered queues. Runs
+     * periodically and on threshold notifications, and may be called at any
+     * time.
+     *
+     * @return the pressure read
+     */
+    public double check() {
+
+        double current = pressure.getAsDouble();
+
+        synchronized (participants) {
+            boolean shrink = false;
+
+            if (current >= highWatermark) {
+                long collected = collections.getAsLong();
+
+                if (collected != shrunkAt) {
+                    shrink = true;
+                    shrunkAt = collected;
+                }
+            }
+
+            for (Participant participant : participants) {
+                ConcurrentMostRecentlyInsertedQueue<?> queue = participant.queue;
+                int capacity = queue.getCapacity();
+
+                if (shrink) {
+                    int reduced = Math.max(participant.minCapacity, capacity / 2);
+
+                    if (reduced < capacity) {
+                        queue.setCapacity(reduced);
+                    }
+                } else if (current < lowWatermark && capacity < participant.capacity) {
+                    int step = Math.max(1, participant.capacity / RESTORE_STEPS);
+
+                    queue.setCapacity((int) Math.min(participant.capacity, (long) capacity + step));
+                }
+            }
+        }
+
+        return current;
+    }
+
+    private void checkQuietly() {
+
+        try {
+            check();
+        } catch (RuntimeException error) {
+            error.printStackTrace();
+        }
+    }
+
+    private Participant find(ConcurrentMostRecentlyInsertedQueue<?> queue) {
+
+        for (Participant participant : participants) {
+            if (participant.queue == queue) {
+                return participant;
+            }
+        }
+
+        return null;
+    }
+
+    private void handleNotification(Notification notification, Object handback) {
+
+        String type = notification.getType();
+
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)
+                || MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)) {
+            try {
+                executor.execute(this::checkQuietly);
+            } catch (RejectedExecutionException closed) {
+                // a notification racing with close
+            }
+        }
+    }
+
+    /**
+     * Sets the thresholds of the heap pools read by {@link #heapPressure}
+     * which have none lower yet and listens to their notifications.
+     */
+    private void subscribe() {
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported() || max <= 0) {
+                continue;
+            }
+
+            long threshold = (long) (max * highWatermark);
+
+            try {
+                if (pool.isCollectionUsageThresholdSupported()) {
+                    long previous = pool.getCollectionUsageThreshold();
+                    if (previous == 0 || previous > threshold) {
+                        pool.setCollectionUsageThreshold(threshold);
+                        thresholds.add(new Threshold(pool, true, previous, threshold));
+                    }
+                } else {
+                    long previous = pool.getUsageThreshold();
+                    if (previous == 0 || previous > threshold) {
+                        pool.setUsageThreshold(threshold);
+                        thresholds.add(new Threshold(pool, false, previous, threshold));
+                    }
+                }
+            } catch (RuntimeException error) {
+                // the pool went away or is not ours to change, the periodic check still covers it
+                error.printStackTrace();
+            }
+        }
+
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+    }
+
+    /**
+     * Returns the highest ratio of used to max memory over the heap pools
+     * which have a max, after the last collection where available. Pools
+     * which support neither kind of threshold, like eden, are skipped: they
+     * are full most of the time by design.
+     */
+    static double heapPressure() {
+
+        double highest = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+
+            MemoryUsage usage;
+
+            if (pool.isCollectionUsageThresholdSupported() && pool.isUsageThresholdSupported()) {
+                usage = pool.getCollectionUsage();
+            } else if (pool.isUsageThresholdSupported()) {
+                usage = pool.getUsage();
+            } else {
+                continue;
+            }
+
+            if (usage != null && usage.getMax() > 0) {
+                highest = Math.max(highest, (double) usage.getUsed() / usage.getMax());
+            }
+        }
+
+        return highest;
+    }
+
+    /**
+     * Returns the number of collections so far, over all collectors.
+     */
+    static long collectionCount() {
+
+        long count = 0;
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+
+        return count;
+    }
+
+    /**
+     * Stops the background thread and the notifications, and resets the
+     * thresholds it set unless someone changed them since. Registered queues
+     * keep their current capacity.
+     */
+    @Override
+    public void close() {
+
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(listener);
+        } catch (ListenerNotFoundException alreadyRemoved) {
+            // closed twice
+        }
+
+        for (Threshold threshold : thresholds) {
+            threshold.reset();
+        }
+        thresholds.clear();
+    }
+
+    private static final class Participant {
+        private final ConcurrentMostRecentlyInsertedQueue<?> queue;
+        private final int capacity;
+        private final int minCapacity;
+
+        Participant(ConcurrentMostRecentlyInsertedQueue<?> queue, int capacity, int minCapacity) {
+
+            this.queue = queue;
+            this.capacity = capacity;
+            this.minCapacity = minCapacity;
+        }
+    }
+
+    private static final class Threshold {
+        private final MemoryPoolMXBean pool;
+        private final boolean collection;
+        private final long previous;
+        private final long set;
+
+        Threshold(MemoryPoolMXBean pool, boolean collection, long previous, long set) {
+
+            this.pool = pool;
+            this.collection = collection;
+            this.previous = previous;
+            this.set = set;
+        }
+
+        void reset() {
+
+            try {
+                if (collection && pool.getCollectionUsageThreshold() == set) {
+                    pool.setCollectionUsageThreshold(previous);
+                } else if (!collection && pool.getUsageThreshold() == set) {
+                    pool.setUsageThreshold(previous);
+                }
+            } catch (RuntimeException error) {
+                error.printStackTrace();
+            }
+        }
+    }
+}
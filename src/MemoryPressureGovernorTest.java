@@ -0,0 +1,174 @@
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MemoryPressureGovernorTest {
+
+    private double pressure;
+    private long collections;
+
+    @Test
+    public void shrinksUnderPressureAndRestoresGradually() throws Exception {
+
+        final List<Integer> evicted = new ArrayList<>();
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<Integer>(64) {
+            @Override
+            protected void evicted(Integer e) {
+                evicted.add(e);
+            }
+        };
+        for (int i = 0; i < 64; i++) {
+            queue.offer(i);
+        }
+
+        MemoryPressureGovernor governor = new MemoryPressureGovernor(() -> pressure, () -> collections, 0.9, 0.7);
+        governor.register(queue, 10);
+
+        pressure = 0.5;
+        governor.check();
+        assertEquals(64, queue.getCapacity());
+
+        pressure = 0.95;
+        governor.check();
+        assertEquals(32, queue.getCapacity());
+        assertEquals(32, queue.size());
+        assertEquals(32, evicted.size());
+        assertEquals(Integer.valueOf(0), evicted.get(0));
+        assertEquals(Integer.valueOf(32), queue.peek());
+
+        collections++;
+        governor.check();
+        collections++;
+        governor.check();
+        assertEquals(10, queue.getCapacity());
+        collections++;
+        governor.check();
+        assertEquals(10, queue.getCapacity());
+
+        pressure = 0.8;
+        governor.check();
+        assertEquals(10, queue.getCapacity());
+
+        pressure = 0.1;
+        governor.check();
+        assertEquals(18, queue.getCapacity());
+        for (int i = 0; i < 7; i++) {
+            governor.check();
+        }
+        assertEquals(64, queue.getCapacity());
+        assertEquals(10, queue.size());
+    }
+
+    @Test
+    public void shrinksOnlyOncePerCollection() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(64);
+        MemoryPressureGovernor governor = new MemoryPressureGovernor(() -> pressure, () -> collections, 0.9, 0.7);
+        governor.register(queue, 1);
+
+        pressure = 0.95;
+        governor.check();
+        assertEquals(32, queue.getCapacity());
+
+        // no collection since, the reading is the same one
+        governor.check();
+        governor.check();
+        assertEquals(32, queue.getCapacity());
+
+        collections++;
+        governor.check();
+        assertEquals(16, queue.getCapacity());
+
+        pressure = 0.8;
+        collections++;
+        governor.check();
+        assertEquals(16, queue.getCapacity());
+
+        pressure = 0.95;
+        governor.check();
+        assertEquals(8, queue.getCapacity());
+    }
+
+    @Test
+    public void unregisterRestoresCapacity() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> registered = new ConcurrentMostRecentlyInsertedQueue<>(100);
+        ConcurrentMostRecentlyInsertedQueue<Integer> other = new ConcurrentMostRecentlyInsertedQueue<>(100);
+        MemoryPressureGovernor governor = new MemoryPressureGovernor(() -> pressure, () -> collections, 0.9, 0.7);
+        governor.register(registered, 1);
+
+        try {
+            governor.register(registered, 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        pressure = 1;
+        governor.check();
+        assertEquals(50, registered.getCapacity());
+        assertEquals(100, other.getCapacity());
+
+        assertTrue(governor.unregister(registered));
+        assertFalse(governor.unregister(registered));
+        assertEquals(100, registered.getCapacity());
+
+        governor.check();
+        assertEquals(100, registered.getCapacity());
+    }
+
+    @Test
+    public void heapPressure() throws Exception {
+
+        double heap = MemoryPressureGovernor.heapPressure();
+        assertTrue(heap >= 0 && heap <= 1);
+
+        long collected = MemoryPressureGovernor.collectionCount();
+        System.gc();
+        assertTrue(MemoryPressureGovernor.collectionCount() > collected);
+
+        long[] before = thresholds();
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(100);
+
+        MemoryPressureGovernor governor = new MemoryPressureGovernor(1, 1, 10, TimeUnit.MILLISECONDS);
+        governor.register(queue, 1);
+        Thread.sleep(50);
+        assertEquals(100, queue.getCapacity());
+        governor.close();
+
+        assertArrayEquals(before, thresholds());
+    }
+
+    @Test
+    public void invalidWatermarks() throws Exception {
+
+        for (double[] watermarks : Arrays.asList(new double[]{0, 0}, new double[]{1.5, 0.5}, new double[]{0.5, 0.6},
+                new double[]{0.5, -0.1})) {
+            try {
+                new MemoryPressureGovernor(() -> 0, () -> 0, watermarks[0], watermarks[1]);
+                fail(Arrays.toString(watermarks));
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    private static long[] thresholds() {
+
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        long[] thresholds = new long[pools.size() * 2];
+
+        for (int i = 0; i < pools.size(); i++) {
+            MemoryPoolMXBean pool = pools.get(i);
+            thresholds[2 * i] = pool.isUsageThresholdSupported() ? pool.getUsageThreshold() : -1;
+            thresholds[2 * i + 1] = pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsageThreshold() : -1;
+        }
+
+        return thresholds;
+    }
+}
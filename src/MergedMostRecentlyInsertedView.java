@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The most recent elements across several
+ * {@link ConcurrentMostRecentlyInsertedQueue}s in global insertion order, for
+ * queues sharing one {@link InsertionSequence}.
+ * <p>
+ * <p>The view is a lazy k-way merge: every queue is read newest first, a page
+ * at a time through
+ * {@link ConcurrentMostRecentlyInsertedQueue#readStampedBefore}, and a heap
+ * over the queues keyed by the stamp of their next element picks the newest
+ * one. The merge stops after the limit, so getting the newest N elements of k
+ * queues costs O(N log k) plus one page per queue, instead of copying and
+ * sorting everything. Unstamped elements are not part of the view.
+ * <p>
+ * <p>Every iteration is a new merge. It is weakly consistent: elements
+ * offered after a queue has been paged are not returned, and elements polled
+ * or evicted meanwhile may still be.
+ *
+ * @param <E> the type of elements held in the queues
+ */
+public class MergedMostRecentlyInsertedView<E> implements Iterable<E> {
+
+    static final int PAGE_SIZE = 64;
+
+    private final List<ConcurrentMostRecentlyInsertedQueue<? extends E>> queues;
+    private final int limit;
+
+    /**
+     * @param queues the queues to merge
+     * @param limit  the max number of elements returned by an iteration
+     */
+    public MergedMostRecentlyInsertedView(Collection<? extends ConcurrentMostRecentlyInsertedQueue<? extends E>> queues,
+                                          int limit) {
+
+        if (limit < 0) throw new IllegalArgumentException();
+
+        this.queues = new ArrayList<>(queues);
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the elements from newest to oldest, at most the limit.
+     */
+    @Override
+    public Iterator<E> iterator() {
+
+        return new MergeIterator();
+    }
+
+    /**
+     * Returns the elements from newest to oldest, at most the limit.
+     */
+    public Stream<E> stream() {
+
+        return StreamSupport.stream(Spliterators.spliterator(iterator(), limit,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Returns the newest elements, at most the limit, in insertion order,
+     * oldest first.
+     */
+    public List<E> latest() {
+
+        List<E> elements = new ArrayList<>();
+
+        for (E e : this) {
+            elements.add(e);
+        }
+
+        Collections.reverse(elements);
+
+        return elements;
+    }
+
+    private class MergeIterator implements Iterator<E> {
+
+        private final PriorityQueue<Source<E>> heap;
+        private int returned;
+
+        MergeIterator() {
+
+            int pageSize = Math.max(1, Math.min(PAGE_SIZE, limit));
+
+            heap = new PriorityQueue<>(Math.max(1, queues.size()),
+                    (a, b) -> Long.compare(b.stamp(), a.stamp()));
+
+            if (limit == 0) {
+                return;
+            }
+
+            for (ConcurrentMostRecentlyInsertedQueue<? extends E> queue : queues) {
+                Source<E> source = new Source<>(queue, pageSize);
+
+                if (source.advance()) {
+                    heap.add(source);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            return returned < limit && !heap.isEmpty();
+        }
+
+        @Override
+        public E next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Source<E> source = heap.poll();
+            E item = source.element();
+
+            if (returned + 1 < limit && source.advance()) {
+                heap.add(source);
+            }
+
+            returned++;
+
+            return item;
+        }
+    }
+
+    /**
+     * One queue read newest first, a page at a time.
+     */
+    private static final class Source<E> {
+
+        private final ConcurrentMostRecentlyInsertedQueue<? extends E> queue;
+        private final Object[] elements;
+        private final long[] stamps;
+        private int count;
+        private int index = -1;
+
+        Source(ConcurrentMostRecentlyInsertedQueue<? extends E> queue, int pageSize) {
+
+            this.queue = queue;
+            this.elements = new Object[pageSize];
+            this.stamps = new long[pageSize];
+        }
+
+        /**
+         * Moves to the next older element, reading the next page if needed.
+         *
+         * @return <tt>false</tt> if the queue has no older stamped element
+         */
+        boolean advance() {
+
+            if (index + 1 < count) {
+                index++;
+                return true;
+            }
+
+            long before = count == 0 ? Long.MAX_VALUE : stamps[count - 1];
+
+            count = queue.readStampedBefore(before, elements, stamps);
+            index = 0;
+
+            return count > 0;
+        }
+
+        long stamp() {
+
+            return stamps[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        E element() {
+
+            return (E) elements[index];
+        }
+    }
+}
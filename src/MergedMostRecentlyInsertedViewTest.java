@@ -0,0 +1,102 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class MergedMostRecentlyInsertedViewTest {
+
+    @Test
+    public void mergesInInsertionOrder() throws Exception {
+
+        InsertionSequence sequence = InsertionSequence.counter();
+        List<ConcurrentMostRecentlyInsertedQueue<Integer>> queues = new ArrayList<>();
+        List<List<Integer>> offered = new ArrayList<>();
+        int capacity = 100;
+
+        for (int q = 0; q < 4; q++) {
+            ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(capacity);
+            queue.setInsertionSequence(sequence);
+            queues.add(queue);
+            offered.add(new ArrayList<>());
+        }
+
+        Random random = new Random(3);
+        for (int i = 0; i < 2000; i++) {
+            int q = random.nextInt(queues.size());
+            queues.get(q).offer(i);
+            offered.get(q).add(i);
+        }
+
+        List<Integer> retained = new ArrayList<>();
+        for (List<Integer> values : offered) {
+            retained.addAll(values.subList(Math.max(0, values.size() - capacity), values.size()));
+        }
+        Collections.sort(retained);
+
+        for (int limit : new int[]{0, 1, 10, 150, 400, 1000}) {
+            MergedMostRecentlyInsertedView<Integer> view = new MergedMostRecentlyInsertedView<>(queues, limit);
+            List<Integer> expected = retained.subList(Math.max(0, retained.size() - limit), retained.size());
+
+            assertEquals(expected, view.latest());
+
+            List<Integer> newestFirst = new ArrayList<>(expected);
+            Collections.reverse(newestFirst);
+            assertEquals(newestFirst, view.stream().collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void skipsUnstampedAndRemovedElements() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> first = new ConcurrentMostRecentlyInsertedQueue<>(10);
+        ConcurrentMostRecentlyInsertedQueue<Integer> second = new ConcurrentMostRecentlyInsertedQueue<>(10);
+        first.offer(-1);
+
+        InsertionSequence sequence = InsertionSequence.hybridClock();
+        first.setInsertionSequence(sequence);
+        second.setInsertionSequence(sequence);
+
+        for (int i = 0; i < 6; i++) {
+            (i % 2 == 0 ? first : second).offer(i);
+        }
+        second.remove(3);
+
+        MergedMostRecentlyInsertedView<Integer> view = new MergedMostRecentlyInsertedView<>(Arrays.asList(first, second), 10);
+        assertEquals(Arrays.asList(0, 1, 2, 4, 5), view.latest());
+
+        Object[] elements = new Object[2];
+        long[] stamps = new long[2];
+        assertEquals(2, first.readStampedBefore(Long.MAX_VALUE, elements, stamps));
+        assertArrayEquals(new Object[]{4, 2}, elements);
+        assertTrue(stamps[0] > stamps[1]);
+        assertEquals(1, first.readStampedBefore(stamps[1], elements, stamps));
+        assertEquals(0, elements[0]);
+        assertEquals(0, first.readStampedBefore(stamps[0], elements, stamps));
+    }
+
+    @Test
+    public void hybridClockIncreases() throws Exception {
+
+        InsertionSequence clock = InsertionSequence.hybridClock();
+        Set<Long> seen = new HashSet<>();
+        long previous = 0;
+
+        for (int i = 0; i < 100000; i++) {
+            long stamp = clock.next();
+            assertTrue(stamp > previous);
+            assertTrue(seen.add(stamp));
+            previous = stamp;
+        }
+
+        long now = System.currentTimeMillis();
+        assertTrue(Math.abs((previous >>> InsertionSequence.HybridClock.LOGICAL_BITS) - now) < 10000);
+    }
+}
@@ -1,6 +1,11 @@
 import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
 
 
 public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
@@ -11,10 +16,38 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
     private QueueItem<E> head;
     private QueueItem<E> tail;
     private QueueItem<E> current;
+    private int currentGeneration;
+
+    /**
+     * Nodes unlinked from the head kept for reuse by {@link #offer}, at most
+     * {@code nodePoolSize} of them.
+     */
+    private final int nodePoolSize;
+    private final ArrayDeque<QueueItem<E>> freeNodes;
 
     public MostRecentlyInsertedQueue(int capacity) {
 
+        this(capacity, 0);
+    }
+
+    /**
+     * Creates a queue which recycles its list nodes: nodes of polled and
+     * evicted elements are kept in a free list and reused by later offers,
+     * so a queue in steady state does not allocate per offer. Every node
+     * carries a generation incremented on recycling, and the iterator goes
+     * on from the head when the node it stands on has been recycled.
+     *
+     * @param capacity     the capacity of the queue
+     * @param nodePoolSize the max number of free nodes kept for reuse,
+     *                     <tt>0</tt> turns recycling off
+     */
+    public MostRecentlyInsertedQueue(int capacity, int nodePoolSize) {
+
+        if (nodePoolSize < 0) throw new IllegalArgumentException();
+
         this.maxQueueCapacity = capacity;
+        this.nodePoolSize = nodePoolSize;
+        this.freeNodes = nodePoolSize == 0 ? null : new ArrayDeque<>(Math.min(nodePoolSize, 1024));
     }
 
     private Iterator<E> iterator = new Iterator<E>() {
@@ -23,17 +56,20 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
         @Override
         public boolean hasNext() {
 
-            if (current == null) return head != null;
+            if (current == null || current.getGeneration() != currentGeneration) return head != null;
             else return current.getNext() != null;
         }
 
         @Override
         public E next() {
 
-            if (current == null) current = head;
+            if (current == null || current.getGeneration() != currentGeneration) current = head;
             else current = current.getNext();
 
-            if (current != null) return current.getObject();
+            if (current != null) {
+                currentGeneration = current.getGeneration();
+                return current.getObject();
+            }
             else throw new NoSuchElementException();
 
         }
@@ -57,6 +93,121 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
         return iterator;
     }
 
+    /**
+     * Returns a new cursor over the elements, from oldest to newest. Unlike
+     * {@link #iterator()}, which returns one iterator shared by all callers,
+     * every cursor has its own position and can be started over with
+     * {@link Cursor#reset}, so a caller scanning the queue repeatedly can
+     * keep one cursor and scan without allocating.
+     */
+    public Cursor cursor() {
+
+        return new Cursor();
+    }
+
+    /**
+     * Reusable cursor over the elements of the queue, from oldest to newest.
+     * If the node it stands on has been polled and recycled it goes on from
+     * the head. Does not support {@link #remove}.
+     */
+    public class Cursor implements Iterator<E> {
+
+        private QueueItem<E> last;
+        private int lastGeneration;
+
+        Cursor() {
+
+        }
+
+        /**
+         * Starts the cursor over from the current head of the queue.
+         */
+        public void reset() {
+
+            last = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            return successor() != null;
+        }
+
+        @Override
+        public E next() {
+
+            QueueItem<E> next = successor();
+
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+
+            last = next;
+            lastGeneration = next.getGeneration();
+
+            return next.getObject();
+        }
+
+        private QueueItem<E> successor() {
+
+            if (last == null || last.getGeneration() != lastGeneration) return head;
+            else return last.getNext();
+        }
+    }
+
+    /**
+     * Performs the action for every element of the queue, from oldest to
+     * newest, without allocating and without touching the shared iterator.
+     * The action must not modify the queue.
+     *
+     * @throws NullPointerException if the specified action is null
+     */
+    @Override
+    public void forEach(Consumer<? super E> action) {
+
+        Objects.requireNonNull(action);
+
+        for (QueueItem<E> item = head; item != null; item = item.getNext()) {
+            action.accept(item.getObject());
+        }
+    }
+
+    /**
+     * Hands the elements of the queue to the action in batches, from oldest
+     * to newest, without allocating. The action gets the array and the number
+     * of elements copied into it, only the last batch may be shorter than the
+     * array. The same array is passed for every batch, and the slots after the
+     * copied elements are cleared. The action must not modify the queue.
+     *
+     * @param batch  the array the batches are copied into, its length is the batch size
+     * @param action the action called once per batch with the array and the element count
+     * @throws IllegalArgumentException if the array is empty
+     * @throws NullPointerException     if the array or the action is null
+     */
+    public void forEachBatch(E[] batch, ObjIntConsumer<? super E[]> action) {
+
+        Objects.requireNonNull(action);
+
+        if (batch.length == 0) throw new IllegalArgumentException();
+
+        QueueItem<E> item = head;
+
+        while (item != null) {
+            int count = 0;
+
+            while (count < batch.length && item != null) {
+                batch[count++] = item.getObject();
+                item = item.getNext();
+            }
+
+            if (count < batch.length) {
+                Arrays.fill(batch, count, batch.length, null);
+            }
+
+            action.accept(batch, count);
+        }
+    }
+
 
     @Override
     public int size() {
@@ -97,30 +248,29 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
         if (e == null) throw new NullPointerException();
 
         try {
-            if (size() < maxQueueCapacity) {
-
-                QueueItem<E> item = new QueueItem<>();
-
-                item.setObject(e);
+            if (size() >= maxQueueCapacity && head != null) {
 
-                if (head == null) {
-                    head = item;
-                } else {
-                    tail.setNext(item);
-                }
+                evicted(unlinkHead());
+            }
 
-                tail = item;
+            QueueItem<E> item = freeNodes == null ? null : freeNodes.pollLast();
 
-                queueSizeIncrease();
+            if (item == null) {
+                item = new QueueItem<>();
+            }
 
-                return true;
+            item.setObject(e);
 
+            if (head == null) {
+                head = item;
             } else {
-
-                poll();
-                offer(e);
+                tail.setNext(item);
             }
 
+            tail = item;
+
+            queueSizeIncrease();
+
             return true;
 
         } catch (ClassCastException error) {
@@ -143,9 +293,25 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
             return null;
         }
 
-        E item = head.getObject();
+        return unlinkHead();
+    }
+
+    /**
+     * Called when {@link #offer} pushes the oldest element out of a full
+     * queue. Does nothing by default.
+     *
+     * @param e the evicted element
+     */
+    protected void evicted(E e) {
 
-        head = head.getNext();
+    }
+
+    private E unlinkHead() {
+
+        QueueItem<E> first = head;
+        E item = first.getObject();
+
+        head = first.getNext();
 
         if (head == null) {
             tail = null;
@@ -153,6 +319,13 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
         queueSizeDecrease();
 
+        if (freeNodes != null && freeNodes.size() < nodePoolSize) {
+            first.setObject(null);
+            first.setNext(null);
+            first.nextGeneration();
+            freeNodes.addLast(first);
+        }
+
         return item;
     }
 
@@ -177,6 +350,7 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
     private class QueueItem<T> {
         private T item;
         private QueueItem<T> next;
+        private int generation;
 
         public T getObject() {
 
@@ -197,6 +371,16 @@ public class MostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
 
             this.next = next;
         }
+
+        public int getGeneration() {
+
+            return generation;
+        }
+
+        public void nextGeneration() {
+
+            generation++;
+        }
     }
 
     @Override
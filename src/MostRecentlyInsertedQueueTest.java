@@ -3,8 +3,14 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -114,4 +120,101 @@ public class MostRecentlyInsertedQueueTest {
         assertSame(1, queue.peek());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void nodeRecycling() throws Exception {
+
+        Queue<Integer> queue = new MostRecentlyInsertedQueue<>(capacity, capacity);
+        ArrayDeque<Integer> expected = new ArrayDeque<>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 10000; i++) {
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.poll(), queue.poll());
+            } else {
+                queue.offer(i);
+                expected.add(i);
+                if (expected.size() > capacity) {
+                    expected.poll();
+                }
+            }
+            assertEquals(expected.size(), queue.size());
+            assertEquals(expected.peek(), queue.peek());
+        }
+    }
+
+    @Test
+    public void iteratorOverRecycledNode() throws Exception {
+
+        Queue<Integer> queue = new MostRecentlyInsertedQueue<>(3, 3);
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+
+        Iterator<Integer> it = queue.iterator();
+        assertSame(1, it.next());
+
+        queue.poll();
+        queue.offer(4);
+
+        assertEquals(true, it.hasNext());
+        assertSame(2, it.next());
+        assertSame(3, it.next());
+        assertSame(4, it.next());
+        assertEquals(false, it.hasNext());
+    }
+
+    @Test
+    public void cursor() throws Exception {
+
+        MostRecentlyInsertedQueue<Integer> queue = new MostRecentlyInsertedQueue<>(3, 3);
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+
+        MostRecentlyInsertedQueue<Integer>.Cursor first = queue.cursor();
+        MostRecentlyInsertedQueue<Integer>.Cursor second = queue.cursor();
+        assertSame(1, first.next());
+        assertSame(1, second.next());
+        assertSame(2, second.next());
+
+        queue.poll();
+        queue.offer(4);
+
+        assertSame(2, first.next());
+        assertSame(3, second.next());
+        assertSame(4, second.next());
+        assertEquals(false, second.hasNext());
+
+        second.reset();
+        assertSame(2, second.next());
+
+        exception.expect(NoSuchElementException.class);
+        first.next();
+        first.next();
+        first.next();
+    }
+
+    @Test
+    public void forEachBatch() throws Exception {
+
+        MostRecentlyInsertedQueue<Integer> queue = new MostRecentlyInsertedQueue<>(capacity);
+        for (int i = 0; i < 15; i++) {
+            queue.offer(i);
+        }
+
+        StringBuilder visited = new StringBuilder();
+        queue.forEach(visited::append);
+        assertEquals("567891011121314", visited.toString());
+
+        List<Integer[]> batches = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        queue.forEachBatch(new Integer[4], (batch, count) -> {
+            batches.add(batch.clone());
+            counts.add(count);
+        });
+        assertEquals(Arrays.asList(4, 4, 2), counts);
+        assertArrayEquals(new Integer[]{5, 6, 7, 8}, batches.get(0));
+        assertArrayEquals(new Integer[]{13, 14, null, null}, batches.get(2));
+    }
+
+}
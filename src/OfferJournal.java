@@ -0,0 +1,457 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of offered elements with group commit.
+ * <p>
+ * <p>{@link #append} only hands the element to a background committer and
+ * returns its sequence number, so it is cheap enough to call inside the
+ * critical section of a queue. The committer writes all pending records in one
+ * batch and makes them durable with a single {@link FileChannel#force}, waking
+ * up every thread blocked in {@link #awaitDurable} for that batch. A batch is
+ * committed when it has waited for the max commit delay or has reached
+ * {@value #MAX_BATCH_SIZE} records.
+ * <p>
+ * <p>Records are stored in segment files named after the sequence number of
+ * their first record. Each record is a length, a CRC32 and the payload, so
+ * a record torn by a crash is detected and ignored on recovery. Only the
+ * last <tt>capacity</tt> records can ever be recovered, so a segment is
+ * deleted as soon as all of its records have been pushed out of that window.
+ *
+ * @param <E> the type of elements written to the journal
+ */
+public class OfferJournal<E> implements Closeable {
+
+    static final String SEGMENT_SUFFIX = ".journal";
+    static final int MAX_BATCH_SIZE = 4096;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final Codec<E> codec;
+    private final int capacity;
+    private final int recordsPerSegment;
+    private final long maxCommitDelayNanos;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final Thread committer;
+
+    private ArrayList<E> pending = new ArrayList<>();
+    private long pendingSince;
+    private long nextSequence;
+    private long durableSequence;
+    private IOException failure;
+    private boolean closed;
+
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * Opens a journal in the directory. New records continue after the last
+     * record found there.
+     *
+     * @param directory         the directory holding the segment files
+     * @param codec             the codec used to encode the elements
+     * @param capacity          the number of most recent records that must stay recoverable
+     * @param recordsPerSegment the number of records after which a new segment file is started
+     * @param maxCommitDelay    how long a record may wait for other records to share its commit
+     * @param unit              the unit of <tt>maxCommitDelay</tt>
+     * @throws IOException if the directory cannot be read
+     */
+    public OfferJournal(Path directory, Codec<E> codec, int capacity, int recordsPerSegment,
+                        long maxCommitDelay, TimeUnit unit) throws IOException {
+
+        if (capacity <= 0 || recordsPerSegment <= 0) throw new IllegalArgumentException();
+
+        this.directory = Files.createDirectories(directory);
+        this.codec = codec;
+        this.capacity = capacity;
+        this.recordsPerSegment = recordsPerSegment;
+        this.maxCommitDelayNanos = unit.toNanos(maxCommitDelay);
+
+        for (Segment segment : listSegments(directory)) {
+            segment.count = readRecords(segment.path, null, null);
+            segment.sealed = true;
+            segments.add(segment);
+        }
+
+        Segment last = segments.peekLast();
+        this.nextSequence = last == null ? 0 : last.firstSequence + last.count;
+        this.durableSequence = nextSequence - 1;
+
+        deleteOutdatedSegments();
+
+        this.committer = new Thread(this::commitLoop, "queue-journal-" + directory.getFileName());
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Reads the last <tt>capacity</tt> valid records found in the directory.
+     *
+     * @return the recovered elements, oldest first
+     * @throws IOException if a segment cannot be read
+     */
+    public static <E> List<E> recover(Path directory, Codec<E> codec, int capacity) throws IOException {
+
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+
+        ArrayDeque<E> window = new ArrayDeque<>();
+
+        for (Segment segment : listSegments(directory)) {
+            readRecords(segment.path, codec, window);
+
+            while (window.size() > capacity) {
+                window.pollFirst();
+            }
+        }
+
+        return new ArrayList<>(window);
+    }
+
+    /**
+     * Queues the element for the next commit.
+     *
+     * @param element the element to write
+     * @return the sequence number to pass to {@link #awaitDurable}
+     */
+    public synchronized long append(E element) {
+
+        if (closed) throw new IllegalStateException("Journal is closed");
+
+        if (pending.isEmpty()) {
+            pendingSince = System.nanoTime();
+            notifyAll();
+        } else if (pending.size() + 1 == MAX_BATCH_SIZE) {
+            notifyAll();
+        }
+
+        pending.add(element);
+
+        return nextSequence++;
+    }
+
+    /**
+     * Returns <tt>true</tt> once the journal has been closed or its committer
+     * has failed, after which {@link #append} fails.
+     */
+    public synchronized boolean isClosed() {
+
+        return closed;
+    }
+
+    /**
+     * Blocks until the record with the given sequence number has been forced
+     * to disk. An interrupt does not cut the wait short, it is restored on
+     * return.
+     *
+     * @param sequence the value returned by {@link #append}
+     * @throws UncheckedIOException if the batch could not be written
+     */
+    public synchronized void awaitDurable(long sequence) {
+
+        boolean interrupted = false;
+
+        while (durableSequence < sequence && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (durableSequence < sequence) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    private void commitLoop() {
+
+        while (true) {
+            ArrayList<E> batch;
+            long firstSequence;
+
+            synchronized (this) {
+                try {
+                    while (!closed && !readyToCommit()) {
+                        if (pending.isEmpty()) {
+                            wait();
+                        } else {
+                            long left = maxCommitDelayNanos - (System.nanoTime() - pendingSince);
+                            TimeUnit.NANOSECONDS.timedWait(this, Math.max(left, 1));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+
+                if (pending.isEmpty() && closed) {
+                    return;
+                }
+
+                batch = pending;
+                firstSequence = durableSequence + 1;
+                pending = new ArrayList<>();
+            }
+
+            try {
+                write(batch, firstSequence);
+
+                synchronized (this) {
+                    durableSequence = firstSequence + batch.size() - 1;
+                    notifyAll();
+                }
+            } catch (IOException | RuntimeException error) {
+                synchronized (this) {
+                    failure = error instanceof IOException ? (IOException) error : new IOException(error);
+                    closed = true;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean readyToCommit() {
+
+        return !pending.isEmpty()
+                && (pending.size() >= MAX_BATCH_SIZE || System.nanoTime() - pendingSince >= maxCommitDelayNanos);
+    }
+
+    private void write(List<E> batch, long firstSequence) throws IOException {
+
+        int index = 0;
+
+        while (index < batch.size()) {
+            Segment segment = segments.peekLast();
+            boolean created = false;
+
+            if (segment == null || segment.sealed || segment.count >= recordsPerSegment) {
+                segment = Segment.create(directory, firstSequence + index);
+                segments.add(segment);
+                created = true;
+            }
+
+            int records = Math.min(batch.size() - index, recordsPerSegment - segment.count);
+
+            writeBuffer.clear();
+            for (int i = index; i < index + records; i++) {
+                byte[] payload = codec.encode(batch.get(i));
+
+                ensureWriteCapacity(RECORD_HEADER_SIZE + payload.length);
+                writeBuffer.putInt(payload.length).putInt(checksum(payload, 0, payload.length)).put(payload);
+            }
+            writeBuffer.flip();
+
+            FileChannel channel = segment.channel();
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+            channel.force(false);
+
+            if (created) {
+                forceDirectory();
+            }
+
+            segment.count += records;
+            index += records;
+        }
+
+        deleteOutdatedSegments();
+    }
+
+    private void ensureWriteCapacity(int bytes) {
+
+        if (writeBuffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + bytes));
+            writeBuffer.flip();
+            larger.put(writeBuffer);
+            writeBuffer = larger;
+        }
+    }
+
+    /**
+     * Makes the entry of a new segment file durable. Forcing the file only
+     * covers its contents, and without its directory entry a crash can lose
+     * the whole file with the records already reported durable.
+     */
+    private void forceDirectory() throws IOException {
+
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Deletes the segments whose records are all older than the last
+     * <tt>capacity</tt> records. The directory is not forced afterwards: a
+     * deletion lost in a crash brings back a segment of outdated records,
+     * which recovery skips since it only replays the last <tt>capacity</tt>.
+     */
+    private void deleteOutdatedSegments() throws IOException {
+
+        long windowStart;
+
+        synchronized (this) {
+            windowStart = durableSequence + 1 - capacity;
+        }
+
+        while (segments.size() > 1) {
+            Segment oldest = segments.peekFirst();
+
+            if (oldest.firstSequence + oldest.count > windowStart) {
+                break;
+            }
+
+            segments.pollFirst();
+            oldest.close();
+            Files.deleteIfExists(oldest.path);
+        }
+    }
+
+    /**
+     * Commits the pending records, stops the committer and closes the files.
+     */
+    @Override
+    public void close() throws IOException {
+
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Segment segment : segments) {
+            segment.close();
+        }
+
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static List<Segment> listSegments(Path directory) throws IOException {
+
+        List<Segment> result = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                result.add(new Segment(file, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()))));
+            }
+        }
+
+        result.sort((a, b) -> Long.compare(a.firstSequence, b.firstSequence));
+
+        return result;
+    }
+
+    /**
+     * Reads the valid records of a segment, stopping at the first torn record.
+     *
+     * @return the number of valid records
+     */
+    private static <E> int readRecords(Path file, Codec<E> codec, ArrayDeque<E> into) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        int count = 0;
+
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+
+            if (checksum(buffer.array(), buffer.position(), length) != checksum) {
+                break;
+            }
+
+            if (into != null) {
+                ByteBuffer record = buffer.slice();
+                record.limit(length);
+                into.add(codec.decode(record));
+            }
+
+            buffer.position(buffer.position() + length);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * CRC32 over the length and the payload, so a zero-filled tail is not
+     * mistaken for empty records.
+     */
+    private static int checksum(byte[] payload, int offset, int length) {
+
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Integer.BYTES).putInt(0, length));
+        crc.update(payload, offset, length);
+
+        return (int) crc.getValue();
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final long firstSequence;
+        private int count;
+        private boolean sealed;
+        private FileChannel channel;
+
+        Segment(Path path, long firstSequence) {
+
+            this.path = path;
+            this.firstSequence = firstSequence;
+        }
+
+        static Segment create(Path directory, long firstSequence) {
+
+            return new Segment(directory.resolve(String.format("%020d", firstSequence) + SEGMENT_SUFFIX), firstSequence);
+        }
+
+        FileChannel channel() throws IOException {
+
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+
+            return channel;
+        }
+
+        void close() throws IOException {
+
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
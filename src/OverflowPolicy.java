@@ -0,0 +1,109 @@
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Decides what {@link ConcurrentMostRecentlyInsertedQueue#offer} does when
+ * the queue is full, see
+ * {@link ConcurrentMostRecentlyInsertedQueue#setOverflowPolicy}.
+ * <p>
+ * <p>Both methods are called while holding the queue lock, inside the
+ * critical section of the offer, so they must be quick and must not call
+ * back into the queue. Policies with state, like {@link #sampling}, belong
+ * to a single queue.
+ *
+ * @param <E> the type of elements held in the queue
+ */
+public interface OverflowPolicy<E> {
+
+    /**
+     * Returns how long an offer to a full queue waits for room before
+     * {@link #onOverflow} is asked, <tt>0</tt> for not waiting. The lock is
+     * released while waiting. Offers inside a batch, like
+     * {@link ConcurrentMostRecentlyInsertedQueue#addAll}, never wait.
+     */
+    default long waitNanos() {
+
+        return 0;
+    }
+
+    /**
+     * Called when the element is offered to a full queue.
+     *
+     * @param offered the element being offered
+     * @return <tt>true</tt> to evict the oldest element and insert the
+     * offered one, <tt>false</tt> to drop the offered element, in which case
+     * <tt>offer</tt> returns <tt>false</tt>
+     */
+    boolean onOverflow(E offered);
+
+    /**
+     * Evicts the oldest element, the behavior of a queue without a policy.
+     */
+    static <E> OverflowPolicy<E> dropOldest() {
+
+        return offered -> true;
+    }
+
+    /**
+     * Keeps the queue as it is and drops the offered element.
+     */
+    static <E> OverflowPolicy<E> dropNewest() {
+
+        return offered -> false;
+    }
+
+    /**
+     * Waits up to the timeout for a consumer to make room, then drops the
+     * offered element. An interrupt ends the wait early and is restored.
+     */
+    static <E> OverflowPolicy<E> blockThenDropNewest(long timeout, TimeUnit unit) {
+
+        final long nanos = unit.toNanos(timeout);
+
+        return new OverflowPolicy<E>() {
+            @Override
+            public long waitNanos() {
+
+                return nanos;
+            }
+
+            @Override
+            public boolean onOverflow(E offered) {
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Drops the offered element and hands it to the callback, for example to
+     * route it to another store.
+     */
+    static <E> OverflowPolicy<E> handTo(Consumer<? super E> callback) {
+
+        return offered -> {
+            callback.accept(offered);
+            return false;
+        };
+    }
+
+    /**
+     * Keeps one in <tt>every</tt> elements offered while the queue is full,
+     * evicting the oldest element for it, and drops the others, so a burst
+     * is thinned out instead of flushing the whole window.
+     */
+    static <E> OverflowPolicy<E> sampling(int every) {
+
+        if (every <= 0) throw new IllegalArgumentException();
+
+        return new OverflowPolicy<E>() {
+            private long overflows;
+
+            @Override
+            public boolean onOverflow(E offered) {
+
+                return overflows++ % every == 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,261 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-key {@link ConcurrentMostRecentlyInsertedQueue}s sharing one global
+ * capacity budget, for example one window per tenant.
+ * <p>
+ * <p>Partitions are created on first use with the minimum capacity. When a
+ * full partition receives an element through {@link #offer} it asks for
+ * twice its capacity, up to the maximum. Free budget is granted right away;
+ * otherwise capacity is reclaimed from the partitions which have been
+ * inactive the longest, halving their capacity, never below the minimum,
+ * and evicting their oldest elements. The sum of the partition capacities,
+ * and so the number of elements held, stays within the budget while the
+ * busiest partitions end up with the largest windows.
+ * <p>
+ * <p>Every partition is guaranteed the minimum capacity, so the budget is
+ * only exceeded if there are more partitions than <tt>budget / minCapacity</tt>.
+ * A partition is active whenever it is looked up or offered to through the
+ * registry; offers made directly to a partition queue neither mark it active
+ * nor make it grow.
+ *
+ * @param <K> the type of the partition keys
+ * @param <E> the type of elements held in the queues
+ */
+public class PartitionedQueueRegistry<K, E> {
+
+    /**
+     * A grow request which could not be served is not repeated for the same
+     * partition before this delay, so a full registry does not take its lock
+     * on every offer.
+     */
+    private static final long GROW_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Reclaiming frees at least this fraction of the budget at once, so the
+     * scan over the partitions is amortized over many grow requests.
+     */
+    private static final int RECLAIM_FRACTION = 64;
+
+    private final long budget;
+    private final int minCapacity;
+    private final int maxCapacity;
+
+    private final ConcurrentHashMap<K, Partition<K, E>> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * Sum of the partition capacities. Guarded by this registry.
+     */
+    private long allocated;
+
+    /**
+     * @param budget      the max number of elements held by all partitions together
+     * @param minCapacity the capacity of a new partition, capacity is never reclaimed below it
+     * @param maxCapacity the capacity a partition may grow to at most
+     */
+    public PartitionedQueueRegistry(long budget, int minCapacity, int maxCapacity) {
+
+        if (minCapacity <= 0 || maxCapacity < minCapacity || budget < minCapacity) {
+            throw new IllegalArgumentException();
+        }
+
+        this.budget = budget;
+        this.minCapacity = minCapacity;
+        this.maxCapacity = maxCapacity;
+    }
+
+    /**
+     * Returns the queue of the key, creating it if needed, and marks it active.
+     */
+    public ConcurrentMostRecentlyInsertedQueue<E> queue(K key) {
+
+        return partition(key).queue;
+    }
+
+    /**
+     * Returns the queue of the key, or <tt>null</tt> if there is none. Does
+     * not mark it active.
+     */
+    public ConcurrentMostRecentlyInsertedQueue<E> get(K key) {
+
+        Partition<K, E> partition = partitions.get(key);
+
+        return partition == null ? null : partition.queue;
+    }
+
+    /**
+     * Offers the element to the queue of the key, creating it if needed, and
+     * grows the queue first if it is full.
+     *
+     * @return <tt>true</tt>
+     * @throws NullPointerException if the element is null
+     */
+    public boolean offer(K key, E e) {
+
+        if (e == null) throw new NullPointerException();
+
+        Partition<K, E> partition = partition(key);
+        ConcurrentMostRecentlyInsertedQueue<E> queue = partition.queue;
+
+        if (queue.size() >= queue.getCapacity() && queue.getCapacity() < maxCapacity
+                && partition.lastActive - partition.nextGrowAttempt >= 0) {
+            grow(partition);
+        }
+
+        return queue.offer(e);
+    }
+
+    /**
+     * Removes the queue of the key and releases its capacity.
+     *
+     * @return the removed queue, or <tt>null</tt> if there was none
+     */
+    public ConcurrentMostRecentlyInsertedQueue<E> remove(K key) {
+
+        synchronized (this) {
+            Partition<K, E> partition = partitions.remove(key);
+
+            if (partition == null) {
+                return null;
+            }
+
+            allocated -= partition.queue.getCapacity();
+
+            return partition.queue;
+        }
+    }
+
+    public int partitionCount() {
+
+        return partitions.size();
+    }
+
+    /**
+     * Returns the sum of the capacities of all partitions.
+     */
+    public synchronized long allocatedCapacity() {
+
+        return allocated;
+    }
+
+    public long getBudget() {
+
+        return budget;
+    }
+
+    private Partition<K, E> partition(K key) {
+
+        Partition<K, E> partition = partitions.get(key);
+
+        if (partition == null) {
+            synchronized (this) {
+                partition = partitions.get(key);
+
+                if (partition == null) {
+                    if (allocated + minCapacity > budget) {
+                        reclaim(allocated + minCapacity - budget, null);
+                    }
+
+                    partition = new Partition<>(key, minCapacity);
+                    allocated += minCapacity;
+                    partitions.put(key, partition);
+                }
+            }
+        }
+
+        partition.lastActive = System.nanoTime();
+
+        return partition;
+    }
+
+    private synchronized void grow(Partition<K, E> partition) {
+
+        ConcurrentMostRecentlyInsertedQueue<E> queue = partition.queue;
+
+        if (partitions.get(partition.key) != partition) {
+            // removed concurrently, its capacity is no longer accounted
+            return;
+        }
+
+        int current = queue.getCapacity();
+        int wanted = (int) Math.min(maxCapacity, current * 2L);
+
+        if (allocated + wanted - current > budget) {
+            reclaim(allocated + wanted - current - budget, partition);
+        }
+
+        int granted = (int) Math.min(wanted, current + Math.max(0, budget - allocated));
+
+        if (granted <= current) {
+            partition.nextGrowAttempt = System.nanoTime() + GROW_RETRY_NANOS;
+            return;
+        }
+
+        queue.setCapacity(granted);
+        allocated += granted - current;
+    }
+
+    /**
+     * Frees at least {@code needed} capacity, or a fraction of the budget if
+     * that is more, from the least recently active partitions other than
+     * {@code requester}. Must be called while holding this registry.
+     */
+    private void reclaim(long needed, Partition<K, E> requester) {
+
+        long target = Math.max(needed, budget / RECLAIM_FRACTION);
+        long freed = 0;
+
+        List<Partition<K, E>> candidates = new ArrayList<>();
+
+        for (Partition<K, E> partition : partitions.values()) {
+            if (partition != requester && partition.queue.getCapacity() > minCapacity) {
+                partition.reclaimOrder = partition.lastActive;
+                candidates.add(partition);
+            }
+        }
+
+        // sorted on a copy, lastActive keeps changing during the sort
+        candidates.sort((a, b) -> Long.compare(a.reclaimOrder - b.reclaimOrder, 0));
+
+        while (freed < target && !candidates.isEmpty()) {
+            List<Partition<K, E>> shrinkable = new ArrayList<>();
+
+            for (Partition<K, E> partition : candidates) {
+                if (freed >= target) {
+                    break;
+                }
+
+                int current = partition.queue.getCapacity();
+                int reduced = Math.max(minCapacity, current / 2);
+
+                partition.queue.setCapacity(reduced);
+                freed += current - reduced;
+
+                if (reduced > minCapacity) {
+                    shrinkable.add(partition);
+                }
+            }
+
+            candidates = shrinkable;
+        }
+
+        allocated -= freed;
+    }
+
+    private static final class Partition<K, E> {
+        private final K key;
+        private final ConcurrentMostRecentlyInsertedQueue<E> queue;
+        private volatile long lastActive;
+        private volatile long nextGrowAttempt = System.nanoTime();
+        private long reclaimOrder;
+
+        Partition(K key, int capacity) {
+
+            this.key = key;
+            this.queue = new ConcurrentMostRecentlyInsertedQueue<>(capacity);
+        }
+    }
+}
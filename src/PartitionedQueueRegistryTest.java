@@ -0,0 +1,115 @@
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PartitionedQueueRegistryTest {
+
+    @Test
+    public void lazyPartitions() throws Exception {
+
+        PartitionedQueueRegistry<String, Integer> registry = new PartitionedQueueRegistry<>(100, 4, 32);
+
+        assertNull(registry.get("a"));
+        assertEquals(0, registry.partitionCount());
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = registry.queue("a");
+        assertSame(queue, registry.queue("a"));
+        assertSame(queue, registry.get("a"));
+        assertEquals(4, queue.getCapacity());
+        assertEquals(4, registry.allocatedCapacity());
+
+        registry.offer("b", 1);
+        assertEquals(2, registry.partitionCount());
+        assertEquals(Integer.valueOf(1), registry.get("b").peek());
+
+        assertSame(queue, registry.remove("a"));
+        assertEquals(4, registry.allocatedCapacity());
+    }
+
+    @Test
+    public void busyPartitionGrows() throws Exception {
+
+        PartitionedQueueRegistry<String, Integer> registry = new PartitionedQueueRegistry<>(100, 4, 32);
+
+        for (int i = 0; i < 100; i++) {
+            registry.offer("hot", i);
+        }
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> hot = registry.get("hot");
+        assertEquals(32, hot.getCapacity());
+        assertEquals(32, hot.size());
+        assertEquals(Integer.valueOf(99), hot.peekLast());
+        assertEquals(Integer.valueOf(68), hot.peek());
+    }
+
+    @Test
+    public void budgetReclaimedFromIdlePartitions() throws Exception {
+
+        PartitionedQueueRegistry<Integer, Integer> registry = new PartitionedQueueRegistry<>(64, 2, 32);
+
+        for (int tenant = 0; tenant < 4; tenant++) {
+            for (int i = 0; i < 16; i++) {
+                registry.offer(tenant, i);
+            }
+        }
+
+        assertEquals(64, registry.allocatedCapacity());
+
+        // tenant 0 is the least recently active, tenant 4 is new and busy
+        for (int i = 0; i < 1000; i++) {
+            registry.offer(4, i);
+            registry.offer(3, i);
+        }
+
+        assertTrue(registry.allocatedCapacity() <= registry.getBudget());
+
+        long held = 0;
+        for (int tenant = 0; tenant <= 4; tenant++) {
+            ConcurrentMostRecentlyInsertedQueue<Integer> queue = registry.get(tenant);
+            assertTrue(queue.size() <= queue.getCapacity());
+            held += queue.getCapacity();
+        }
+        assertEquals(registry.allocatedCapacity(), held);
+
+        assertEquals(2, registry.get(0).getCapacity());
+        assertEquals(2, registry.get(0).size());
+        assertEquals(Integer.valueOf(15), registry.get(0).peekLast());
+        assertTrue(registry.get(4).getCapacity() > registry.get(1).getCapacity());
+    }
+
+    @Test
+    public void budgetThreads() throws Exception {
+
+        final PartitionedQueueRegistry<Integer, Integer> registry = new PartitionedQueueRegistry<>(10000, 8, 1024);
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                java.util.Random random = new java.util.Random(seed);
+                for (int i = 0; i < 200000; i++) {
+                    // a few hot keys and a long tail of cold ones
+                    int key = random.nextInt(4) == 0 ? random.nextInt(1000) : random.nextInt(8);
+                    registry.offer(key, i);
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long held = 0;
+        for (int key = 0; key < 1000; key++) {
+            ConcurrentMostRecentlyInsertedQueue<Integer> queue = registry.get(key);
+            if (queue != null) {
+                held += queue.getCapacity();
+                assertTrue(queue.size() <= queue.getCapacity());
+            }
+        }
+
+        assertEquals(registry.allocatedCapacity(), held);
+        assertTrue(held <= registry.getBudget());
+    }
+}
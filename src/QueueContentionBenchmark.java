@@ -0,0 +1,122 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+/**
+ * Measures the throughput of contended offers and polls on the lock based
+ * {@link ConcurrentMostRecentlyInsertedQueue}, the
+ * {@link FlatCombiningMostRecentlyInsertedQueue} and the
+ * {@link AdaptiveMostRecentlyInsertedQueue}.
+ * <p>
+ * <p>Every thread offers an element and polls one, the given number of times,
+ * all threads starting together on one queue. The time is the wall-clock time
+ * until the last thread is done.
+ * <p>
+ * <p>Usage, all arguments optional:
+ * <pre>
+ * java QueueContentionBenchmark threads=10 operations=1000000 capacity=1000
+ * </pre>
+ * <tt>operations</tt> is the number of offer and poll pairs per thread.
+ */
+public class QueueContentionBenchmark {
+
+    private final int threads;
+    private final int operations;
+
+    /**
+     * @param threads    the number of threads sharing the queue
+     * @param operations the number of offer and poll pairs per thread
+     */
+    public QueueContentionBenchmark(int threads, int operations) {
+
+        if (threads <= 0 || operations <= 0) throw new IllegalArgumentException();
+
+        this.threads = threads;
+        this.operations = operations;
+    }
+
+    /**
+     * Runs the threads on the queue.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    public long measure(final Queue<Integer> queue) throws InterruptedException {
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int i = 0; i < operations; i++) {
+                    queue.offer(i);
+                    queue.poll();
+                }
+            }, "contention-benchmark-" + t);
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Returns the queues compared by {@link #main}, with their names.
+     */
+    public static Map<String, Supplier<Queue<Integer>>> defaultQueues(int capacity) {
+
+        Map<String, Supplier<Queue<Integer>>> queues = new LinkedHashMap<>();
+        queues.put("locked", () -> new ConcurrentMostRecentlyInsertedQueue<>(capacity));
+        queues.put("combining", () -> new FlatCombiningMostRecentlyInsertedQueue<>(capacity));
+        queues.put("adaptive", () -> new AdaptiveMostRecentlyInsertedQueue<>(capacity));
+
+        return queues;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        Map<String, String> options = new HashMap<>();
+        options.put("threads", "10");
+        options.put("operations", "1000000");
+        options.put("capacity", "1000");
+
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2 || !options.containsKey(pair[0])) {
+                System.err.println("Unknown argument " + arg);
+                System.exit(1);
+            }
+            options.put(pair[0], pair[1]);
+        }
+
+        int threads = Integer.parseInt(options.get("threads"));
+        int operations = Integer.parseInt(options.get("operations"));
+        QueueContentionBenchmark benchmark = new QueueContentionBenchmark(threads, operations);
+
+        System.out.println("Contended offer+poll " + options);
+        System.out.printf(Locale.ROOT, "%-12s %10s %14s%n", "queue", "time(ms)", "ops/s");
+
+        for (Map.Entry<String, Supplier<Queue<Integer>>> entry
+                : defaultQueues(Integer.parseInt(options.get("capacity"))).entrySet()) {
+            long nanos = benchmark.measure(entry.getValue().get());
+
+            System.out.printf(Locale.ROOT, "%-12s %10d %14.0f%n", entry.getKey(), nanos / 1_000_000,
+                    2.0 * threads * operations * 1e9 / nanos);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class QueueContentionBenchmarkTest {
+
+    @Test
+    public void measure() throws Exception {
+
+        QueueContentionBenchmark benchmark = new QueueContentionBenchmark(4, 10_000);
+
+        for (Map.Entry<String, Supplier<Queue<Integer>>> entry : QueueContentionBenchmark.defaultQueues(100).entrySet()) {
+            Queue<Integer> queue = entry.getValue().get();
+
+            assertEquals(entry.getKey(), true, benchmark.measure(queue) > 0);
+            assertEquals(entry.getKey(), true, queue.size() <= 4);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.EnumMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples the latency of queue operations into one {@link LatencyHistogram}
+ * per operation type.
+ * <p>
+ * <p>Only one in {@link #setSampleEvery N} operations is timed with
+ * {@link System#nanoTime}, picked at random per thread, so the cost for the
+ * other operations is a volatile read and a thread-local random number. The
+ * rate can be changed at any time, <tt>0</tt> turns sampling off.
+ */
+public class QueueLatencyRecorder {
+
+    public enum Operation {
+        OFFER, OFFER_WITH_EVICTION, POLL_HIT, POLL_MISS, ITERATION
+    }
+
+    /**
+     * Returned by {@link #start} for operations which are not sampled.
+     */
+    static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+    private volatile int sampleEvery;
+
+    public QueueLatencyRecorder() {
+
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Sets how many operations share one timed sample, <tt>1</tt> times every
+     * operation and <tt>0</tt> turns sampling off.
+     */
+    public void setSampleEvery(int sampleEvery) {
+
+        if (sampleEvery < 0) throw new IllegalArgumentException();
+
+        this.sampleEvery = sampleEvery;
+    }
+
+    public int getSampleEvery() {
+
+        return sampleEvery;
+    }
+
+    /**
+     * Returns the start time of a sampled operation, or {@link #NOT_SAMPLED}.
+     */
+    long start() {
+
+        int every = sampleEvery;
+
+        if (every == 0 || (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0)) {
+            return NOT_SAMPLED;
+        }
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the latency of an operation started with {@link #start}.
+     */
+    void record(Operation operation, long start) {
+
+        if (start != NOT_SAMPLED) {
+            histograms[operation.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns a copy of the histograms, latencies in nanoseconds.
+     */
+    public EnumMap<Operation, LatencyHistogram> snapshot() {
+
+        EnumMap<Operation, LatencyHistogram> result = new EnumMap<>(Operation.class);
+
+        for (Operation operation : Operation.values()) {
+            result.put(operation, histograms[operation.ordinal()].snapshot());
+        }
+
+        return result;
+    }
+
+    public void reset() {
+
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for the queues of this project.
+ * <p>
+ * <p>Every thread issues operations on a fixed schedule derived from the
+ * target rate, whatever the latency of the previous operation, and the
+ * latency of an operation is measured from the time it was scheduled to
+ * start, not from the time it actually started. An operation delayed behind
+ * a stall is therefore charged with the time it waited, which corrects the
+ * coordinated omission of a closed-loop harness like the one in
+ * <tt>ConcurrentMostRecentlyInsertedQueueTest</tt>. Latencies are recorded per
+ * operation type into a {@link LatencyHistogram}.
+ * <p>
+ * <p>Usage, all arguments optional:
+ * <pre>
+ * java QueueLoadGenerator queue=concurrent capacity=1000 threads=4 rate=200000 duration=10 warmup=2
+ *                         mix=offer:60,poll:25,peek:10,iterate:1,remove:4
+ * </pre>
+ * <tt>queue</tt> is one of <tt>concurrent</tt>, <tt>flat</tt> or
+ * <tt>adaptive</tt>, <tt>rate</tt> is the total rate in operations per second
+ * over all threads, <tt>duration</tt> and <tt>warmup</tt> are in seconds.
+ */
+public class QueueLoadGenerator {
+
+    public enum Operation {
+        OFFER, POLL, PEEK, ITERATE, REMOVE
+    }
+
+    private final Queue<Integer> queue;
+    private final int capacity;
+    private final int threads;
+    private final long rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final EnumMap<Operation, Integer> mix;
+
+    private final EnumMap<Operation, LatencyHistogram> histograms = new EnumMap<>(Operation.class);
+
+    /**
+     * Keeps the results of the operations alive so they are not optimized away.
+     */
+    private volatile int blackhole;
+
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * @param queue    the queue under test, pre-filled by {@link #run}
+     * @param capacity the capacity of the queue, used to pre-fill it and pick elements to remove
+     * @param threads  the number of load threads
+     * @param rate     the total target rate in operations per second
+     * @param duration how long to measure
+     * @param warmup   how long to run before measuring
+     * @param unit     the unit of <tt>duration</tt> and <tt>warmup</tt>
+     * @param mix      the relative weight of every operation, operations without weight are not issued
+     */
+    public QueueLoadGenerator(Queue<Integer> queue, int capacity, int threads, long rate,
+                              long duration, long warmup, TimeUnit unit, Map<Operation, Integer> mix) {
+
+        if (threads <= 0 || rate <= 0 || mix.isEmpty()) throw new IllegalArgumentException();
+
+        this.queue = queue;
+        this.capacity = capacity;
+        this.threads = threads;
+        this.rate = rate;
+        this.durationNanos = unit.toNanos(duration);
+        this.warmupNanos = unit.toNanos(warmup);
+        this.mix = new EnumMap<>(mix);
+
+        for (Operation operation : Operation.values()) {
+            histograms.put(operation, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Runs the load and returns the latency histograms of the measured
+     * period, in nanoseconds, per operation type.
+     */
+    public Map<Operation, LatencyHistogram> run() throws InterruptedException {
+
+        for (int i = 0; i < capacity; i++) {
+            queue.offer(i);
+        }
+
+        final Operation[] schedule = buildSchedule();
+        final long intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) * threads / rate);
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        final long measureFrom = start + warmupNanos;
+        final long end = measureFrom + durationNanos;
+        final CountDownLatch latch = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            final long threadStart = start + intervalNanos * t / threads;
+
+            Thread thread = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                int sink = 0;
+
+                for (long i = 0; ; i++) {
+                    long intended = threadStart + i * intervalNanos;
+                    if (intended >= end) {
+                        break;
+                    }
+
+                    long now;
+                    while ((now = System.nanoTime()) < intended) {
+                        if (intended - now > 50_000) {
+                            LockSupport.parkNanos(intended - now - 50_000);
+                        } else {
+                            Thread.onSpinWait();
+                        }
+                    }
+
+                    Operation operation = schedule[random.nextInt(schedule.length)];
+                    try {
+                        sink += execute(operation, random);
+                    } catch (RuntimeException error) {
+                        errors.incrementAndGet();
+                        continue;
+                    }
+                    long done = System.nanoTime();
+
+                    if (intended >= measureFrom) {
+                        histograms.get(operation).record(done - intended);
+                    }
+                }
+
+                blackhole = sink;
+                latch.countDown();
+            }, "load-generator-" + t);
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        latch.await();
+
+        return histograms;
+    }
+
+    /**
+     * Returns the number of operations which threw an exception, for example
+     * <tt>remove</tt> on a queue whose iterator does not support it. They are
+     * not recorded in the histograms.
+     */
+    public long getErrorCount() {
+
+        return errors.get();
+    }
+
+    private int execute(Operation operation, SplittableRandom random) {
+
+        switch (operation) {
+            case OFFER:
+                queue.offer(random.nextInt(capacity));
+                return 0;
+            case POLL:
+                Integer polled = queue.poll();
+                return polled == null ? 0 : polled;
+            case PEEK:
+                Integer peeked = queue.peek();
+                return peeked == null ? 0 : peeked;
+            case ITERATE:
+                int count = 0;
+                for (Iterator<Integer> it = queue.iterator(); it.hasNext(); it.next()) {
+                    count++;
+                }
+                return count;
+            case REMOVE:
+                return queue.remove(random.nextInt(capacity)) ? 1 : 0;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private Operation[] buildSchedule() {
+
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+
+        Operation[] schedule = new Operation[total];
+        int index = 0;
+
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                schedule[index++] = entry.getKey();
+            }
+        }
+
+        return schedule;
+    }
+
+    /**
+     * Formats the results as a table of latencies in microseconds.
+     */
+    public static String report(Map<Operation, LatencyHistogram> results) {
+
+        StringBuilder output = new StringBuilder(String.format(Locale.ROOT, "%-8s %10s %10s %10s %10s %10s%n",
+                "op", "count", "p50(us)", "p99(us)", "p99.9(us)", "max(us)"));
+
+        for (Map.Entry<Operation, LatencyHistogram> entry : results.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+
+            output.append(String.format(Locale.ROOT, "%-8s %10d %10.1f %10.1f %10.1f %10.1f%n",
+                    entry.getKey().name().toLowerCase(Locale.ROOT),
+                    histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMax() / 1000.0));
+        }
+
+        return output.toString();
+    }
+
+    static EnumMap<Operation, Integer> parseMix(String value) {
+
+        EnumMap<Operation, Integer> mix = new EnumMap<>(Operation.class);
+
+        for (String part : value.split(",")) {
+            String[] pair = part.split(":");
+            int weight = Integer.parseInt(pair[1].trim());
+
+            if (weight > 0) {
+                mix.put(Operation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), weight);
+            }
+        }
+
+        return mix;
+    }
+
+    static Queue<Integer> createQueue(String name, int capacity) {
+
+        switch (name) {
+            case "concurrent":
+                return new ConcurrentMostRecentlyInsertedQueue<>(capacity);
+            case "flat":
+                return new FlatCombiningMostRecentlyInsertedQueue<>(capacity);
+            case "adaptive":
+                return new AdaptiveMostRecentlyInsertedQueue<>(capacity);
+            default:
+                throw new IllegalArgumentException("Unknown queue " + name);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        Map<String, String> options = new HashMap<>();
+        options.put("queue", "concurrent");
+        options.put("capacity", "1000");
+        options.put("threads", "4");
+        options.put("rate", "200000");
+        options.put("duration", "10");
+        options.put("warmup", "2");
+        options.put("mix", "offer:60,poll:25,peek:10,iterate:1,remove:4");
+
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2 || !options.containsKey(pair[0])) {
+                System.err.println("Unknown argument " + arg);
+                System.exit(1);
+            }
+            options.put(pair[0], pair[1]);
+        }
+
+        int capacity = Integer.parseInt(options.get("capacity"));
+        QueueLoadGenerator generator = new QueueLoadGenerator(
+                createQueue(options.get("queue"), capacity),
+                capacity,
+                Integer.parseInt(options.get("threads")),
+                Long.parseLong(options.get("rate")),
+                Long.parseLong(options.get("duration")),
+                Long.parseLong(options.get("warmup")),
+                TimeUnit.SECONDS,
+                parseMix(options.get("mix")));
+
+        System.out.println("Load " + options);
+        System.out.print(report(generator.run()));
+        System.out.println("errors: " + generator.getErrorCount());
+    }
+}
@@ -0,0 +1,45 @@
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class QueueLoadGeneratorTest {
+
+    @Test
+    public void parseMix() throws Exception {
+
+        Map<QueueLoadGenerator.Operation, Integer> mix = QueueLoadGenerator.parseMix("offer:3, poll:1,peek:0");
+
+        assertEquals(2, mix.size());
+        assertEquals(3, mix.get(QueueLoadGenerator.Operation.OFFER).intValue());
+        assertEquals(1, mix.get(QueueLoadGenerator.Operation.POLL).intValue());
+    }
+
+    @Test
+    public void run() throws Exception {
+
+        QueueLoadGenerator generator = new QueueLoadGenerator(
+                QueueLoadGenerator.createQueue("concurrent", 100), 100, 2, 20000,
+                200, 50, TimeUnit.MILLISECONDS,
+                QueueLoadGenerator.parseMix("offer:5,poll:2,peek:1,iterate:1,remove:1"));
+
+        Map<QueueLoadGenerator.Operation, LatencyHistogram> results = generator.run();
+
+        long total = 0;
+        for (LatencyHistogram histogram : results.values()) {
+            total += histogram.getTotalCount();
+            assertEquals(true, histogram.getValueAtPercentile(50) <= histogram.getMax());
+        }
+
+        // 20000 ops/s for 200 ms, give or take one scheduled operation per thread
+        assertEquals(4000, total, 2);
+        assertEquals(0, generator.getErrorCount());
+        assertEquals(true, results.get(QueueLoadGenerator.Operation.OFFER).getTotalCount() > 0);
+
+        String report = QueueLoadGenerator.report(results);
+        assertEquals(true, report.contains("p99.9"));
+        assertEquals(true, report.contains("offer"));
+    }
+}
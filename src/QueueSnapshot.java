@@ -0,0 +1,147 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary snapshot format of {@link ConcurrentMostRecentlyInsertedQueue#writeSnapshot}:
+ * a magic number, a version and the element count, followed by every
+ * element, oldest first, as a length-prefixed record produced by a
+ * {@link Codec}. All numbers are big-endian ints.
+ */
+final class QueueSnapshot {
+
+    static final int MAGIC = 0x4D524951;
+    static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private QueueSnapshot() {
+
+    }
+
+    /**
+     * Encodes the elements and writes them as one snapshot.
+     *
+     * @param out      the channel to write to, it is not closed
+     * @param elements the elements, oldest first
+     * @param codec    the codec used to encode the elements
+     * @throws IOException if writing to the channel fails
+     */
+    static <E> void write(WritableByteChannel out, Object[] elements, Codec<E> codec) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(elements.length);
+
+        for (Object element : elements) {
+            @SuppressWarnings("unchecked")
+            byte[] record = codec.encode((E) element);
+
+            if (buffer.remaining() < Integer.BYTES + record.length) {
+                buffer.flip();
+                writeFully(out, buffer);
+                buffer.clear();
+            }
+
+            if (buffer.remaining() < Integer.BYTES + record.length) {
+                buffer.putInt(record.length).flip();
+                writeFully(out, buffer);
+                buffer.clear();
+                writeFully(out, ByteBuffer.wrap(record));
+            } else {
+                buffer.putInt(record.length).put(record);
+            }
+        }
+
+        buffer.flip();
+        writeFully(out, buffer);
+    }
+
+    /**
+     * Reads a snapshot and decodes its newest elements. Older records are
+     * skipped without being decoded.
+     *
+     * @param in    the channel to read from, it is not closed
+     * @param codec the codec used to decode the elements
+     * @param limit the max number of elements to decode
+     * @return the newest elements, oldest first
+     * @throws IOException if reading fails or the data is not a snapshot
+     */
+    static <E> List<E> read(ReadableByteChannel in, Codec<E> codec, int limit) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.flip();
+
+        buffer = fill(in, buffer, 3 * Integer.BYTES);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a queue snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        int count = buffer.getInt();
+        if (count < 0) {
+            throw new IOException("Corrupt snapshot, element count " + count);
+        }
+
+        int skip = Math.max(0, count - limit);
+        ArrayList<E> elements = new ArrayList<>(count - skip);
+
+        for (int i = 0; i < count; i++) {
+            buffer = fill(in, buffer, Integer.BYTES);
+            int length = buffer.getInt();
+            if (length < 0) {
+                throw new IOException("Corrupt snapshot, record length " + length);
+            }
+            buffer = fill(in, buffer, length);
+
+            if (i >= skip) {
+                ByteBuffer record = buffer.duplicate();
+                record.limit(record.position() + length);
+                elements.add(codec.decode(record));
+            }
+            buffer.position(buffer.position() + length);
+        }
+
+        return elements;
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Makes sure at least {@code required} bytes are available in the buffer,
+     * compacting or growing it as needed. The buffer is kept in read mode.
+     */
+    private static ByteBuffer fill(ReadableByteChannel in, ByteBuffer buffer, int required) throws IOException {
+
+        if (buffer.remaining() >= required) {
+            return buffer;
+        }
+
+        if (buffer.capacity() < required) {
+            ByteBuffer larger = ByteBuffer.allocate(required);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+
+        while (buffer.position() < required) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of snapshot");
+            }
+        }
+
+        buffer.flip();
+
+        return buffer;
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Measures the single-threaded throughput of an offer and a poll on a full
+ * queue, for every queue variant, relative to the same operations on an
+ * {@link ArrayDeque}, so the ratios can be compared across machines.
+ * <p>
+ * <p>Every workload is warmed up before anything is measured, so the shared
+ * call sites are compiled once for all queues. Every ratio is then the median
+ * of a few rounds, each measuring the queue right after the
+ * {@link ArrayDeque}. The byte ring and shared memory queues offer and poll
+ * records of {@value #RECORD_SIZE} bytes. The durable queue forces its journal
+ * on every offer, so its throughput is that of the disk and it is left out.
+ * <p>
+ * <p>{@link #main} prints the ratios next to the typical values in
+ * {@link #BASELINES} and exits with status 1 if one of them is more than
+ * {@value #TOLERANCE} times below its baseline, so it can gate a build on a
+ * quiet machine. Wall-clock ratios are too noisy for the unit tests.
+ * <p>
+ * <p>Usage, all arguments optional:
+ * <pre>
+ * java QueueThroughputBenchmark operations=100000 rounds=5 capacity=1000
+ * </pre>
+ * <tt>operations</tt> is the number of offer and poll pairs per measurement.
+ */
+public class QueueThroughputBenchmark {
+
+    static final int RECORD_SIZE = 100;
+
+    /**
+     * A measured ratio may be this many times below its baseline.
+     */
+    static final double TOLERANCE = 2.0;
+
+    /**
+     * The typical ratio of every queue, with the default arguments.
+     */
+    static final Map<String, Double> BASELINES = new LinkedHashMap<>();
+
+    static {
+        BASELINES.put("linked", 0.85);
+        BASELINES.put("linked-pooled", 0.70);
+        BASELINES.put("concurrent", 0.10);
+        BASELINES.put("concurrent-pooled", 0.10);
+        BASELINES.put("segmented", 0.20);
+        BASELINES.put("combining", 0.13);
+        BASELINES.put("adaptive", 0.20);
+        BASELINES.put("spilling", 0.022);
+        BASELINES.put("reference", 0.14);
+        BASELINES.put("byte-ring", 0.18);
+        BASELINES.put("shared-memory", 0.18);
+    }
+
+    private final int operations;
+    private final int rounds;
+    private final int capacity;
+    private final Integer[] values = new Integer[1024];
+
+    /**
+     * @param operations the number of offer and poll pairs per measurement
+     * @param rounds     the number of measurements the median is taken of
+     * @param capacity   the capacity of the queues
+     */
+    public QueueThroughputBenchmark(int operations, int rounds, int capacity) {
+
+        if (operations <= 0 || rounds <= 0 || capacity <= 0) throw new IllegalArgumentException();
+
+        this.operations = operations;
+        this.rounds = rounds;
+        this.capacity = capacity;
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i + 1000;
+        }
+    }
+
+    /**
+     * Measures every queue in {@link #BASELINES}.
+     *
+     * @param directory where the spilling and shared memory queues keep their files
+     * @return the throughput ratios by queue name
+     */
+    public Map<String, Double> measure(Path directory) throws IOException {
+
+        List<Closeable> opened = new ArrayList<>();
+
+        try {
+            Map<String, IntConsumer> pairs = new LinkedHashMap<>();
+            pairs.put("linked", offerPoll(new MostRecentlyInsertedQueue<>(capacity)));
+            pairs.put("linked-pooled", offerPoll(new MostRecentlyInsertedQueue<>(capacity, capacity)));
+            pairs.put("concurrent", offerPoll(new ConcurrentMostRecentlyInsertedQueue<>(capacity)));
+            pairs.put("concurrent-pooled", offerPoll(new ConcurrentMostRecentlyInsertedQueue<>(capacity, capacity)));
+            pairs.put("segmented", offerPoll(new SegmentedMostRecentlyInsertedQueue<>(capacity, 64)));
+            pairs.put("combining", offerPoll(new FlatCombiningMostRecentlyInsertedQueue<>(capacity)));
+            pairs.put("adaptive", offerPoll(new AdaptiveMostRecentlyInsertedQueue<>(capacity)));
+
+            SpillingMostRecentlyInsertedQueue<Integer> spilling = new SpillingMostRecentlyInsertedQueue<>(capacity,
+                    directory.resolve("spill"), new IntegerCodec(), capacity, 1 << 20);
+            opened.add(spilling);
+            pairs.put("spilling", offerPoll(spilling));
+
+            pairs.put("reference", offerPoll(new ReferenceMostRecentlyInsertedQueue<>(capacity,
+                    ReferenceMostRecentlyInsertedQueue.Strength.SOFT)));
+
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            ByteRingMostRecentlyInsertedQueue<Integer> ring = new ByteRingMostRecentlyInsertedQueue<>(
+                    capacity * (RECORD_SIZE + 8), new IntegerCodec(), true);
+            pairs.put("byte-ring", i -> {
+                ring.offerRecord(record);
+                ring.pollRecord(r -> { });
+            });
+
+            SharedMemoryMostRecentlyInsertedQueue<Integer> shared = new SharedMemoryMostRecentlyInsertedQueue<>(
+                    directory.resolve("throughput.shm"), capacity, 128, new IntegerCodec());
+            ByteBuffer destination = ByteBuffer.allocate(128);
+            pairs.put("shared-memory", i -> {
+                shared.offerRecord(record);
+                destination.clear();
+                shared.pollRecord(destination);
+            });
+
+            IntConsumer reference = offerPoll(new ArrayDeque<>(capacity));
+            Map<String, Double> ratios = new LinkedHashMap<>();
+
+            for (int round = 0; round < rounds; round++) {
+                operationsPerSecond(reference);
+                for (IntConsumer pair : pairs.values()) {
+                    operationsPerSecond(pair);
+                }
+            }
+
+            for (Map.Entry<String, IntConsumer> entry : pairs.entrySet()) {
+                double[] measured = new double[rounds];
+
+                for (int round = 0; round < rounds; round++) {
+                    double base = operationsPerSecond(reference);
+                    measured[round] = operationsPerSecond(entry.getValue()) / base;
+                }
+
+                Arrays.sort(measured);
+                ratios.put(entry.getKey(), measured[rounds / 2]);
+            }
+
+            return ratios;
+        } finally {
+            for (Closeable closeable : opened) {
+                closeable.close();
+            }
+        }
+    }
+
+    /**
+     * Fills the queue and returns an offer and poll pair on it.
+     */
+    private IntConsumer offerPoll(Queue<Integer> queue) {
+
+        for (int i = 0; i < capacity; i++) {
+            queue.offer(values[i & 1023]);
+        }
+
+        int[] sink = new int[1];
+
+        return i -> {
+            queue.offer(values[i & 1023]);
+            sink[0] += queue.poll();
+        };
+    }
+
+    /**
+     * Returns the best rate of offer and poll pairs over two passes.
+     */
+    private double operationsPerSecond(IntConsumer pair) {
+
+        double best = 0;
+
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+
+            for (int i = 0; i < operations; i++) {
+                pair.accept(i);
+            }
+
+            best = Math.max(best, operations * 1e9 / (System.nanoTime() - start));
+        }
+
+        return best;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        Map<String, String> options = new HashMap<>();
+        options.put("operations", "100000");
+        options.put("rounds", "5");
+        options.put("capacity", "1000");
+
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2 || !options.containsKey(pair[0])) {
+                System.err.println("Unknown argument " + arg);
+                System.exit(1);
+            }
+            options.put(pair[0], pair[1]);
+        }
+
+        QueueThroughputBenchmark benchmark = new QueueThroughputBenchmark(Integer.parseInt(options.get("operations")),
+                Integer.parseInt(options.get("rounds")), Integer.parseInt(options.get("capacity")));
+        Path directory = Files.createTempDirectory("queue-throughput");
+        boolean below = false;
+
+        try {
+            System.out.println("Offer+poll relative to ArrayDeque " + options);
+            System.out.printf(Locale.ROOT, "%-20s %8s %8s%n", "queue", "ratio", "baseline");
+
+            for (Map.Entry<String, Double> ratio : benchmark.measure(directory).entrySet()) {
+                double baseline = BASELINES.get(ratio.getKey());
+                boolean slow = ratio.getValue() < baseline / TOLERANCE;
+
+                System.out.printf(Locale.ROOT, "%-20s %8.3f %8.3f%s%n", ratio.getKey(), ratio.getValue(), baseline,
+                        slow ? "  below baseline" : "");
+                below |= slow;
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+
+        if (below) {
+            System.exit(1);
+        }
+    }
+
+    private static final class IntegerCodec implements Codec<Integer> {
+
+        @Override
+        public byte[] encode(Integer element) {
+
+            return ByteBuffer.allocate(4).putInt(element).array();
+        }
+
+        @Override
+        public Integer decode(ByteBuffer buffer) {
+
+            return buffer.getInt();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class QueueThroughputBenchmarkTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void measure() throws Exception {
+
+        Map<String, Double> ratios = new QueueThroughputBenchmark(1000, 1, 100).measure(folder.getRoot().toPath());
+
+        assertEquals(QueueThroughputBenchmark.BASELINES.keySet(), ratios.keySet());
+
+        for (Map.Entry<String, Double> ratio : ratios.entrySet()) {
+            assertEquals(ratio.getKey(), true, ratio.getValue() > 0);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A most recently inserted queue which holds its elements through soft or
+ * weak references, for windows of large payloads which can be fetched again,
+ * so the garbage collector may reclaim old elements instead of throwing an
+ * <tt>OutOfMemoryError</tt>.
+ * <p>
+ * <p>Every offer takes the next position, and the window is the last
+ * <tt>capacity</tt> positions offered, exactly as in the other queues:
+ * {@link #offer} on a full window evicts the oldest position, and order is
+ * insertion order. An element reclaimed by the collector leaves a dead slot
+ * in its position, which {@link #poll}, {@link #peek} and the iterator skip,
+ * and which still counts against the capacity until it is evicted, so
+ * reclaiming never lets older elements back into the window.
+ * <p>
+ * <p>Cleared references are registered with a {@link ReferenceQueue}, which
+ * every operation drains under the lock to empty their slots and decrement
+ * the live count, so {@link #size} is the number of live elements without a
+ * scan. A reference cleared but not yet enqueued by the collector is still
+ * counted until it is enqueued or an operation reads its slot, so the size
+ * may briefly be higher than the number of elements the iterator returns,
+ * like in a <tt>WeakHashMap</tt>.
+ * <p>
+ * <p>All operations are guarded by one lock. The iterator is weakly
+ * consistent and holds a strong reference to the next element only.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class ReferenceMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
+
+    /**
+     * How elements are referenced.
+     */
+    public enum Strength {
+
+        /**
+         * Kept until the heap runs short, least recently used first, see
+         * {@link SoftReference}.
+         */
+        SOFT,
+
+        /**
+         * Kept only while strongly reachable from elsewhere, see
+         * {@link WeakReference}.
+         */
+        WEAK
+    }
+
+    private final Object lock = new Object();
+
+    private final int maxQueueCapacity;
+    private final Strength strength;
+    private final ReferenceQueue<E> cleared = new ReferenceQueue<>();
+
+    /**
+     * Position <tt>p</tt> lives in <tt>slots[p % capacity]</tt>, <tt>null</tt>
+     * once its element has been removed or reclaimed.
+     */
+    private final Entry<E>[] slots;
+
+    private long headPosition;
+    private long tailPosition;
+    private int liveCount;
+    private long reclaimedCount;
+
+    /**
+     * @param capacity the number of positions in the window
+     * @param strength how elements are referenced
+     */
+    @SuppressWarnings("unchecked")
+    public ReferenceMostRecentlyInsertedQueue(int capacity, Strength strength) {
+
+        if (capacity <= 0) throw new IllegalArgumentException();
+        if (strength == null) throw new NullPointerException();
+
+        this.maxQueueCapacity = capacity;
+        this.strength = strength;
+        this.slots = (Entry<E>[]) new Entry<?>[capacity];
+    }
+
+    /**
+     * Inserts the element, evicting the oldest position if the window is
+     * full.
+     *
+     * @return <tt>true</tt>
+     * @throws NullPointerException if the specified element is null
+     */
+    @Override
+    public boolean offer(E e) {
+
+        if (e == null) throw new NullPointerException();
+
+        E evicted = null;
+
+        synchronized (lock) {
+            expungeCleared();
+
+            if (tailPosition - headPosition >= maxQueueCapacity) {
+                evicted = vacate(headPosition++);
+            }
+
+            long position = tailPosition;
+
+            slots[slot(position)] = strength == Strength.SOFT
+                    ? new SoftEntry<>(e, cleared, position)
+                    : new WeakEntry<>(e, cleared, position);
+            tailPosition = position + 1;
+            liveCount = liveCount + 1;
+        }
+
+        if (evicted != null) {
+            evicted(evicted);
+        }
+
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the oldest live element, dropping the dead
+     * slots before it, or returns <tt>null</tt> if there is none.
+     */
+    @Override
+    public E poll() {
+
+        synchronized (lock) {
+            expungeCleared();
+
+            while (headPosition < tailPosition) {
+                E item = vacate(headPosition++);
+
+                if (item != null) {
+                    return item;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the oldest live element, or returns
+     * <tt>null</tt> if there is none. The dead slots before it are dropped.
+     */
+    @Override
+    public E peek() {
+
+        synchronized (lock) {
+            expungeCleared();
+
+            while (headPosition < tailPosition) {
+                E item = elementAt(headPosition);
+
+                if (item != null) {
+                    return item;
+                }
+
+                headPosition++;
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of live elements.
+     */
+    @Override
+    public int size() {
+
+        synchronized (lock) {
+            expungeCleared();
+
+            return liveCount;
+        }
+    }
+
+    @Override
+    public void clear() {
+
+        synchronized (lock) {
+            expungeCleared();
+
+            while (headPosition < tailPosition) {
+                vacate(headPosition++);
+            }
+        }
+    }
+
+    public int getCapacity() {
+
+        return maxQueueCapacity;
+    }
+
+    public Strength getStrength() {
+
+        return strength;
+    }
+
+    /**
+     * Returns the number of elements reclaimed by the garbage collector while
+     * in the window.
+     */
+    public long reclaimedCount() {
+
+        synchronized (lock) {
+            expungeCleared();
+
+            return reclaimedCount;
+        }
+    }
+
+    /**
+     * Called when {@link #offer} pushes the oldest position out of a full
+     * window holding a live element, after the lock has been released. Does
+     * nothing by default.
+     *
+     * @param e the evicted element
+     */
+    protected void evicted(E e) {
+
+    }
+
+    /**
+     * Returns the live elements from oldest to newest. The iterator skips
+     * dead slots, and if elements it has not reached yet are removed, it goes
+     * on from the head. {@link Iterator#remove} is supported.
+     */
+    @Override
+    public Iterator<E> iterator() {
+
+        return new Iterator<E>() {
+
+            private long position;
+            private E nextItem;
+            private Entry<E> nextEntry;
+            private long lastPosition = -1;
+            private Entry<E> lastEntry;
+
+            {
+                synchronized (lock) {
+                    position = headPosition;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+
+                if (nextItem != null) {
+                    return true;
+                }
+
+                synchronized (lock) {
+                    expungeCleared();
+
+                    position = Math.max(position, headPosition);
+
+                    while (position < tailPosition) {
+                        nextEntry = slots[slot(position)];
+                        nextItem = elementAt(position);
+
+                        if (nextItem != null) {
+                            return true;
+                        }
+
+                        position++;
+                    }
+
+                    return false;
+                }
+            }
+
+            @Override
+            public E next() {
+
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                E item = nextItem;
+
+                lastPosition = position;
+                lastEntry = nextEntry;
+                nextItem = null;
+                nextEntry = null;
+                position++;
+
+                return item;
+            }
+
+            @Override
+            public void remove() {
+
+                if (lastEntry == null) {
+                    throw new IllegalStateException();
+                }
+
+                synchronized (lock) {
+                    if (lastPosition >= headPosition && slots[slot(lastPosition)] == lastEntry) {
+                        vacate(lastPosition);
+                    }
+                }
+
+                lastEntry = null;
+            }
+        };
+    }
+
+    /**
+     * Empties the slots of the references enqueued by the collector. Must be
+     * called while holding the lock.
+     */
+    private void expungeCleared() {
+
+        Reference<? extends E> reference;
+
+        while ((reference = cleared.poll()) != null) {
+            @SuppressWarnings("unchecked")
+            Entry<E> entry = (Entry<E>) reference;
+            long position = entry.position();
+
+            if (position >= headPosition && slots[slot(position)] == entry) {
+                slots[slot(position)] = null;
+                liveCount = liveCount - 1;
+                reclaimedCount++;
+            }
+        }
+    }
+
+    /**
+     * Returns the element at the position, or <tt>null</tt> if its slot is
+     * dead, emptying the slot if its reference has just been found cleared.
+     * Must be called while holding the lock.
+     */
+    private E elementAt(long position) {
+
+        Entry<E> entry = slots[slot(position)];
+
+        if (entry == null) {
+            return null;
+        }
+
+        E item = entry.get();
+
+        if (item == null) {
+            slots[slot(position)] = null;
+            liveCount = liveCount - 1;
+            reclaimedCount++;
+        }
+
+        return item;
+    }
+
+    /**
+     * Empties the slot of the position and returns its element, or
+     * <tt>null</tt> if it was dead. The reference is cleared, so it is never
+     * enqueued. Must be called while holding the lock.
+     */
+    private E vacate(long position) {
+
+        Entry<E> entry = slots[slot(position)];
+
+        if (entry == null) {
+            return null;
+        }
+
+        E item = entry.get();
+
+        slots[slot(position)] = null;
+        liveCount = liveCount - 1;
+        entry.clear();
+
+        if (item == null) {
+            reclaimedCount++;
+        }
+
+        return item;
+    }
+
+    private int slot(long position) {
+
+        return (int) (position % maxQueueCapacity);
+    }
+
+    /**
+     * A reference which knows the position it was offered at, so the
+     * cleared one can find its slot.
+     */
+    private interface Entry<E> {
+
+        E get();
+
+        void clear();
+
+        long position();
+    }
+
+    private static final class SoftEntry<E> extends SoftReference<E> implements Entry<E> {
+        private final long position;
+
+        SoftEntry(E referent, ReferenceQueue<? super E> queue, long position) {
+
+            super(referent, queue);
+            this.position = position;
+        }
+
+        @Override
+        public long position() {
+
+            return position;
+        }
+    }
+
+    private static final class WeakEntry<E> extends WeakReference<E> implements Entry<E> {
+        private final long position;
+
+        WeakEntry(E referent, ReferenceQueue<? super E> queue, long position) {
+
+            super(referent, queue);
+            this.position = position;
+        }
+
+        @Override
+        public long position() {
+
+            return position;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReferenceMostRecentlyInsertedQueueTest {
+
+    @Test
+    public void evictsOldestLikeStrongQueue() throws Exception {
+
+        for (ReferenceMostRecentlyInsertedQueue.Strength strength : ReferenceMostRecentlyInsertedQueue.Strength.values()) {
+            final List<String> evicted = new ArrayList<>();
+            ReferenceMostRecentlyInsertedQueue<String> queue = new ReferenceMostRecentlyInsertedQueue<String>(3, strength) {
+                @Override
+                protected void evicted(String e) {
+                    evicted.add(e);
+                }
+            };
+            List<String> held = Arrays.asList("a", "b", "c", "d", "e");
+
+            for (String value : held) {
+                queue.offer(value);
+            }
+
+            assertEquals(3, queue.size());
+            assertEquals(Arrays.asList("a", "b"), evicted);
+            assertEquals(Arrays.asList("c", "d", "e"), new ArrayList<>(queue));
+            assertEquals("c", queue.peek());
+            assertEquals("c", queue.poll());
+            assertEquals(2, queue.size());
+
+            assertTrue(queue.remove("e"));
+            assertEquals(Arrays.asList("d"), new ArrayList<>(queue));
+
+            queue.clear();
+            assertEquals(0, queue.size());
+            assertNull(queue.poll());
+            assertNull(queue.peek());
+        }
+    }
+
+    @Test
+    public void skipsReclaimedElements() throws Exception {
+
+        ReferenceMostRecentlyInsertedQueue<Object> queue = new ReferenceMostRecentlyInsertedQueue<>(10,
+                ReferenceMostRecentlyInsertedQueue.Strength.WEAK);
+        List<Object> held = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            Object value = new StringBuilder("value").append(i);
+            queue.offer(value);
+            if (i % 3 == 0) {
+                held.add(value);
+            }
+        }
+
+        awaitReclaimed(queue, 6);
+
+        assertEquals(4, queue.size());
+        assertEquals(held, new ArrayList<>(queue));
+
+        // reclaimed slots still take their place in the window
+        Object newest = "newest";
+        queue.offer(newest);
+        held.remove(0);
+        held.add(newest);
+        assertEquals(held, new ArrayList<>(queue));
+
+        assertSame(held.get(0), queue.peek());
+        assertSame(held.get(0), queue.poll());
+        assertSame(held.get(1), queue.poll());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void iteratorRemove() throws Exception {
+
+        ReferenceMostRecentlyInsertedQueue<Integer> queue = new ReferenceMostRecentlyInsertedQueue<>(5,
+                ReferenceMostRecentlyInsertedQueue.Strength.SOFT);
+
+        for (int i = 0; i < 5; i++) {
+            queue.offer(i);
+        }
+
+        Iterator<Integer> iterator = queue.iterator();
+        try {
+            iterator.remove();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        while (iterator.hasNext()) {
+            if (iterator.next() % 2 == 1) {
+                iterator.remove();
+            }
+        }
+
+        assertEquals(3, queue.size());
+        assertEquals(Arrays.asList(0, 2, 4), new ArrayList<>(queue));
+
+        queue.offer(5);
+        queue.offer(6);
+        assertEquals(Arrays.asList(2, 4, 5, 6), new ArrayList<>(queue));
+    }
+
+    private static void awaitReclaimed(ReferenceMostRecentlyInsertedQueue<?> queue, long count) throws InterruptedException {
+
+        for (int attempt = 0; attempt < 100 && queue.reclaimedCount() < count; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(count, queue.reclaimedCount());
+    }
+}
@@ -0,0 +1,284 @@
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A most recently inserted queue for very large capacities, which stores its
+ * elements in fixed-size array chunks instead of one node per element.
+ * <p>
+ * <p>Elements have consecutive positions, the oldest at the head position.
+ * Position <tt>p</tt> lives in slot <tt>p % chunkSize</tt> of chunk
+ * <tt>p / chunkSize</tt>, and the chunks are reached through a directory
+ * with room for as many chunks as a full window can span, so {@link #offer},
+ * {@link #poll} and {@link #get} are O(1). A chunk is only allocated when the
+ * tail enters it and is released as a whole once the head leaves it; the last
+ * released chunk is kept and reused for the next one needed, so a queue in
+ * steady state allocates nothing. The storage overhead is one reference per
+ * element plus one per chunk.
+ * <p>
+ * <p>All operations are guarded by one lock. The iterator is weakly
+ * consistent: if elements it has not reached yet are removed, it goes on
+ * from the head. It does not support removal.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class SegmentedMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
+
+    static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private final Object lock = new Object();
+
+    private final int maxQueueCapacity;
+    private final int chunkShift;
+    private final int chunkMask;
+
+    /**
+     * Chunk <tt>c</tt> is at <tt>chunks[c % chunks.length]</tt>, <tt>null</tt>
+     * if no element lives in it.
+     */
+    private final Object[][] chunks;
+
+    /**
+     * A released chunk kept for the next chunk the tail enters.
+     */
+    private Object[] spareChunk;
+
+    private long headPosition;
+    private long tailPosition;
+    private volatile int count;
+
+    public SegmentedMostRecentlyInsertedQueue(int capacity) {
+
+        this(capacity, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param capacity  the capacity of the queue
+     * @param chunkSize the number of elements per chunk, a power of two
+     */
+    public SegmentedMostRecentlyInsertedQueue(int capacity, int chunkSize) {
+
+        if (capacity <= 0 || chunkSize <= 0 || Integer.bitCount(chunkSize) != 1) {
+            throw new IllegalArgumentException();
+        }
+
+        this.maxQueueCapacity = capacity;
+        this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+        this.chunkMask = chunkSize - 1;
+        this.chunks = new Object[(int) ((capacity + (long) chunkMask) >>> chunkShift) + 1][];
+    }
+
+    /**
+     * Inserts the element, evicting the oldest element if the queue is full.
+     *
+     * @return <tt>true</tt>
+     * @throws NullPointerException if the specified element is null
+     */
+    @Override
+    public boolean offer(E e) {
+
+        if (e == null) throw new NullPointerException();
+
+        E evicted = null;
+
+        synchronized (lock) {
+            if (count >= maxQueueCapacity) {
+                evicted = unlinkHead();
+            }
+
+            long position = tailPosition;
+            int index = chunkIndex(position);
+            Object[] chunk = chunks[index];
+
+            if (chunk == null) {
+                chunk = spareChunk != null ? spareChunk : new Object[chunkMask + 1];
+                spareChunk = null;
+                chunks[index] = chunk;
+            }
+
+            chunk[(int) position & chunkMask] = e;
+            tailPosition = position + 1;
+            count = count + 1;
+        }
+
+        if (evicted != null) {
+            evicted(evicted);
+        }
+
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns <tt>null</tt>
+     * if this queue is empty.
+     */
+    @Override
+    public E poll() {
+
+        synchronized (lock) {
+            return count == 0 ? null : unlinkHead();
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue, or returns
+     * <tt>null</tt> if this queue is empty.
+     */
+    @Override
+    public E peek() {
+
+        synchronized (lock) {
+            return count == 0 ? null : elementAt(headPosition);
+        }
+    }
+
+    /**
+     * Returns the newest element, or <tt>null</tt> if this queue is empty.
+     */
+    public E peekLast() {
+
+        return get(0);
+    }
+
+    /**
+     * Returns the element at the index counted from the newest element, which
+     * has index <tt>0</tt>, or <tt>null</tt> if there are not that many
+     * elements.
+     *
+     * @throws IndexOutOfBoundsException if the index is negative
+     */
+    public E get(int indexFromNewest) {
+
+        if (indexFromNewest < 0) throw new IndexOutOfBoundsException(String.valueOf(indexFromNewest));
+
+        synchronized (lock) {
+            return indexFromNewest < count ? elementAt(tailPosition - 1 - indexFromNewest) : null;
+        }
+    }
+
+    @Override
+    public int size() {
+
+        return count;
+    }
+
+    @Override
+    public void clear() {
+
+        synchronized (lock) {
+            while (count > 0) {
+                unlinkHead();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of chunks currently allocated, including the spare
+     * one.
+     */
+    public int allocatedChunks() {
+
+        synchronized (lock) {
+            int allocated = spareChunk != null ? 1 : 0;
+
+            for (Object[] chunk : chunks) {
+                if (chunk != null) {
+                    allocated++;
+                }
+            }
+
+            return allocated;
+        }
+    }
+
+    public int getChunkSize() {
+
+        return chunkMask + 1;
+    }
+
+    /**
+     * Called when {@link #offer} pushes the oldest element out of a full
+     * queue, after the lock has been released. Does nothing by default.
+     *
+     * @param e the evicted element
+     */
+    protected void evicted(E e) {
+
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+
+        return new Iterator<E>() {
+
+            private long position;
+
+            {
+                synchronized (lock) {
+                    position = headPosition;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+
+                synchronized (lock) {
+                    return Math.max(position, headPosition) < tailPosition;
+                }
+            }
+
+            @Override
+            public E next() {
+
+                synchronized (lock) {
+                    if (position < headPosition) {
+                        position = headPosition;
+                    }
+
+                    if (position >= tailPosition) {
+                        throw new NoSuchElementException();
+                    }
+
+                    return elementAt(position++);
+                }
+            }
+        };
+    }
+
+    /**
+     * Removes the oldest element and releases its chunk if the head leaves
+     * it. Must be called while holding the lock with a non-empty queue.
+     */
+    private E unlinkHead() {
+
+        long position = headPosition;
+        int index = chunkIndex(position);
+        Object[] chunk = chunks[index];
+        int slot = (int) position & chunkMask;
+
+        @SuppressWarnings("unchecked")
+        E item = (E) chunk[slot];
+        chunk[slot] = null;
+
+        headPosition = position + 1;
+        count = count - 1;
+
+        if (slot == chunkMask) {
+            chunks[index] = null;
+            spareChunk = chunk;
+        }
+
+        return item;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E elementAt(long position) {
+
+        return (E) chunks[chunkIndex(position)][(int) position & chunkMask];
+    }
+
+    private int chunkIndex(long position) {
+
+        return (int) ((position >>> chunkShift) % chunks.length);
+    }
+}
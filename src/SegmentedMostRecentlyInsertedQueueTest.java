@@ -0,0 +1,118 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SegmentedMostRecentlyInsertedQueueTest {
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void matchesLinkedQueue() throws Exception {
+
+        SegmentedMostRecentlyInsertedQueue<Integer> queue = new SegmentedMostRecentlyInsertedQueue<>(100, 16);
+        ArrayDeque<Integer> expected = new ArrayDeque<>();
+        Random random = new Random(5);
+
+        for (int i = 0; i < 50000; i++) {
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.poll(), queue.poll());
+            } else {
+                queue.offer(i);
+                expected.add(i);
+                if (expected.size() > 100) {
+                    expected.poll();
+                }
+            }
+
+            assertEquals(expected.size(), queue.size());
+            assertEquals(expected.peek(), queue.peek());
+            assertEquals(expected.peekLast(), queue.peekLast());
+
+            if (i % 100 == 0) {
+                assertEquals(new ArrayList<>(expected), new ArrayList<>(queue));
+                List<Integer> newestFirst = new ArrayList<>(expected);
+                for (int k = 0; k < newestFirst.size(); k++) {
+                    assertEquals(newestFirst.get(newestFirst.size() - 1 - k), queue.get(k));
+                }
+                assertNull(queue.get(newestFirst.size()));
+            }
+
+            assertTrue(queue.allocatedChunks() <= 100 / 16 + 3);
+        }
+    }
+
+    @Test
+    public void chunksReleasedAndReused() throws Exception {
+
+        final List<Integer> evicted = new ArrayList<>();
+        SegmentedMostRecentlyInsertedQueue<Integer> queue = new SegmentedMostRecentlyInsertedQueue<Integer>(8, 4) {
+            @Override
+            protected void evicted(Integer e) {
+                evicted.add(e);
+            }
+        };
+
+        assertEquals(0, queue.allocatedChunks());
+        queue.offer(0);
+        assertEquals(1, queue.allocatedChunks());
+
+        for (int i = 1; i < 20; i++) {
+            queue.offer(i);
+        }
+
+        assertEquals(Arrays.asList(12, 13, 14, 15, 16, 17, 18, 19), new ArrayList<>(queue));
+        assertEquals(12, evicted.size());
+        assertEquals(3, queue.allocatedChunks());
+
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+        assertEquals(1, queue.allocatedChunks());
+    }
+
+    @Test
+    public void iteratorOverEvictedElements() throws Exception {
+
+        SegmentedMostRecentlyInsertedQueue<Integer> queue = new SegmentedMostRecentlyInsertedQueue<>(3, 2);
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+
+        Iterator<Integer> it = queue.iterator();
+        assertSame(1, it.next());
+
+        queue.offer(4);
+        queue.offer(5);
+
+        assertSame(3, it.next());
+        assertSame(4, it.next());
+        assertSame(5, it.next());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void getFailIndexOutOfBoundsException() throws Exception {
+
+        SegmentedMostRecentlyInsertedQueue<Integer> queue = new SegmentedMostRecentlyInsertedQueue<>(3);
+
+        exception.expect(IndexOutOfBoundsException.class);
+        queue.get(-1);
+    }
+
+    @Test
+    public void constructorFailChunkSizeNotPowerOfTwo() throws Exception {
+
+        exception.expect(IllegalArgumentException.class);
+        new SegmentedMostRecentlyInsertedQueue<Integer>(10, 12);
+    }
+}
@@ -0,0 +1,589 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A most recently inserted queue shared by processes on the same host. The
+ * ring of records and its control words live in a memory-mapped file,
+ * usually under <tt>/dev/shm</tt>, and every process which maps the file with
+ * the same geometry sees the same queue.
+ * <p>
+ * <p>The ring has a fixed number of slots of a fixed size. A producer claims
+ * the next sequence number with an atomic add on the shared tail and writes
+ * its record into slot <tt>sequence % slotCount</tt>, overwriting the record
+ * one lap older, so the queue keeps the newest <tt>slotCount</tt> records
+ * without producers ever waiting for consumers. Every slot starts with a
+ * sequence word, <tt>2 * sequence + 1</tt> while its record is being written
+ * and <tt>2 * sequence + 2</tt> once it is published, and readers copy a
+ * record optimistically and keep it only if the word did not change. All
+ * coordination is done with {@link VarHandle} atomics on the mapped memory,
+ * there are no locks and no system calls once the file is mapped.
+ * <p>
+ * <p>{@link #poll} consumes from a head shared by all processes. A
+ * {@link Reader} follows the queue on its own, without consuming. Both
+ * detect when producers have lapped them and skip the overwritten records,
+ * which are counted by {@link #lappedCount} and {@link Reader#lappedCount}.
+ * <p>
+ * <p>A producer which finds the slot it claimed still being written one lap
+ * earlier waits for that write, and takes the slot over after
+ * {@value #STALLED_WRITER_MILLIS} ms, assuming the writing process died.
+ * Readers likewise skip a claimed record which is not published within that
+ * time. A writer which was only paused notices the takeover and drops its
+ * record, but the takeover is not safe against a process paused while
+ * copying, see {@link #publish}.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class SharedMemoryMostRecentlyInsertedQueue<E> extends AbstractQueue<E> {
+
+    static final int MAGIC = 0x4D524953;
+    static final int VERSION = 1;
+    static final long STALLED_WRITER_MILLIS = 1000;
+
+    private static final int VERSION_OFFSET = 4;
+    private static final int SLOT_COUNT_OFFSET = 8;
+    private static final int SLOT_SIZE_OFFSET = 12;
+    private static final int TAIL_OFFSET = 64;
+    private static final int HEAD_OFFSET = 128;
+    private static final int LAPPED_OFFSET = 192;
+    static final int HEADER_SIZE = 256;
+
+    /**
+     * Sequence word and record length in front of every record.
+     */
+    private static final int SLOT_HEADER = 16;
+    private static final int LENGTH_OFFSET = 8;
+
+    private static final int EMPTY = -1;
+    private static final int NOT_PUBLISHED = -2;
+    private static final int OVERWRITTEN = -3;
+
+    /**
+     * Bytes of a record copied between two checks that the slot still
+     * belongs to the writer.
+     */
+    private static final int COPY_CHUNK = 4096;
+
+    private static final long STALLED_WRITER_NANOS = TimeUnit.MILLISECONDS.toNanos(STALLED_WRITER_MILLIS);
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final Path file;
+    private final Codec<E> codec;
+    private final MappedByteBuffer memory;
+    private final int slotCount;
+    private final int slotSize;
+    private final int slotStride;
+
+    /**
+     * Maps the queue file, creating and initializing it if it does not exist
+     * or is empty. Concurrent openers are serialized with a file lock.
+     *
+     * @param file      the queue file, see {@link #sharedMemoryFile}
+     * @param slotCount the capacity of the queue in records
+     * @param slotSize  the max size of a record in bytes
+     * @param codec     the codec used to encode offered and decode read elements
+     * @throws IOException if the file cannot be mapped or was created with another geometry
+     */
+    public SharedMemoryMostRecentlyInsertedQueue(Path file, int slotCount, int slotSize, Codec<E> codec) throws IOException {
+
+        if (slotCount <= 0 || slotSize < 0) throw new IllegalArgumentException();
+        if (codec == null) throw new NullPointerException();
+
+        this.file = file;
+        this.codec = codec;
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        this.slotStride = (SLOT_HEADER + slotSize + 7) & ~7;
+
+        long fileSize = HEADER_SIZE + (long) slotCount * slotStride;
+
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Queue of " + fileSize + " bytes cannot be mapped");
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+
+            try {
+                boolean created = channel.size() == 0;
+
+
+                memory = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                memory.order(ByteOrder.nativeOrder());
+
+                if (created) {
+                    memory.putInt(VERSION_OFFSET, VERSION);
+                    memory.putInt(SLOT_COUNT_OFFSET, slotCount);
+                    memory.putInt(SLOT_SIZE_OFFSET, slotSize);
+                    memory.putInt(0, MAGIC);
+                    memory.force();
+                } else if (memory.getInt(0) != MAGIC || memory.getInt(VERSION_OFFSET) != VERSION) {
+                    throw new IOException(file + " is not a shared queue file");
+                } else if (memory.getInt(SLOT_COUNT_OFFSET) != slotCount || memory.getInt(SLOT_SIZE_OFFSET) != slotSize) {
+                    throw new IOException(file + " holds a queue of " + memory.getInt(SLOT_COUNT_OFFSET)
+                            + " slots of " + memory.getInt(SLOT_SIZE_OFFSET) + " bytes");
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the named queue file in <tt>/dev/shm</tt>, or in the
+     * temporary directory where there is no <tt>/dev/shm</tt>.
+     */
+    public static Path sharedMemoryFile(String name) {
+
+        Path shm = Paths.get("/dev/shm");
+
+        return (Files.isDirectory(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"))).resolve(name);
+    }
+
+    /**
+     * Encodes the element and inserts it, overwriting the oldest record if
+     * the queue is full.
+     *
+     * @return <tt>true</tt>
+     * @throws NullPointerException     if the specified element is null
+     * @throws IllegalArgumentException if the encoded element is larger than a slot
+     */
+    @Override
+    public boolean offer(E e) {
+
+        if (e == null) throw new NullPointerException();
+
+        return offerRecord(ByteBuffer.wrap(codec.encode(e)));
+    }
+
+    /**
+     * Inserts the remaining bytes of the buffer as one record, as if they had
+     * been produced by the codec, overwriting the oldest record if the queue
+     * is full. The position of the buffer is not changed.
+     *
+     * @return <tt>true</tt>
+     * @throws IllegalArgumentException if the record is larger than a slot
+     */
+    public boolean offerRecord(ByteBuffer record) {
+
+        int length = record.remaining();
+
+        if (length > slotSize) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a slot of "
+                    + slotSize + " bytes");
+        }
+
+        long sequence = claim();
+
+        if (sequence >= 0) {
+            publish(sequence, record, length);
+        }
+
+        return true;
+    }
+
+    /**
+     * Claims the next sequence number and its slot, waiting for a write one
+     * lap older to finish or taking the slot over from a stalled writer.
+     *
+     * @return the sequence number, <tt>-1</tt> if a producer one lap ahead took the slot first
+     */
+    long claim() {
+
+        long sequence = (long) LONGS.getAndAdd(memory, TAIL_OFFSET, 1L);
+        int slot = slotOffset(sequence);
+        long writing = 2 * sequence + 1;
+        long waitingSince = 0;
+
+        while (true) {
+            long word = (long) LONGS.getVolatile(memory, slot);
+
+            if (word >= writing) {
+                // a producer one lap ahead has taken the slot, the record is evicted right away
+                return -1;
+            }
+
+            if ((word & 1) != 0) {
+                // the record one lap older is still being written
+                if (waitingSince == 0) {
+                    waitingSince = System.nanoTime();
+                }
+
+                if (System.nanoTime() - waitingSince < STALLED_WRITER_NANOS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+            }
+
+            if (LONGS.compareAndSet(memory, slot, word, writing)) {
+                return sequence;
+            }
+        }
+    }
+
+    /**
+     * Writes the record into the claimed slot and publishes it. The slot is
+     * checked to still belong to this write before the length and before
+     * every chunk of the record is copied, and the record is published only
+     * if the sequence word is still the one this write set, so a writer
+     * which was taken over for being stalled gives up instead of publishing
+     * over the new owner.
+     * <p>
+     * <p>The check cannot be atomic with the copy: a writer paused for longer
+     * than {@value #STALLED_WRITER_MILLIS} ms in the middle of a chunk still
+     * copies the rest of that chunk when it resumes, and may tear the record
+     * of the producer which took the slot over. Takeover is only safe against
+     * writers which died, not against processes which were merely paused.
+     *
+     * @return <tt>true</tt> if the record was published, <tt>false</tt> if the slot was taken over
+     */
+    boolean publish(long sequence, ByteBuffer record, int length) {
+
+        int slot = slotOffset(sequence);
+        long writing = 2 * sequence + 1;
+
+        if ((long) LONGS.getVolatile(memory, slot) != writing) {
+            return false;
+        }
+
+        memory.putInt(slot + LENGTH_OFFSET, length);
+
+        for (int offset = 0; offset < length; offset += COPY_CHUNK) {
+            if ((long) LONGS.getVolatile(memory, slot) != writing) {
+                return false;
+            }
+
+            memory.put(slot + SLOT_HEADER + offset, record, record.position() + offset,
+                    Math.min(COPY_CHUNK, length - offset));
+        }
+
+        return LONGS.compareAndSet(memory, slot, writing, writing + 1);
+    }
+
+    /**
+     * Retrieves and removes the oldest element, decoding it, or returns
+     * <tt>null</tt> if this queue is empty.
+     */
+    @Override
+    public E poll() {
+
+        ByteBuffer record = ByteBuffer.allocate(slotSize);
+
+        if (pollRecord(record) < 0) {
+            return null;
+        }
+
+        record.flip();
+
+        return codec.decode(record);
+    }
+
+    /**
+     * Copies the oldest record into the buffer, from its position on, and
+     * removes it. This is the allocation-free way to consume the queue.
+     *
+     * @param destination a buffer with room for at least a slot
+     * @return the length of the record, <tt>-1</tt> if this queue is empty
+     */
+    public int pollRecord(ByteBuffer destination) {
+
+        if (destination.remaining() < slotSize) throw new IllegalArgumentException();
+
+        long waitingSince = 0;
+
+        while (true) {
+            long head = (long) LONGS.getVolatile(memory, HEAD_OFFSET);
+            long tail = (long) LONGS.getVolatile(memory, TAIL_OFFSET);
+
+            if (head >= tail) {
+                return EMPTY;
+            }
+
+            if (tail - head > slotCount) {
+                if (LONGS.compareAndSet(memory, HEAD_OFFSET, head, tail - slotCount)) {
+                    LONGS.getAndAdd(memory, LAPPED_OFFSET, tail - slotCount - head);
+                }
+                continue;
+            }
+
+            int length = read(head, destination);
+
+            if (length >= 0) {
+                if (LONGS.compareAndSet(memory, HEAD_OFFSET, head, head + 1)) {
+                    destination.position(destination.position() + length);
+                    return length;
+                }
+                continue;
+            }
+
+            if (length == NOT_PUBLISHED) {
+                if (waitingSince == 0) {
+                    waitingSince = System.nanoTime();
+                }
+
+                if (System.nanoTime() - waitingSince < STALLED_WRITER_NANOS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+            }
+
+            // overwritten, or claimed by a producer which never published it
+            waitingSince = 0;
+            if (LONGS.compareAndSet(memory, HEAD_OFFSET, head, head + 1)) {
+                LONGS.getAndAdd(memory, LAPPED_OFFSET, 1L);
+            }
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the oldest element, decoding it, or
+     * returns <tt>null</tt> if this queue is empty.
+     */
+    @Override
+    public E peek() {
+
+        Reader reader = new Reader((long) LONGS.getVolatile(memory, HEAD_OFFSET));
+        ByteBuffer record = ByteBuffer.allocate(slotSize);
+
+        if (reader.read(record) < 0) {
+            return null;
+        }
+
+        record.flip();
+
+        return codec.decode(record);
+    }
+
+    /**
+     * Returns the number of records between the shared head and the tail, at
+     * most the slot count. Records claimed but not yet published are counted.
+     */
+    @Override
+    public int size() {
+
+        long head = (long) LONGS.getVolatile(memory, HEAD_OFFSET);
+        long tail = (long) LONGS.getVolatile(memory, TAIL_OFFSET);
+
+        return (int) Math.max(0, Math.min(slotCount, tail - head));
+    }
+
+    /**
+     * Returns the number of records lost to consumers of the shared head
+     * because producers overwrote them first, over all processes.
+     */
+    public long lappedCount() {
+
+        return (long) LONGS.getVolatile(memory, LAPPED_OFFSET);
+    }
+
+    public int getSlotCount() {
+
+        return slotCount;
+    }
+
+    public int getSlotSize() {
+
+        return slotSize;
+    }
+
+    public Path getFile() {
+
+        return file;
+    }
+
+    /**
+     * Returns a weakly consistent iterator from the shared head to the tail.
+     * It does not consume, skips records overwritten under it and does not
+     * support removal.
+     */
+    @Override
+    public Iterator<E> iterator() {
+
+        final Reader reader = new Reader((long) LONGS.getVolatile(memory, HEAD_OFFSET));
+        final ByteBuffer record = ByteBuffer.allocate(slotSize);
+
+        return new Iterator<E>() {
+
+            private E next;
+
+            @Override
+            public boolean hasNext() {
+
+                if (next == null) {
+                    record.clear();
+
+                    if (reader.read(record) >= 0) {
+                        record.flip();
+                        next = codec.decode(record);
+                    }
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public E next() {
+
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                E item = next;
+                next = null;
+
+                return item;
+            }
+        };
+    }
+
+    /**
+     * Returns a reader which follows the records offered from now on.
+     */
+    public Reader reader() {
+
+        return new Reader((long) LONGS.getVolatile(memory, TAIL_OFFSET));
+    }
+
+    /**
+     * Follows the queue independently of the shared head and of other
+     * readers, without consuming, like a subscriber to a broadcast. A reader
+     * which falls more than a lap behind the producers skips to the oldest
+     * record still in the ring and counts the records it missed.
+     * <p>
+     * <p>A reader belongs to one thread.
+     */
+    public class Reader {
+
+        private long sequence;
+        private long lapped;
+
+        Reader(long sequence) {
+
+            this.sequence = sequence;
+        }
+
+        /**
+         * Copies the next record into the buffer, from its position on.
+         *
+         * @param destination a buffer with room for at least a slot
+         * @return the length of the record, <tt>-1</tt> if the reader has
+         * caught up with the producers
+         */
+        public int read(ByteBuffer destination) {
+
+            if (destination.remaining() < slotSize) throw new IllegalArgumentException();
+
+            long waitingSince = 0;
+
+            while (true) {
+                long tail = (long) LONGS.getVolatile(memory, TAIL_OFFSET);
+
+                if (sequence >= tail) {
+                    return EMPTY;
+                }
+
+                if (tail - sequence > slotCount) {
+                    lapped += tail - slotCount - sequence;
+                    sequence = tail - slotCount;
+                    continue;
+                }
+
+                int length = SharedMemoryMostRecentlyInsertedQueue.this.read(sequence, destination);
+
+                if (length >= 0) {
+                    destination.position(destination.position() + length);
+                    sequence++;
+                    return length;
+                }
+
+                if (length == NOT_PUBLISHED) {
+                    if (waitingSince == 0) {
+                        waitingSince = System.nanoTime();
+                    }
+
+                    if (System.nanoTime() - waitingSince < STALLED_WRITER_NANOS) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                }
+
+                waitingSince = 0;
+                lapped++;
+                sequence++;
+            }
+        }
+
+        /**
+         * Returns the sequence number of the next record this reader reads.
+         */
+        public long getSequence() {
+
+            return sequence;
+        }
+
+        /**
+         * Returns the number of records this reader missed because producers
+         * overwrote them before it got to them.
+         */
+        public long lappedCount() {
+
+            return lapped;
+        }
+    }
+
+    /**
+     * Copies the record with the sequence number into the buffer, from its
+     * position on, without moving the position, and checks that it was not
+     * overwritten while being copied.
+     *
+     * @return the length of the record, {@link #NOT_PUBLISHED} or {@link #OVERWRITTEN}
+     */
+    private int read(long sequence, ByteBuffer destination) {
+
+        int slot = slotOffset(sequence);
+        long published = 2 * sequence + 2;
+        long word = (long) LONGS.getAcquire(memory, slot);
+
+        if (word > published) {
+            return OVERWRITTEN;
+        }
+
+        if (word != published) {
+            return NOT_PUBLISHED;
+        }
+
+        int length = memory.getInt(slot + LENGTH_OFFSET);
+
+        if (length >= 0 && length <= slotSize) {
+            destination.put(destination.position(), memory, slot + SLOT_HEADER, length);
+        }
+
+        VarHandle.acquireFence();
+
+        if ((long) LONGS.getVolatile(memory, slot) != published || length < 0 || length > slotSize) {
+            return OVERWRITTEN;
+        }
+
+        return length;
+    }
+
+    private int slotOffset(long sequence) {
+
+        return HEADER_SIZE + (int) (sequence % slotCount) * slotStride;
+    }
+}
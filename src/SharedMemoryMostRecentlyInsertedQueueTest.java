@@ -0,0 +1,239 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SharedMemoryMostRecentlyInsertedQueueTest {
+
+    private Path file;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void setUp() throws Exception {
+
+        file = folder.getRoot().toPath().resolve("queue.shm");
+    }
+
+    private SharedMemoryMostRecentlyInsertedQueue<Integer> open(int slotCount) throws IOException {
+
+        return new SharedMemoryMostRecentlyInsertedQueue<>(file, slotCount, 4,
+                new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec());
+    }
+
+    @Test
+    public void evictsOldest() throws Exception {
+
+        SharedMemoryMostRecentlyInsertedQueue<Integer> queue = open(4);
+        assertNull(queue.poll());
+
+        for (int i = 0; i < 10; i++) {
+            queue.offer(i);
+        }
+
+        assertEquals(4, queue.size());
+        assertEquals(Arrays.asList(6, 7, 8, 9), new ArrayList<>(queue));
+        assertEquals(Integer.valueOf(6), queue.peek());
+        assertEquals(Integer.valueOf(6), queue.poll());
+        assertEquals(6, queue.lappedCount());
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void sharedBetweenMappings() throws Exception {
+
+        SharedMemoryMostRecentlyInsertedQueue<Integer> producer = open(8);
+        SharedMemoryMostRecentlyInsertedQueue<Integer> consumer = open(8);
+
+        producer.offer(1);
+        producer.offer(2);
+        assertEquals(Integer.valueOf(1), consumer.poll());
+        assertEquals(Integer.valueOf(2), producer.poll());
+        assertNull(consumer.poll());
+
+        ByteBuffer record = ByteBuffer.allocate(4);
+        producer.offerRecord(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        assertEquals(3, consumer.pollRecord(record));
+        assertEquals(3, record.position());
+
+        exception.expect(IOException.class);
+        open(16);
+    }
+
+    @Test
+    public void readerDetectsLapping() throws Exception {
+
+        SharedMemoryMostRecentlyInsertedQueue<Integer> queue = open(4);
+        queue.offer(-1);
+
+        SharedMemoryMostRecentlyInsertedQueue<Integer>.Reader reader = queue.reader();
+        ByteBuffer record = ByteBuffer.allocate(4);
+        assertEquals(-1, reader.read(record));
+
+        for (int i = 0; i < 10; i++) {
+            queue.offer(i);
+        }
+
+        for (int i = 6; i < 10; i++) {
+            record.clear();
+            assertEquals(4, reader.read(record));
+            assertEquals(i, record.getInt(0));
+        }
+        record.clear();
+        assertEquals(-1, reader.read(record));
+        assertEquals(6, reader.lappedCount());
+        assertEquals(11, reader.getSequence());
+    }
+
+    @Test
+    public void crossProcess() throws Exception {
+
+        SharedMemoryMostRecentlyInsertedQueue<Integer> queue = open(64);
+        SharedMemoryMostRecentlyInsertedQueue<Integer>.Reader reader = queue.reader();
+        int offers = 100000;
+
+        Process child = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), ChildProducer.class.getName(),
+                file.toString(), "64", String.valueOf(offers))
+                .inheritIO()
+                .start();
+
+        ByteBuffer record = ByteBuffer.allocate(4);
+        int previous = -1;
+        int read = 0;
+
+        while (previous < offers - 1) {
+            boolean alive = child.isAlive();
+            record.clear();
+
+            if (reader.read(record) < 0) {
+                if (!alive) {
+                    break;
+                }
+                Thread.onSpinWait();
+                continue;
+            }
+
+            int value = record.getInt(0);
+            assertTrue(previous + " " + value, value > previous);
+            previous = value;
+            read++;
+        }
+
+        assertTrue(child.waitFor(30, TimeUnit.SECONDS));
+        assertEquals(0, child.exitValue());
+        assertEquals(offers - 1, previous);
+        assertEquals(offers, read + reader.lappedCount());
+    }
+
+    public static class ChildProducer {
+
+        public static void main(String[] args) throws Exception {
+
+            SharedMemoryMostRecentlyInsertedQueue<Integer> queue = new SharedMemoryMostRecentlyInsertedQueue<>(
+                    Paths.get(args[0]), Integer.parseInt(args[1]), 4,
+                    new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec());
+
+            for (int i = 0, offers = Integer.parseInt(args[2]); i < offers; i++) {
+                queue.offer(i);
+            }
+        }
+    }
+
+    @Test
+    public void stalledWriterDoesNotPublishOverTakeover() throws Exception {
+
+        SharedMemoryMostRecentlyInsertedQueue<Integer> queue = open(1);
+
+        // a writer which claimed its slot and paused before copying
+        long stalled = queue.claim();
+        assertEquals(0, stalled);
+
+        long started = System.nanoTime();
+        queue.offer(7);
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(
+                SharedMemoryMostRecentlyInsertedQueue.STALLED_WRITER_MILLIS));
+
+        ByteBuffer record = ByteBuffer.allocate(4).putInt(5);
+        record.flip();
+        assertFalse(queue.publish(stalled, record, 4));
+
+        assertEquals(Integer.valueOf(7), queue.poll());
+        assertNull(queue.poll());
+        assertEquals(1, queue.lappedCount());
+    }
+
+    @Test
+    public void producersConsumersThreads() throws Exception {
+
+        final int producers = 4;
+        final int offers = 200000;
+        final SharedMemoryMostRecentlyInsertedQueue<Integer> queue = open(256);
+        final Set<Integer> consumed = ConcurrentHashMap.newKeySet();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch latch = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(() -> {
+                for (int i = 0; i < offers; i++) {
+                    queue.offer(producer * offers + i);
+                }
+                latch.countDown();
+            }).start();
+        }
+
+        Thread[] consumers = new Thread[2];
+        for (int c = 0; c < consumers.length; c++) {
+            consumers[c] = new Thread(() -> {
+                int[] last = new int[producers];
+                Arrays.fill(last, -1);
+
+                while (!done.get() || !queue.isEmpty()) {
+                    Integer value = queue.poll();
+                    if (value == null) {
+                        continue;
+                    }
+                    int producer = value / offers;
+                    if (value % offers <= last[producer] || !consumed.add(value)) {
+                        failures.incrementAndGet();
+                    }
+                    last[producer] = value % offers;
+                }
+            });
+            consumers[c].start();
+        }
+
+        latch.await();
+        done.set(true);
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(producers * (long) offers, consumed.size() + queue.lappedCount());
+        assertEquals(new HashSet<>(), new HashSet<>(queue));
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Incrementally maintained aggregate of a FIFO window for any associative
+ * {@link WindowAggregator}, with the two-stacks technique.
+ * <p>
+ * <p>New elements go on a back stack whose aggregate is kept as a running
+ * value. Removals take from a front stack which stores, for every element,
+ * the aggregate of that element and all newer front elements. When the front
+ * stack is empty the back stack is flipped into it in one pass. Every element
+ * is lifted twice and takes part in two combines at most, so {@link #push},
+ * {@link #pop} and {@link #get} are amortized O(1) without the aggregator
+ * having to be invertible.
+ * <p>
+ * <p>Not thread-safe, the owner is expected to guard it.
+ *
+ * @param <E> the type of the window elements
+ * @param <A> the type of the aggregate
+ */
+public class SlidingWindowAggregate<E, A> {
+
+    private final WindowAggregator<? super E, A> aggregator;
+
+    private final ArrayList<E> back = new ArrayList<>();
+    private A backAggregate;
+
+    private Object[] front = new Object[16];
+    private int frontSize;
+
+    public SlidingWindowAggregate(WindowAggregator<? super E, A> aggregator) {
+
+        this.aggregator = aggregator;
+        this.backAggregate = aggregator.identity();
+    }
+
+    /**
+     * Adds the element as the newest one of the window.
+     */
+    public void push(E element) {
+
+        back.add(element);
+        backAggregate = aggregator.combine(backAggregate, aggregator.lift(element));
+    }
+
+    /**
+     * Removes the oldest element of the window.
+     *
+     * @throws IllegalStateException if the window is empty
+     */
+    public void pop() {
+
+        if (frontSize == 0) {
+            flip();
+        }
+
+        if (frontSize == 0) throw new IllegalStateException("Window is empty");
+
+        front[--frontSize] = null;
+    }
+
+    /**
+     * Returns the aggregate of the elements currently in the window.
+     */
+    @SuppressWarnings("unchecked")
+    public A get() {
+
+        if (frontSize == 0) {
+            return backAggregate;
+        }
+
+        return aggregator.combine((A) front[frontSize - 1], backAggregate);
+    }
+
+    public int size() {
+
+        return frontSize + back.size();
+    }
+
+    public void clear() {
+
+        Arrays.fill(front, 0, frontSize, null);
+        frontSize = 0;
+        back.clear();
+        backAggregate = aggregator.identity();
+    }
+
+    /**
+     * Moves the back stack to the front stack, newest element first, so the
+     * oldest element ends up on top with the aggregate of the whole stack.
+     */
+    private void flip() {
+
+        if (front.length < back.size()) {
+            front = new Object[Math.max(back.size(), front.length * 2)];
+        }
+
+        A aggregate = aggregator.identity();
+
+        for (int i = back.size() - 1; i >= 0; i--) {
+            aggregate = aggregator.combine(aggregator.lift(back.get(i)), aggregate);
+            front[frontSize++] = aggregate;
+        }
+
+        back.clear();
+        backAggregate = aggregator.identity();
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes a snapshot of a {@link ConcurrentMostRecentlyInsertedQueue}
+ * to a file from a background thread, so the window can be carried across
+ * restarts with {@link #restore}.
+ * <p>
+ * <p>Each checkpoint is written to a temporary file next to the target and then
+ * atomically moved over it, so a crash during a checkpoint leaves the previous
+ * one intact.
+ *
+ * @param <E> the type of elements held in the queue
+ */
+public class SnapshotCheckpointer<E> implements Closeable {
+
+    private final ConcurrentMostRecentlyInsertedQueue<E> queue;
+    private final Codec<E> codec;
+    private final Path file;
+    private final Path temporaryFile;
+    private final ScheduledExecutorService executor;
+
+    public SnapshotCheckpointer(ConcurrentMostRecentlyInsertedQueue<E> queue, Codec<E> codec, Path file,
+                                long interval, TimeUnit unit) {
+
+        this.queue = queue;
+        this.codec = codec;
+        this.file = file;
+        this.temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "queue-checkpointer-" + file.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::checkpointQuietly, interval, interval, unit);
+    }
+
+    /**
+     * Loads the last checkpoint written to the file into the queue.
+     *
+     * @return the number of elements added, <tt>0</tt> if there is no checkpoint
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public static <E> int restore(ConcurrentMostRecentlyInsertedQueue<E> queue, Codec<E> codec, Path file)
+            throws IOException {
+
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            return queue.readSnapshot(in, codec);
+        }
+    }
+
+    /**
+     * Writes a checkpoint immediately on the calling thread.
+     *
+     * @return the number of elements written
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public synchronized int checkpoint() throws IOException {
+
+        int count;
+
+        try (FileChannel out = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            count = queue.writeSnapshot(out, codec);
+            out.force(true);
+        }
+
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return count;
+    }
+
+    private void checkpointQuietly() {
+
+        try {
+            checkpoint();
+        } catch (IOException error) {
+            error.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the background thread and writes a final checkpoint.
+     */
+    @Override
+    public void close() throws IOException {
+
+        executor.shutdown();
+
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        checkpoint();
+    }
+}
@@ -0,0 +1,74 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SnapshotCheckpointerTest {
+
+    private final int capacity = 100;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void checkpointAndRestore() throws Exception {
+
+        Path file = folder.getRoot().toPath().resolve("window.snapshot");
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(capacity);
+
+        for (int i = 0; i < capacity * 2; i++) {
+            queue.offer(i);
+        }
+
+        SnapshotCheckpointer<Integer> checkpointer = new SnapshotCheckpointer<>(queue,
+                new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec(), file, 1, TimeUnit.HOURS);
+
+        assertEquals(capacity, checkpointer.checkpoint());
+        assertEquals(true, Files.exists(file));
+
+        queue.offer(-1);
+        checkpointer.close();
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> restored = new ConcurrentMostRecentlyInsertedQueue<>(capacity);
+        assertEquals(capacity, SnapshotCheckpointer.restore(restored,
+                new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec(), file));
+
+        assertArrayEquals(queue.toArray(), restored.toArray());
+        assertSame(-1, restored.toArray()[capacity - 1]);
+    }
+
+    @Test
+    public void restoreWithoutCheckpoint() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(capacity);
+
+        assertEquals(0, SnapshotCheckpointer.restore(queue, new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec(),
+                folder.getRoot().toPath().resolve("missing")));
+        assertEquals(true, queue.isEmpty());
+    }
+
+    @Test
+    public void backgroundCheckpoint() throws Exception {
+
+        Path file = folder.getRoot().toPath().resolve("window.snapshot");
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(capacity);
+        queue.offer(1);
+
+        SnapshotCheckpointer<Integer> checkpointer = new SnapshotCheckpointer<>(queue,
+                new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec(), file, 10, TimeUnit.MILLISECONDS);
+
+        try {
+            for (int i = 0; i < 100 && !Files.exists(file); i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(true, Files.exists(file));
+        } finally {
+            checkpointer.close();
+        }
+    }
+}
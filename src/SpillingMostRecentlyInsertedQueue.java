@@ -0,0 +1,555 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link ConcurrentMostRecentlyInsertedQueue} which does not lose the
+ * elements evicted by {@link #offer}. They are handed to a background writer
+ * which appends them to segment files, and {@link #poll} and {@link #peek}
+ * return the spilled elements before the ones still in memory, so consumers
+ * see every offered element in order.
+ * <p>
+ * <p>Producers never wait on disk: an evicted element goes into a bounded
+ * hand-off buffer, and if the writer has fallen so far behind that the buffer
+ * is full the element is dropped and counted by {@link #droppedCount}. Heap
+ * use is therefore capped at the queue capacity plus the hand-off capacity.
+ * Consumers read the segment files sequentially through a read-ahead buffer
+ * and delete each one once it has been drained. Consumers never wait on disk
+ * either: the writer encodes and writes a batch without holding the tier
+ * lock, and the batch stays readable from memory until it is published.
+ * <p>
+ * <p>{@link #size} and {@link #isEmpty} cover both tiers, {@link #spilledSize}
+ * the overflow tier only. {@link #iterator} and the bulk operations only cover
+ * the in-memory window.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class SpillingMostRecentlyInsertedQueue<E> extends ConcurrentMostRecentlyInsertedQueue<E> implements Closeable {
+
+    static final String SEGMENT_SUFFIX = ".spill";
+    private static final int WRITE_BATCH_SIZE = 1024;
+    private static final int READ_AHEAD_SIZE = 256 * 1024;
+
+    private final Path directory;
+    private final Codec<E> codec;
+    private final long segmentBytes;
+
+    private final ArrayBlockingQueue<E> handOff;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Guards the segment files, the read position and the order between the
+     * hand-off buffer and the disk. Taken before {@code lock}, never after.
+     */
+    private final Object tierLock = new Object();
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long segmentCounter;
+    private long spilled;
+
+    /**
+     * The published segment the writer is appending a batch to, if any.
+     */
+    private Segment appending;
+
+    /**
+     * The batch being written, older than the hand-off buffer and newer than
+     * the disk. Consumers take from it while the disk tier is empty, and the
+     * records of the elements they took are skipped once it is published.
+     */
+    private final ArrayDeque<E> inFlight = new ArrayDeque<>();
+    private int inFlightConsumed;
+    private long skipOnRead;
+
+    /**
+     * Incremented when the segments are discarded, so a batch written
+     * meanwhile is not published.
+     */
+    private long epoch;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(64 * 1024);
+    private FileChannel readChannel;
+    private ByteBuffer readAhead = ByteBuffer.allocate(READ_AHEAD_SIZE);
+    private E peeked;
+
+    /**
+     * Existing spill segments in the directory are deleted, the overflow tier
+     * only lives as long as the queue.
+     *
+     * @param capacity         the capacity of the in-memory window
+     * @param directory        the directory for the segment files
+     * @param codec            the codec used to write and read the spilled elements
+     * @param handOffCapacity  how many evicted elements may wait for the writer
+     * @param segmentBytes     the size after which a new segment file is started
+     * @throws IOException if the directory cannot be prepared
+     */
+    public SpillingMostRecentlyInsertedQueue(int capacity, Path directory, Codec<E> codec,
+                                             int handOffCapacity, long segmentBytes) throws IOException {
+
+        super(capacity);
+
+        this.directory = Files.createDirectories(directory);
+        this.codec = codec;
+        this.segmentBytes = segmentBytes;
+        this.handOff = new ArrayBlockingQueue<>(handOffCapacity);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+
+        this.readAhead.flip();
+
+        this.writer = new Thread(this::writeLoop, "queue-spill-writer-" + directory.getFileName());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    protected void evicted(E e) {
+
+        if (closed || !handOff.offer(e)) {
+            dropped.incrementAndGet();
+        } else {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Retrieves and removes the oldest element, looking in the overflow tier
+     * first, or returns <tt>null</tt> if both tiers are empty.
+     */
+    @Override
+    public E poll() {
+
+        synchronized (tierLock) {
+            E e = nextSpilled(true);
+
+            if (e == null) {
+                e = inFlight.poll();
+
+                if (e != null) {
+                    inFlightConsumed++;
+                }
+            }
+
+            if (e == null) {
+                synchronized (lock) {
+                    e = handOff.poll();
+
+                    if (e == null) {
+                        e = super.poll();
+                    }
+                }
+            }
+
+            return e;
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the oldest element, looking in the
+     * overflow tier first, or returns <tt>null</tt> if both tiers are empty.
+     */
+    @Override
+    public E peek() {
+
+        synchronized (tierLock) {
+            E e = nextSpilled(false);
+
+            if (e == null) {
+                e = inFlight.peek();
+            }
+
+            if (e == null) {
+                synchronized (lock) {
+                    e = handOff.peek();
+
+                    if (e == null) {
+                        e = super.peek();
+                    }
+                }
+            }
+
+            return e;
+        }
+    }
+
+    @Override
+    public void clear() {
+
+        synchronized (tierLock) {
+            try {
+                discardSegments();
+            } catch (IOException error) {
+                error.printStackTrace();
+            }
+
+            synchronized (lock) {
+                handOff.clear();
+
+                while (super.poll() != null) {
+                    // drain the in-memory window
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of elements in both tiers, at most
+     * <tt>Integer.MAX_VALUE</tt>.
+     */
+    @Override
+    public int size() {
+
+        return (int) Math.min(Integer.MAX_VALUE, super.size() + spilledSize());
+    }
+
+    @Override
+    public boolean isEmpty() {
+
+        return super.isEmpty() && spilledSize() == 0;
+    }
+
+    /**
+     * Returns the number of evicted elements not yet consumed, both on disk
+     * and waiting for the writer.
+     */
+    public long spilledSize() {
+
+        synchronized (tierLock) {
+            return spilled - skipOnRead + (peeked != null ? 1 : 0) + inFlight.size() + handOff.size();
+        }
+    }
+
+    /**
+     * Returns the number of evicted elements lost because the writer could
+     * not keep up or failed.
+     */
+    public long droppedCount() {
+
+        return dropped.get();
+    }
+
+    private void writeLoop() {
+
+        ArrayList<E> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+
+        while (true) {
+            long batchEpoch;
+            Segment segment = null;
+            Path newSegment = null;
+
+            synchronized (tierLock) {
+                handOff.drainTo(batch, WRITE_BATCH_SIZE);
+                inFlight.addAll(batch);
+                inFlightConsumed = 0;
+                batchEpoch = epoch;
+
+                if (!batch.isEmpty()) {
+                    segment = segments.peekLast();
+
+                    if (segment == null || segment.size >= segmentBytes) {
+                        segment = null;
+                        newSegment = directory.resolve(String.format("%020d", segmentCounter++) + SEGMENT_SUFFIX);
+                    }
+
+                    appending = segment;
+                }
+            }
+
+            if (batch.isEmpty()) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+
+            boolean written = false;
+
+            try {
+                if (segment == null) {
+                    segment = new Segment(newSegment);
+                }
+                write(batch, segment);
+                written = true;
+            } catch (IOException | RuntimeException error) {
+                if (batchEpoch == currentEpoch()) {
+                    error.printStackTrace();
+                }
+            }
+
+            publish(batch.size(), batchEpoch, segment, newSegment != null, written);
+            batch.clear();
+        }
+    }
+
+    private long currentEpoch() {
+
+        synchronized (tierLock) {
+            return epoch;
+        }
+    }
+
+    /**
+     * Encodes the batch and appends it to the segment. Called without
+     * holding {@code tierLock}: consumers only read the bytes of published
+     * batches, and only the writer appends.
+     */
+    private void write(ArrayList<E> batch, Segment segment) throws IOException {
+
+        writeBuffer.clear();
+
+        for (E e : batch) {
+            byte[] record = codec.encode(e);
+
+            if (writeBuffer.remaining() < Integer.BYTES + record.length) {
+                ByteBuffer larger = ByteBuffer.allocate(
+                        Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + Integer.BYTES + record.length));
+                writeBuffer.flip();
+                larger.put(writeBuffer);
+                writeBuffer = larger;
+            }
+
+            writeBuffer.putInt(record.length).put(record);
+        }
+
+        writeBuffer.flip();
+
+        segment.size += writeBuffer.remaining();
+
+        while (writeBuffer.hasRemaining()) {
+            segment.channel.write(writeBuffer);
+        }
+    }
+
+    /**
+     * Makes a written batch readable from disk, or accounts for it if
+     * writing failed. A batch written while the segments were discarded is
+     * thrown away.
+     */
+    private void publish(int count, long batchEpoch, Segment segment, boolean created, boolean written) {
+
+        synchronized (tierLock) {
+            appending = null;
+
+            if (batchEpoch != epoch || !written) {
+                if (batchEpoch == epoch) {
+                    dropped.addAndGet(inFlight.size());
+                    inFlight.clear();
+                }
+
+                if (created && segment != null) {
+                    try {
+                        segment.channel.close();
+                        Files.deleteIfExists(segment.path);
+                    } catch (IOException error) {
+                        error.printStackTrace();
+                    }
+                }
+
+                return;
+            }
+
+            if (created) {
+                segments.add(segment);
+            }
+
+            // elements taken from the batch were all consumed after the
+            // rest of the disk tier, so their records are the next to read
+            spilled += count;
+            skipOnRead += inFlightConsumed;
+            inFlight.clear();
+            inFlightConsumed = 0;
+
+            if (spilled == skipOnRead) {
+                try {
+                    deleteDrainedSegments();
+                } catch (IOException error) {
+                    error.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the segment files once every record in them has been read, or
+     * consumed from memory while it was being written, instead of keeping
+     * them until a later read needs more bytes. Must be called while holding
+     * {@code tierLock} and while the writer is not appending to a segment.
+     */
+    private void deleteDrainedSegments() throws IOException {
+
+        if (readChannel != null) {
+            readChannel.close();
+            readChannel = null;
+        }
+
+        for (Segment segment; (segment = segments.pollFirst()) != null; ) {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+
+        readAhead.clear().flip();
+        spilled = 0;
+        skipOnRead = 0;
+    }
+
+    /**
+     * Returns the oldest element of the disk tier, or <tt>null</tt> if it is
+     * empty. Must be called while holding {@code tierLock}.
+     */
+    private E nextSpilled(boolean consume) {
+
+        if (peeked == null && spilled > 0) {
+            try {
+                for (; skipOnRead > 0; skipOnRead--) {
+                    readRecord();
+                    spilled--;
+                }
+
+                if (spilled > 0) {
+                    peeked = readRecord();
+                    spilled--;
+                }
+
+                if (spilled == 0 && appending == null) {
+                    deleteDrainedSegments();
+                }
+            } catch (IOException error) {
+                error.printStackTrace();
+                dropped.addAndGet(spilled - skipOnRead);
+                spilled = 0;
+                skipOnRead = 0;
+            }
+        }
+
+        E e = peeked;
+
+        if (consume) {
+            peeked = null;
+        }
+
+        return e;
+    }
+
+    private E readRecord() throws IOException {
+
+        fillReadAhead(Integer.BYTES);
+        int length = readAhead.getInt();
+        fillReadAhead(length);
+
+        ByteBuffer record = readAhead.duplicate();
+        record.limit(record.position() + length);
+        readAhead.position(readAhead.position() + length);
+
+        return codec.decode(record);
+    }
+
+    /**
+     * Makes sure at least {@code required} bytes are in the read-ahead buffer,
+     * moving on to the next segment and deleting the drained one as needed.
+     */
+    private void fillReadAhead(int required) throws IOException {
+
+        if (readAhead.remaining() >= required) {
+            return;
+        }
+
+        if (readAhead.capacity() < required) {
+            ByteBuffer larger = ByteBuffer.allocate(required);
+            larger.put(readAhead);
+            readAhead = larger;
+        } else {
+            readAhead.compact();
+        }
+
+        while (readAhead.position() < required) {
+            if (readChannel == null) {
+                readChannel = FileChannel.open(segments.peekFirst().path, StandardOpenOption.READ);
+            }
+
+            if (readChannel.read(readAhead) <= 0) {
+                Segment drained = segments.pollFirst();
+
+                readChannel.close();
+                readChannel = null;
+
+                drained.channel.close();
+                Files.delete(drained.path);
+            }
+        }
+
+        readAhead.flip();
+    }
+
+    private void discardSegments() throws IOException {
+
+        if (readChannel != null) {
+            readChannel.close();
+            readChannel = null;
+        }
+
+        for (Segment segment : segments) {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+
+        segments.clear();
+        readAhead.clear().flip();
+        spilled = 0;
+        skipOnRead = 0;
+        peeked = null;
+        inFlight.clear();
+        inFlightConsumed = 0;
+        appending = null;
+        epoch++;
+    }
+
+    /**
+     * Stops the writer and deletes the segment files. Elements evicted after
+     * this call are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+
+        closed = true;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (tierLock) {
+            discardSegments();
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private long size;
+
+        Segment(Path path) throws IOException {
+
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class SpillingMostRecentlyInsertedQueueTest {
+
+    private final int capacity = 10;
+    private Path directory;
+    private SpillingMostRecentlyInsertedQueue<Integer> queue;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+
+        directory = folder.getRoot().toPath().resolve("spill");
+        queue = new SpillingMostRecentlyInsertedQueue<>(capacity, directory,
+                new ConcurrentMostRecentlyInsertedQueueTest.IntegerCodec(), 100000, 64);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        queue.close();
+    }
+
+    @Test
+    public void pollDrainsSpilledElementsFirst() throws Exception {
+
+        for (int i = 0; i < 1000; i++) {
+            queue.offer(i);
+        }
+
+        assertEquals(1000, queue.size());
+        assertEquals(1000 - capacity, queue.spilledSize());
+        assertSame(0, queue.peek());
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, queue.poll().intValue());
+        }
+
+        assertSame(null, queue.poll());
+        assertEquals(0, queue.spilledSize());
+        assertEquals(0, queue.droppedCount());
+        assertEquals(true, queue.isEmpty());
+    }
+
+    @Test
+    public void sizeCoversSpilledElements() throws Exception {
+
+        for (int i = 0; i < capacity + 5; i++) {
+            queue.offer(i);
+        }
+
+        for (int i = 0; i < capacity; i++) {
+            queue.poll();
+        }
+
+        assertEquals(5, queue.size());
+        assertEquals(false, queue.isEmpty());
+    }
+
+    @Test
+    public void drainedSegmentsAreDeleted() throws Exception {
+
+        for (int i = 0; i < 1000; i++) {
+            queue.offer(i);
+        }
+
+        while (queue.poll() != null) {
+            // drain
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(true, files.count() <= 1);
+        }
+    }
+
+    @Test
+    public void interleavedOfferAndPoll() throws Exception {
+
+        int expected = 0;
+
+        for (int i = 0; i < 5000; i++) {
+            queue.offer(i);
+
+            if (i % 3 == 0) {
+                assertEquals(expected++, queue.poll().intValue());
+            }
+        }
+
+        Integer e;
+        while ((e = queue.poll()) != null) {
+            assertEquals(expected++, e.intValue());
+        }
+
+        assertEquals(5000, expected);
+    }
+
+    @Test
+    public void clear() throws Exception {
+
+        for (int i = 0; i < 100; i++) {
+            queue.offer(i);
+        }
+
+        queue.clear();
+
+        assertSame(null, queue.poll());
+        assertEquals(0, queue.spilledSize());
+    }
+
+    @Test
+    public void dropWhenWriterFallsBehind() throws Exception {
+
+        final CountDownLatch writerBlocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        SpillingMostRecentlyInsertedQueue<Integer> slowQueue = new SpillingMostRecentlyInsertedQueue<>(1,
+                folder.getRoot().toPath().resolve("slow"), new Codec<Integer>() {
+            @Override
+            public byte[] encode(Integer element) {
+                writerBlocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ByteBuffer.allocate(4).putInt(element).array();
+            }
+
+            @Override
+            public Integer decode(ByteBuffer buffer) {
+                return buffer.getInt();
+            }
+        }, 2, 1024);
+
+        slowQueue.offer(0);
+        slowQueue.offer(1);
+        writerBlocked.await();
+
+        for (int i = 2; i < 10; i++) {
+            slowQueue.offer(i);
+        }
+
+        assertEquals(6, slowQueue.droppedCount());
+
+        // the writer is stuck on element 0, consumers still get it
+        assertEquals(4, slowQueue.size());
+        assertEquals(false, slowQueue.isEmpty());
+        assertEquals(0, slowQueue.poll().intValue());
+
+        release.countDown();
+
+        assertEquals(1, slowQueue.poll().intValue());
+        assertEquals(2, slowQueue.poll().intValue());
+        assertEquals(9, slowQueue.poll().intValue());
+        assertSame(null, slowQueue.poll());
+        assertEquals(true, slowQueue.isEmpty());
+
+        slowQueue.close();
+    }
+
+    @Test
+    public void consumedInFlightRecordsAreSkipped() throws Exception {
+
+        final CountDownLatch writerBlocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        SpillingMostRecentlyInsertedQueue<Integer> slowQueue = new SpillingMostRecentlyInsertedQueue<>(1,
+                folder.getRoot().toPath().resolve("skip"), new Codec<Integer>() {
+            @Override
+            public byte[] encode(Integer element) {
+                if (element == 0) {
+                    writerBlocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return ByteBuffer.allocate(4).putInt(element).array();
+            }
+
+            @Override
+            public Integer decode(ByteBuffer buffer) {
+                return buffer.getInt();
+            }
+        }, 100, 1024);
+
+        slowQueue.offer(0);
+        slowQueue.offer(1);
+        writerBlocked.await();
+        assertEquals(0, slowQueue.poll().intValue());
+
+        release.countDown();
+        for (int i = 2; i < 50; i++) {
+            slowQueue.offer(i);
+        }
+
+        // wait until records 1 to 48 are on disk, 0 has to be skipped or its segment deleted
+        Path skip = folder.getRoot().toPath().resolve("skip");
+        for (int i = 0; i < 1000 && spilledBytes(skip) < 48 * 8; i++) {
+            Thread.sleep(5);
+        }
+        assertTrue(spilledBytes(skip) >= 48 * 8);
+        Thread.sleep(20);
+
+        for (int i = 1; i < 50; i++) {
+            assertEquals(i, slowQueue.poll().intValue());
+        }
+        assertSame(null, slowQueue.poll());
+        assertEquals(0, slowQueue.droppedCount());
+
+        slowQueue.close();
+    }
+
+    @Test
+    public void consumedSegmentsAreDeletedWhenPublished() throws Exception {
+
+        final CountDownLatch writerBlocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Path consumed = folder.getRoot().toPath().resolve("consumed");
+
+        SpillingMostRecentlyInsertedQueue<Integer> slowQueue = new SpillingMostRecentlyInsertedQueue<>(1,
+                consumed, new Codec<Integer>() {
+            @Override
+            public byte[] encode(Integer element) {
+                writerBlocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ByteBuffer.allocate(4).putInt(element).array();
+            }
+
+            @Override
+            public Integer decode(ByteBuffer buffer) {
+                return buffer.getInt();
+            }
+        }, 100, 1024);
+
+        slowQueue.offer(0);
+        slowQueue.offer(1);
+        writerBlocked.await();
+
+        // the batch is consumed from memory while it is written
+        assertEquals(0, slowQueue.poll().intValue());
+        assertEquals(1, slowQueue.poll().intValue());
+        release.countDown();
+
+        for (int i = 0; i < 1000 && segmentCount(consumed) > 0; i++) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, segmentCount(consumed));
+        assertEquals(true, slowQueue.isEmpty());
+
+        slowQueue.offer(2);
+        slowQueue.offer(3);
+        assertEquals(2, slowQueue.poll().intValue());
+        assertEquals(3, slowQueue.poll().intValue());
+
+        slowQueue.close();
+    }
+
+    private static long segmentCount(Path directory) throws IOException {
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static long spilledBytes(Path directory) throws IOException {
+
+        long bytes = 0;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                bytes += Files.size(file);
+            }
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides how a consumer waits for an element in
+ * {@link ConcurrentMostRecentlyInsertedQueue#take} and
+ * {@link ConcurrentMostRecentlyInsertedQueue#poll(long, TimeUnit, WaitStrategy)},
+ * trading wake-up latency for CPU time. Every consumer picks its own.
+ * <p>
+ * <p>The waiting consumer polls the queue, and calls {@link #idle} after
+ * every miss. Strategies which park may ask to be {@link #signalled}: while
+ * such a consumer waits, every offer unparks it, so it parks for as long as
+ * it likes without missing an element. Producers pay for the signal only
+ * while a signalled consumer is waiting.
+ * <p>
+ * <p>Strategies have no state of their own and may be shared between
+ * consumers. <tt>WaitStrategyBenchmark</tt> measures the wake-up latency and
+ * the CPU cost of each of them.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Waits a little before the next poll.
+     *
+     * @param attempt  the number of misses of this wait before this one, from <tt>0</tt>
+     * @param maxNanos the time left until the wait times out, parking must not exceed it
+     */
+    void idle(int attempt, long maxNanos);
+
+    /**
+     * Returns <tt>true</tt> if offers must unpark a consumer waiting with
+     * this strategy. Returns <tt>false</tt> by default.
+     */
+    default boolean signalled() {
+
+        return false;
+    }
+
+    /**
+     * Spins on {@link Thread#onSpinWait}, the lowest latency for a whole core.
+     */
+    static WaitStrategy busySpin() {
+
+        return (attempt, maxNanos) -> Thread.onSpinWait();
+    }
+
+    /**
+     * Spins for the given number of misses, then yields the processor on every
+     * further miss.
+     */
+    static WaitStrategy spinThenYield(int spins) {
+
+        if (spins < 0) throw new IllegalArgumentException();
+
+        return (attempt, maxNanos) -> {
+            if (attempt < spins) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        };
+    }
+
+    /**
+     * Spins, then yields, then parks until the next offer or the max park
+     * time, whichever comes first. The consumer is signalled, so it reacts
+     * to an offer within a park wake-up, typically some tens of
+     * microseconds, and uses no CPU while the queue stays empty.
+     *
+     * @param spins   the number of misses spent spinning
+     * @param yields  the number of misses after that spent yielding
+     * @param maxPark the max time parked at once, a safety net only
+     */
+    static WaitStrategy spinThenPark(int spins, int yields, long maxPark, TimeUnit unit) {
+
+        if (spins < 0 || yields < 0 || maxPark <= 0) throw new IllegalArgumentException();
+
+        final long maxParkNanos = unit.toNanos(maxPark);
+
+        return new WaitStrategy() {
+            @Override
+            public void idle(int attempt, long maxNanos) {
+
+                if (attempt < spins) {
+                    Thread.onSpinWait();
+                } else if (attempt < spins + yields) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(Math.min(maxParkNanos, maxNanos));
+                }
+            }
+
+            @Override
+            public boolean signalled() {
+
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Sleeps for the given period on every miss without being signalled, for
+     * background consumers: producers never pay for waking it up, and an
+     * element waits up to one period before it is seen.
+     */
+    static WaitStrategy timedPark(long period, TimeUnit unit) {
+
+        if (period <= 0) throw new IllegalArgumentException();
+
+        final long periodNanos = unit.toNanos(period);
+
+        return (attempt, maxNanos) -> LockSupport.parkNanos(Math.min(periodNanos, maxNanos));
+    }
+}
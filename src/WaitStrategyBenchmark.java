@@ -0,0 +1,214 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the wake-up latency of a consumer blocked in
+ * {@link ConcurrentMostRecentlyInsertedQueue#take} against the CPU time it
+ * burns, for every {@link WaitStrategy}.
+ * <p>
+ * <p>A producer offers its {@link System#nanoTime} at a fixed interval, slow
+ * enough for the consumer to be waiting on every offer, and the consumer
+ * records the time from the offer to its return from <tt>take</tt> into a
+ * {@link LatencyHistogram}. The CPU load is the CPU time of the consumer
+ * thread over the wall-clock time of the run, <tt>1.0</tt> being a whole
+ * core.
+ * <p>
+ * <p>Usage, all arguments optional:
+ * <pre>
+ * java WaitStrategyBenchmark interval=100 duration=5 warmup=1
+ * </pre>
+ * <tt>interval</tt> is in microseconds, <tt>duration</tt> and <tt>warmup</tt>
+ * in seconds, per strategy.
+ */
+public class WaitStrategyBenchmark {
+
+    private final long intervalNanos;
+    private final long durationNanos;
+    private final long warmupNanos;
+
+    /**
+     * @param interval the time between two offers
+     * @param duration how long to measure every strategy
+     * @param warmup   how long to run every strategy before measuring
+     * @param unit     the unit of all three
+     */
+    public WaitStrategyBenchmark(long interval, long duration, long warmup, TimeUnit unit) {
+
+        if (interval <= 0 || duration <= 0 || warmup < 0) throw new IllegalArgumentException();
+
+        this.intervalNanos = unit.toNanos(interval);
+        this.durationNanos = unit.toNanos(duration);
+        this.warmupNanos = unit.toNanos(warmup);
+    }
+
+    public static class Result {
+
+        private final LatencyHistogram latencies;
+        private final double cpuLoad;
+
+        Result(LatencyHistogram latencies, double cpuLoad) {
+
+            this.latencies = latencies;
+            this.cpuLoad = cpuLoad;
+        }
+
+        /**
+         * Returns the wake-up latencies in nanoseconds.
+         */
+        public LatencyHistogram getLatencies() {
+
+            return latencies;
+        }
+
+        /**
+         * Returns the CPU time of the consumer over the wall-clock time,
+         * <tt>-1</tt> if thread CPU time is not supported.
+         */
+        public double getCpuLoad() {
+
+            return cpuLoad;
+        }
+    }
+
+    /**
+     * Runs the producer and a consumer waiting with the strategy.
+     */
+    public Result measure(WaitStrategy strategy) throws InterruptedException {
+
+        final ConcurrentMostRecentlyInsertedQueue<Long> queue = new ConcurrentMostRecentlyInsertedQueue<>(1024);
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final long start = System.nanoTime();
+        final long measureFrom = start + warmupNanos;
+        final long end = measureFrom + durationNanos;
+        final AtomicLong consumerCpu = new AtomicLong(-1);
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final boolean cpuSupported = threads.isCurrentThreadCpuTimeSupported();
+
+        Thread consumer = new Thread(() -> {
+            long cpuStart = -1;
+
+            try {
+                while (true) {
+                    long offered = queue.take(strategy);
+                    long now = System.nanoTime();
+
+                    if (offered >= measureFrom) {
+                        if (cpuStart < 0 && cpuSupported) {
+                            cpuStart = threads.getCurrentThreadCpuTime();
+                        }
+                        histogram.record(now - offered);
+                    }
+                }
+            } catch (InterruptedException stop) {
+                if (cpuStart >= 0) {
+                    consumerCpu.set(threads.getCurrentThreadCpuTime() - cpuStart);
+                }
+            }
+        }, "wait-strategy-consumer");
+
+        consumer.setDaemon(true);
+        consumer.start();
+
+        long measuredFrom = -1;
+
+        for (long next = start + intervalNanos; next < end; next += intervalNanos) {
+            long now;
+            while ((now = System.nanoTime()) < next) {
+                LockSupport.parkNanos(next - now);
+            }
+
+            if (measuredFrom < 0 && now >= measureFrom) {
+                measuredFrom = now;
+            }
+
+            queue.offer(System.nanoTime());
+        }
+
+        long measuredNanos = measuredFrom < 0 ? 0 : System.nanoTime() - measuredFrom;
+
+        consumer.interrupt();
+        consumer.join();
+
+        double cpuLoad = consumerCpu.get() < 0 || measuredNanos == 0 ? -1 : (double) consumerCpu.get() / measuredNanos;
+
+        return new Result(histogram, cpuLoad);
+    }
+
+    /**
+     * Returns the strategies compared by {@link #main}, with their names.
+     */
+    public static Map<String, WaitStrategy> defaultStrategies() {
+
+        Map<String, WaitStrategy> strategies = new LinkedHashMap<>();
+        strategies.put("busy-spin", WaitStrategy.busySpin());
+        strategies.put("spin-yield", WaitStrategy.spinThenYield(100));
+        strategies.put("spin-park", WaitStrategy.spinThenPark(100, 10, 1, TimeUnit.MILLISECONDS));
+        strategies.put("timed-park", WaitStrategy.timedPark(100, TimeUnit.MICROSECONDS));
+
+        return strategies;
+    }
+
+    /**
+     * Formats the results as a table of latencies in microseconds and the
+     * CPU load in percent of a core.
+     */
+    public static String report(Map<String, Result> results) {
+
+        StringBuilder output = new StringBuilder(String.format(Locale.ROOT, "%-12s %10s %10s %10s %10s %10s %8s%n",
+                "strategy", "count", "p50(us)", "p99(us)", "p99.9(us)", "max(us)", "cpu(%)"));
+
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            LatencyHistogram histogram = entry.getValue().getLatencies();
+
+            output.append(String.format(Locale.ROOT, "%-12s %10d %10.1f %10.1f %10.1f %10.1f %8.1f%n",
+                    entry.getKey(),
+                    histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMax() / 1000.0,
+                    entry.getValue().getCpuLoad() * 100));
+        }
+
+        return output.toString();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        Map<String, String> options = new HashMap<>();
+        options.put("interval", "100");
+        options.put("duration", "5");
+        options.put("warmup", "1");
+
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2 || !options.containsKey(pair[0])) {
+                System.err.println("Unknown argument " + arg);
+                System.exit(1);
+            }
+            options.put(pair[0], pair[1]);
+        }
+
+        long interval = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(options.get("interval")));
+        WaitStrategyBenchmark benchmark = new WaitStrategyBenchmark(interval,
+                TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration"))),
+                TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup"))),
+                TimeUnit.NANOSECONDS);
+
+        Map<String, Result> results = new LinkedHashMap<>();
+
+        for (Map.Entry<String, WaitStrategy> entry : defaultStrategies().entrySet()) {
+            results.put(entry.getKey(), benchmark.measure(entry.getValue()));
+        }
+
+        System.out.println("Wait strategies " + options);
+        System.out.print(report(results));
+    }
+}
@@ -0,0 +1,29 @@
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WaitStrategyBenchmarkTest {
+
+    @Test
+    public void measure() throws Exception {
+
+        WaitStrategyBenchmark benchmark = new WaitStrategyBenchmark(200, 100_000, 20_000, TimeUnit.MICROSECONDS);
+        Map<String, WaitStrategyBenchmark.Result> results = new LinkedHashMap<>();
+
+        for (Map.Entry<String, WaitStrategy> entry : WaitStrategyBenchmark.defaultStrategies().entrySet()) {
+            WaitStrategyBenchmark.Result result = benchmark.measure(entry.getValue());
+            assertEquals(true, result.getLatencies().getTotalCount() > 100);
+            results.put(entry.getKey(), result);
+        }
+
+        assertEquals(true, results.get("busy-spin").getCpuLoad() > results.get("timed-park").getCpuLoad());
+
+        String report = WaitStrategyBenchmark.report(results);
+        assertEquals(true, report.contains("spin-park"));
+        assertEquals(true, report.contains("cpu(%)"));
+    }
+}
@@ -0,0 +1,78 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class WaitStrategyTest {
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private final List<WaitStrategy> strategies = Arrays.asList(
+            WaitStrategy.busySpin(),
+            WaitStrategy.spinThenYield(10),
+            WaitStrategy.spinThenPark(10, 10, 10, TimeUnit.SECONDS),
+            WaitStrategy.timedPark(100, TimeUnit.MICROSECONDS));
+
+    @Test
+    public void takeWaitsForOffer() throws Exception {
+
+        for (WaitStrategy strategy : strategies) {
+            final ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(10);
+            final AtomicReference<Integer> taken = new AtomicReference<>();
+            final CountDownLatch done = new CountDownLatch(1);
+
+            Thread consumer = new Thread(() -> {
+                try {
+                    taken.set(queue.take(strategy));
+                } catch (InterruptedException e) {
+                    taken.set(-1);
+                }
+                done.countDown();
+            });
+            consumer.start();
+
+            Thread.sleep(20);
+            assertNull(taken.get());
+
+            // the park time of spinThenPark is 10 s, only the signal wakes the consumer in time
+            queue.offer(7);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(7), taken.get());
+        }
+    }
+
+    @Test
+    public void pollTimesOut() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(10);
+
+        for (WaitStrategy strategy : strategies) {
+            long start = System.nanoTime();
+            assertNull(queue.poll(20, TimeUnit.MILLISECONDS, strategy));
+            long waited = System.nanoTime() - start;
+            assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(20));
+            assertTrue(waited < TimeUnit.SECONDS.toNanos(5));
+        }
+
+        queue.offer(1);
+        assertEquals(Integer.valueOf(1), queue.poll(0, TimeUnit.SECONDS, WaitStrategy.busySpin()));
+    }
+
+    @Test
+    public void takeFailInterruptedException() throws Exception {
+
+        ConcurrentMostRecentlyInsertedQueue<Integer> queue = new ConcurrentMostRecentlyInsertedQueue<>(10);
+        Thread.currentThread().interrupt();
+
+        exception.expect(InterruptedException.class);
+        queue.take(WaitStrategy.spinThenPark(0, 0, 1, TimeUnit.SECONDS));
+    }
+}
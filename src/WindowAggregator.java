@@ -0,0 +1,32 @@
+/**
+ * An associative aggregation over the elements of a sliding window, for
+ * {@link SlidingWindowAggregate} and
+ * {@link AggregatingMostRecentlyInsertedQueue#aggregate}.
+ * <p>
+ * <p>{@link #combine} must be associative and {@link #identity} must be its
+ * neutral element. Neither inversion nor commutativity is required: the
+ * aggregate is always combined from the oldest element to the newest, so
+ * aggregates like min, max, "first element matching" or a sketch merge work
+ * as well as sums.
+ *
+ * @param <E> the type of the window elements
+ * @param <A> the type of the aggregate
+ */
+public interface WindowAggregator<E, A> {
+
+    /**
+     * Returns the aggregate of an empty window.
+     */
+    A identity();
+
+    /**
+     * Returns the aggregate of a window holding only the element.
+     */
+    A lift(E element);
+
+    /**
+     * Returns the aggregate of the window made of the elements of
+     * <tt>older</tt> followed by the elements of <tt>newer</tt>.
+     */
+    A combine(A older, A newer);
+}